@@ -0,0 +1,98 @@
+package divisio.dl4jintro;
+
+import org.apache.commons.io.FileUtils;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of saving, loading and finding the last save state with many save states present in the working folder and
+ * listed in its checkpoint manifest. Saving includes deleting the oldest save state, like training with
+ * --keep-last-saves does, so the number of save states does not grow while measuring.
+ * Also loads the same network from a ModelSerializer zip for comparison with the {@link CheckpointStore} format.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CheckpointBenchmark {
+
+    @Param({"1", "100", "2000"})
+    public int existingSaves;
+
+    private File workingFolder;
+    private BinaryAndTrainer trainer;
+    private File lastSave;
+    private File legacyZip;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workingFolder = Files.createTempDirectory("checkpoint-benchmark").toFile();
+        trainer = new BinaryAndTrainer();
+        //saves delete the oldest ones, so the number of save states stays the same during measurement
+        trainer.setKeepLastSaves(existingSaves);
+        trainer.init();
+        final File template = trainer.save(workingFolder);
+        //fill the folder with copies named like real save states from the past, listed in the manifest like them
+        final List<String> copies = new ArrayList<>();
+        for (int idx = 0; idx < existingSaves - 1; ++idx) {
+            final File copy = new File(workingFolder, String.format("multilayer_2000-01-01_00-00-00_0_%06d_0", idx));
+            FileUtils.copyDirectory(template, copy);
+            copies.add(copy.getName());
+        }
+        final CheckpointStore store = new CheckpointStore(workingFolder);
+        store.register(copies);
+        lastSave = trainer.findLastSaveState(workingFolder);
+        //retention never deletes the best save state, so load() finds it no matter how often save() ran
+        store.markBest(lastSave.getName(), 0.0);
+        legacyZip = new File(workingFolder, "legacy.zip");
+        ModelSerializer.writeModel(store.read(lastSave), legacyZip, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        trainer.close();
+        FileUtils.deleteDirectory(workingFolder);
+    }
+
+    @Benchmark
+    public File save() {
+        return trainer.save(workingFolder);
+    }
+
+    @Benchmark
+    public void load() {
+        trainer.load(lastSave);
+    }
+
+    @Benchmark
+    public MultiLayerNetwork loadLegacyZip() throws IOException {
+        return MultiLayerNetwork.load(legacyZip, true);
+    }
+
+    @Benchmark
+    public File findLastSaveState() {
+        return trainer.findLastSaveState(workingFolder);
+    }
+}
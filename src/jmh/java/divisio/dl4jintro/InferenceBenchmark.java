@@ -0,0 +1,87 @@
+package divisio.dl4jintro;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of inference for the trained {@link BinaryAndTrainer} network: {@link Trainer#output(INDArray)} compared
+ * to the {@link DenseInferenceEngine} with float and int8 weights.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class InferenceBenchmark {
+
+    @Param({"1", "64"})
+    public int rows;
+
+    private BinaryAndTrainer trainer;
+    private INDArray input;
+    private DenseInferenceEngine floatEngine;
+    private DenseInferenceEngine quantizedEngine;
+    private DenseInferenceEngine.Buffers buffers;
+    private float[] inputs;
+    private float[] outputs;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        trainer = new BinaryAndTrainer(4);
+        trainer.init();
+        for (int epoch = 0; epoch < 100; ++epoch) {
+            trainer.startEpoch();
+            while (trainer.train()) {
+                //just train
+            }
+        }
+        floatEngine = trainer.exportInferenceEngine(false);
+        quantizedEngine = trainer.exportInferenceEngine(true);
+        input = Nd4j.rand(rows, floatEngine.inputSize());
+        inputs = input.dup('c').data().asFloat();
+        outputs = new float[rows * floatEngine.outputSize()];
+        buffers = floatEngine.newBuffers(rows);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        trainer.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public INDArray networkOutput() {
+        return trainer.output(input);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public float[] engineFloat() {
+        floatEngine.output(inputs, outputs, rows, buffers);
+        return outputs;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public float[] engineInt8() {
+        quantizedEngine.output(inputs, outputs, rows, buffers);
+        return outputs;
+    }
+}
@@ -0,0 +1,98 @@
+package divisio.dl4jintro;
+
+import org.deeplearning4j.datasets.iterator.INDArrayDataSetIterator;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.primitives.Pair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time for one full epoch over the same data with the different iterators, without any training, so we see the
+ * pure iterator overhead.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class IteratorBenchmark {
+
+    private static final int ROWS = 100000;
+    private static final int FEATURES = 2;
+    private static final int LABELS = 1;
+
+    @Param({"1", "32", "256"})
+    public int batchSize;
+
+    private List<Pair<INDArray, INDArray>> examples;
+    private ContiguousDataSet contiguous;
+    private File binaryFile;
+    private MappedDataSetIterator mapped;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final INDArray features = Nd4j.rand(ROWS, FEATURES);
+        final INDArray labels = Nd4j.rand(ROWS, LABELS);
+        contiguous = new ContiguousDataSet(features, labels);
+        examples = new ArrayList<>(ROWS);
+        for (int row = 0; row < ROWS; ++row) {
+            examples.add(Pair.create(features.getRow(row).dup(), labels.getRow(row).dup()));
+        }
+        binaryFile = Files.createTempFile("iterator-benchmark", ".bin").toFile();
+        //noinspection ResultOfMethodCallIgnored (the converter creates the file itself)
+        binaryFile.delete();
+        BinaryDataSetFile.write(contiguous.iterator(1024, null), binaryFile, DataBuffer.Type.FLOAT);
+        mapped = new MappedDataSetIterator(binaryFile, batchSize, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        binaryFile.delete();
+    }
+
+    private static void consume(final DataSetIterator iterator, final Blackhole blackhole) {
+        while (iterator.hasNext()) {
+            blackhole.consume(iterator.next());
+        }
+    }
+
+    @Benchmark
+    public void indArrayDataSetIterator(final Blackhole blackhole) {
+        consume(new INDArrayDataSetIterator(examples, batchSize), blackhole);
+    }
+
+    @Benchmark
+    public void contiguousDataSetIterator(final Blackhole blackhole) {
+        consume(contiguous.iterator(batchSize, null), blackhole);
+    }
+
+    @Benchmark
+    public void mappedDataSetIterator(final Blackhole blackhole) {
+        mapped.reset();
+        consume(mapped, blackhole);
+    }
+}
@@ -0,0 +1,115 @@
+package divisio.dl4jintro;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and memory of the {@link Precision} settings on this machine: training steps of
+ * {@link BinaryAndTrainer}, a dense matrix multiplication as found in larger layers, and an epoch over memory
+ * mapped training data. The bytes the benchmark data takes in each precision are logged during setup. Each
+ * precision runs in its own fork, as the ND4J data type is global.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PrecisionBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(PrecisionBenchmark.class);
+
+    private static final int MATRIX_SIZE = 1024;
+    private static final int ROWS = 100000;
+
+    @Param({"FP64", "FP32", "FP16"})
+    public Precision precision;
+
+    private BinaryAndTrainer trainer;
+    private INDArray matrixA;
+    private INDArray matrixB;
+    private File dataFile;
+    private MappedDataSetIterator mapped;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        trainer = new BinaryAndTrainer(4);
+        trainer.setPrecision(precision);
+        //switches the global data type, so everything below is created in our precision
+        trainer.init();
+        trainer.startEpoch();
+
+        matrixA = Nd4j.rand(MATRIX_SIZE, MATRIX_SIZE);
+        matrixB = Nd4j.rand(MATRIX_SIZE, MATRIX_SIZE);
+
+        dataFile = Files.createTempFile("precision-benchmark", ".bin").toFile();
+        //noinspection ResultOfMethodCallIgnored (the converter creates the file itself)
+        dataFile.delete();
+        final ContiguousDataSet data = new ContiguousDataSet(Nd4j.rand(ROWS, 2), Nd4j.rand(ROWS, 1));
+        BinaryDataSetFile.write(data.iterator(1024, null), dataFile, precision.fileDataType());
+        mapped = new MappedDataSetIterator(dataFile, 256, null);
+
+        final long matrixBytes = matrixA.length() * matrixA.data().getElementSize();
+        final long dataBytes = (data.getFeatures().length() + data.getLabels().length()) *
+                               data.getFeatures().data().getElementSize();
+        log.info(precision + ": " + matrixBytes + " bytes per " + MATRIX_SIZE + "x" + MATRIX_SIZE + " matrix, " +
+                 dataBytes + " bytes for " + ROWS + " examples in memory, " + dataFile.length() + " bytes on disk");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        trainer.close();
+        //noinspection ResultOfMethodCallIgnored
+        dataFile.delete();
+    }
+
+    /**
+     * One call of {@link Trainer#train()}, starting a new epoch whenever the current one is done.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public boolean trainStep() {
+        final boolean hasNext = trainer.train();
+        if (!hasNext) {
+            trainer.startEpoch();
+        }
+        return hasNext;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public INDArray matrixMultiply() {
+        return matrixA.mmul(matrixB);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void mappedEpoch(final Blackhole blackhole) {
+        mapped.reset();
+        while (mapped.hasNext()) {
+            blackhole.consume(mapped.next());
+        }
+    }
+}
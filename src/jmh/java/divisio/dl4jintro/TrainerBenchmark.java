@@ -0,0 +1,68 @@
+package divisio.dl4jintro;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of single training steps and latency of a validation run of {@link BinaryAndTrainer}.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TrainerBenchmark {
+
+    @Param({"1", "2", "4"})
+    public int batchSize;
+
+    private Trainer trainer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        trainer = new BinaryAndTrainer(batchSize);
+        trainer.init();
+        trainer.startEpoch();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        trainer.close();
+    }
+
+    /**
+     * One call of {@link Trainer#train()}, starting a new epoch whenever the current one is done.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public boolean trainStep() {
+        final boolean hasNext = trainer.train();
+        if (!hasNext) {
+            trainer.startEpoch();
+        }
+        return hasNext;
+    }
+
+    /**
+     * A complete {@link Trainer#validate(boolean)} run.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public double validate() {
+        return trainer.validate(true);
+    }
+}
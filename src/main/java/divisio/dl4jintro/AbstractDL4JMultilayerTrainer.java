@@ -1,24 +1,61 @@
 package divisio.dl4jintro;
 
+import org.deeplearning4j.nn.api.Updater;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.gradient.Gradient;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.workspace.LayerWorkspaceMgr;
+import org.deeplearning4j.optimize.api.TrainingListener;
 import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.nativeblas.NativeOpsHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Abstract base class that provides common code for training a DL4J multilayer network.
  */
 public abstract class AbstractDL4JMultilayerTrainer implements Trainer {
 
+    private static final Logger log = LoggerFactory.getLogger(AbstractDL4JMultilayerTrainer.class);
+
     //constants for the save file name
     private static final String SAVE_FILE_PREFIX = "multilayer";
-    private static final String SAVE_FILE_SUFFIX = ".zip";
+    /** suffix of save states written before the {@link CheckpointStore}, they can still be loaded */
+    private static final String LEGACY_SAVE_FILE_SUFFIX = ".zip";
+    /** suffix of the metadata files of legacy save states */
+    private static final String LEGACY_METADATA_FILE_SUFFIX = ".properties";
+
+    //keys of the save state metadata
+    protected static final String METADATA_MEMORY_POLICY = "memoryPolicy";
+    protected static final String METADATA_PRECISION = "precision";
+    protected static final String METADATA_VALIDATION_SCORE = "validationScore";
+    protected static final String METADATA_BATCH_SIZE = "batchSize";
+    protected static final String METADATA_GRADIENT_ACCUMULATION = "gradientAccumulation";
+    protected static final String METADATA_NATIVE_THREADS = "nativeThreads";
+    protected static final String METADATA_TUNED = "tuned";
     private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
 
     /** the number of iterations between printing the score */
@@ -27,11 +64,209 @@ public abstract class AbstractDL4JMultilayerTrainer implements Trainer {
     protected MultiLayerNetwork nn;
     /** the iterator providing the training data */
     protected DataSetIterator trainingIterator;
+    /** if set, training reads from this iterator instead of building its own, e.g. for online training */
+    private DataSetIterator trainingSource;
+    /** writes checkpoints in the background, null if we save synchronously */
+    private CheckpointWriter checkpointWriter;
+    /** number of save states to keep in the working folder, 0 keeps all */
+    private int keepLastSaves = 0;
+    /** number of saves since the trainer was created, keeps save state names unique */
+    private int saveCount = 0;
+    /** number of minibatches to prefetch in the background, 0 disables prefetching */
+    private int prefetchQueueSize = 0;
+    /** number of threads prefetching minibatches */
+    private int prefetchThreads = 1;
+    /** number of network replicas trained in parallel, 1 trains the network directly */
+    private int workerCount = 1;
+    /** number of parallel steps between parameter averaging */
+    private int averagingFrequency = 1;
+    /** the replicas for data parallel training, created lazily, null when training single threaded */
+    private ParameterAveragingWorkers workers;
+    /** number of training examples fitted since init or load */
+    private long sampleCount = 0;
+    /** receives timing of fit calls & epochs, null if metrics are disabled */
+    protected TrainingMetrics metrics;
+    /** receives iteration & epoch events, null if disabled */
+    private EventLog eventLog;
+    /** times the phases & layers of single threaded training, null if disabled */
+    private ProfilingListener profiler;
+    /** runs validations on snapshots, created lazily */
+    private ExecutorService validationExecutor;
+    /** true while a background validation is in flight */
+    private final AtomicBoolean validationRunning = new AtomicBoolean(false);
+    /** the last background validation, null if there never was one */
+    private Future<?> lastValidation;
+    /** result of the last finished background validation not taken yet */
+    private final AtomicReference<BackgroundValidation> finishedValidation = new AtomicReference<>();
+    /** number of background validation triggers skipped because the previous one was still running */
+    private int skippedValidations = 0;
+    /** maximum number of examples a periodic validation looks at, 0 for no limit */
+    protected long validationMaxSamples = 0;
+    /** maximum time in milliseconds a periodic validation may take, 0 for no limit */
+    protected long validationMaxMillis = 0;
+    /** precision of parameters, data & checkpoints */
+    private Precision precision = Precision.FP32;
+    /** how ND4J memory is allocated */
+    private MemoryPolicy memoryPolicy = MemoryPolicy.NONE;
+    /** measures allocations per iteration, null if disabled */
+    private AllocationTracker allocationTracker;
+    /** number of minibatches whose gradients are accumulated per parameter update */
+    private int gradientAccumulation = 1;
+    /** number of native threads for ND4J, 0 keeps the environment's default */
+    private int nativeThreads = 0;
+    /** the calibrated settings we train with, null if they were not calibrated */
+    private TunedSettings tunedSettings;
 
     public AbstractDL4JMultilayerTrainer(final int printIterations) {
         this.printIterations = printIterations;
     }
 
+    /**
+     * Switches saving to a background thread: save only takes an in-memory snapshot of the network and returns,
+     * the snapshot is written to disk asynchronously.
+     * @param maxPendingSaves number of saves that may be queued or in progress before save blocks, at least 1
+     */
+    public void setAsyncSave(final int maxPendingSaves) {
+        if (checkpointWriter != null) {
+            checkpointWriter.close();
+        }
+        checkpointWriter = new CheckpointWriter(maxPendingSaves);
+    }
+
+    /**
+     * @param keepLastSaves number of save states to keep in the working folder, older ones are deleted after each
+     *                      save, 0 keeps all of them
+     */
+    public void setKeepLastSaves(final int keepLastSaves) {
+        this.keepLastSaves = keepLastSaves;
+    }
+
+    /**
+     * Lets the iterators built by {@link #buildIterator()} be filled by background threads, so data preparation
+     * overlaps with training.
+     * @param queueSize number of ready minibatches to buffer, 0 disables prefetching
+     * @param threads number of producer threads, at least 1
+     */
+    public void setPrefetching(final int queueSize, final int threads) {
+        this.prefetchQueueSize = queueSize;
+        this.prefetchThreads = threads;
+    }
+
+    /**
+     * Enables data parallel training: each worker trains its own replica of the network on its own minibatches,
+     * replicas are averaged back into the network periodically.
+     * @param workerCount number of replicas trained in parallel, 1 disables data parallel training
+     * @param averagingFrequency number of parallel steps between averaging, 1 averages after every step
+     */
+    public void setWorkers(final int workerCount, final int averagingFrequency) {
+        this.workerCount = workerCount;
+        this.averagingFrequency = averagingFrequency;
+        closeWorkers();
+    }
+
+    @Override
+    public void setTrainingSource(final DataSetIterator trainingSource) {
+        this.trainingSource = trainingSource;
+    }
+
+    /**
+     * Enables recording of fit latencies, throughput & epoch times.
+     * @param metrics where to record, null disables recording
+     */
+    public void setMetrics(final TrainingMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Records iterations & epochs in a structured event log instead of logging every score as text.
+     * @param eventLog where to record, null logs scores as text
+     */
+    public void setEventLog(final EventLog eventLog) {
+        this.eventLog = eventLog;
+    }
+
+    /**
+     * Profiles data fetch, forward pass, backward pass and updater step per layer. Only single threaded training is
+     * profiled, data parallel training ignores the profiler.
+     * @param profiler the profiler to attach, null disables profiling
+     */
+    public void setProfiler(final ProfilingListener profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * Limits the cost of periodic validations, so they can run on a fixed-cost subsample while full validations
+     * still look at all data.
+     * @param maxSamples maximum number of examples per periodic validation, 0 for no limit
+     * @param maxMillis maximum time in milliseconds per periodic validation, 0 for no limit
+     */
+    public void setValidationBudget(final long maxSamples, final long maxMillis) {
+        this.validationMaxSamples = maxSamples;
+        this.validationMaxMillis = maxMillis;
+    }
+
+    /**
+     * Selects how ND4J memory is allocated for training & inference. Applies to networks created or loaded
+     * afterwards.
+     * @param memoryPolicy the policy to use
+     */
+    public void setMemoryPolicy(final MemoryPolicy memoryPolicy) {
+        this.memoryPolicy = memoryPolicy;
+    }
+
+    /**
+     * Selects the precision of parameters, data & checkpoints, applies when the network is next created or loaded.
+     * See {@link Precision} for why this is shared by all trainers of the JVM.
+     */
+    public void setPrecision(final Precision precision) {
+        this.precision = precision;
+    }
+
+    /**
+     * @return the precision of parameters, data & checkpoints
+     */
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Lets each single threaded training iteration accumulate the gradients of several minibatches before updating
+     * the parameters, so the effective batch size can be larger than what fits into memory or runs fastest.
+     * @param gradientAccumulation number of minibatches per parameter update, 1 updates after every minibatch
+     */
+    public void setGradientAccumulation(final int gradientAccumulation) {
+        if (gradientAccumulation < 1) {
+            throw new IllegalArgumentException("Need at least one minibatch per update, got: " + gradientAccumulation);
+        }
+        this.gradientAccumulation = gradientAccumulation;
+    }
+
+    /**
+     * Sets the number of threads ND4J's native code (OpenMP & BLAS) uses, applies when the network is next created
+     * or loaded. Like the precision, this is global for the JVM.
+     * @param nativeThreads number of threads, 0 keeps the environment's default
+     */
+    public void setNativeThreads(final int nativeThreads) {
+        this.nativeThreads = nativeThreads;
+    }
+
+    /**
+     * Records that this trainer runs with settings chosen by the {@link PerformanceTuner}, they are stored with
+     * every save state so resuming does not need to calibrate again. Does not apply the settings themselves.
+     * @param tunedSettings the calibrated settings, null if they were not calibrated
+     */
+    public void setTunedSettings(final TunedSettings tunedSettings) {
+        this.tunedSettings = tunedSettings;
+    }
+
+    /**
+     * Enables logging of the bytes allocated per single threaded training iteration.
+     * @param logEveryIterations number of iterations to average over between log lines, 0 disables tracking
+     */
+    public void setTrackAllocations(final int logEveryIterations) {
+        this.allocationTracker = logEveryIterations > 0 ? new AllocationTracker(logEveryIterations) : null;
+    }
+
     /**
      * Implemented by subclasses, defines which network to train.
      */
@@ -43,51 +278,242 @@ public abstract class AbstractDL4JMultilayerTrainer implements Trainer {
     protected abstract DataSetIterator buildIterator();
 
     /**
-     * @return a filename for a savestate, contains data, epoch & iteration
+     * Prepares an iterator set with {@link #setTrainingSource(DataSetIterator)} for training, e.g. sets a pre
+     * processor that does what preprocessing did to the data of {@link #buildIterator()}. Does nothing by default.
+     * @return the iterator to train from
+     */
+    protected DataSetIterator prepareTrainingSource(final DataSetIterator trainingSource) {
+        return trainingSource;
+    }
+
+    /**
+     * Implemented by subclasses, validates the given network. Might be called on a background thread with a copy
+     * of the network, so implementations must use the given network, not {@link #nn}.
+     * @param network the network to validate
+     * @param full true: validate on all validation data, false: stay within the validation budget
+     * @return the validation score, lower is better
      */
-    protected String buildSaveFilename() {
+    protected abstract double validate(final MultiLayerNetwork network, final boolean full);
+
+    /**
+     * @return a name for a save state, contains date, epoch, iteration & a running number
+     */
+    protected String buildSaveName() {
         final String now = LocalDateTime.now().format(DATE_TIME_FORMATTER);
         final String epoch = Integer.toString(nn.getEpochCount());
         final String batchCount = Integer.toString(nn.getIterationCount());
-        return SAVE_FILE_PREFIX + "_" + now + "_" + epoch + "_" + batchCount + SAVE_FILE_SUFFIX;
+        return SAVE_FILE_PREFIX + "_" + now + "_" + epoch + "_" + batchCount + "_" + saveCount;
     }
 
     /**
      * attaches listeners to the network that monitor training progress
      */
     protected void attachListeners() {
-        nn.setListeners(new ScoreIterationListener(printIterations));//logs scores during training
+        final List<TrainingListener> listeners = new ArrayList<>();
+        if (eventLog == null) {
+            listeners.add(new ScoreIterationListener(printIterations));//logs scores during training
+        } else {
+            //the event log records scores without formatting or writing on the training thread
+            listeners.add(new EventLogListener(eventLog));
+        }
+        if (metrics != null) {
+            listeners.add(new MetricsListener(metrics));
+        }
+        if (profiler != null) {
+            listeners.add(profiler);
+        }
+        nn.setListeners(listeners);
     }
 
-    @Override
-    public File findLastSaveState(final File workingFolder) {
-        final File[] children = workingFolder.listFiles();
-        if (children == null) { return null; }
+    /**
+     * @return all readable legacy zip save states in the working folder, oldest first
+     */
+    protected SortedSet<File> listLegacySaveStates(final File workingFolder) {
         final SortedSet<File> saveStates = new TreeSet<>();
+        final File[] children = workingFolder.listFiles();
+        if (children == null) { return saveStates; }
         for (final File child : children) {
             if (child.isFile() &&
                 child.canRead() &&
                 child.getName().startsWith(SAVE_FILE_PREFIX) &&
-                child.getName().endsWith(SAVE_FILE_SUFFIX))
+                child.getName().endsWith(LEGACY_SAVE_FILE_SUFFIX))
             {
                 saveStates.add(child);
 
             }
         }
+        return saveStates;
+    }
+
+    /**
+     * Collects the trainer settings that are stored along with each save state. Subclasses can add their own.
+     * @return the metadata for a save state of the current network
+     */
+    protected Properties buildSaveMetadata() {
+        final Properties metadata = new Properties();
+        metadata.setProperty(METADATA_MEMORY_POLICY, memoryPolicy.name());
+        metadata.setProperty(METADATA_PRECISION, precision.name());
+        metadata.setProperty(METADATA_GRADIENT_ACCUMULATION, Integer.toString(gradientAccumulation));
+        metadata.setProperty(METADATA_NATIVE_THREADS, Integer.toString(nativeThreads));
+        metadata.setProperty(METADATA_TUNED, Boolean.toString(tunedSettings != null));
+        return metadata;
+    }
+
+    /**
+     * Reads the metadata stored along with the given save state.
+     * @return the metadata, empty if the save state has none
+     */
+    protected static Properties readSaveMetadata(final File saveState) {
+        if (CheckpointStore.isCheckpoint(saveState)) {
+            return CheckpointStore.readMetadata(saveState);
+        }
+        final Properties metadata = new Properties();
+        final File file = new File(saveState.getParentFile(), saveState.getName() + LEGACY_METADATA_FILE_SUFFIX);
+        if (!file.isFile()) { return metadata; }
+        try (final InputStream in = new FileInputStream(file)) {
+            metadata.load(in);
+        } catch (final IOException e) {
+            log.warn("Could not read save state metadata from: " + file, e);
+        }
+        return metadata;
+    }
+
+    /**
+     * Waits for background saves, so the checkpoint manifest lists everything saved so far.
+     */
+    private void awaitSaves() {
+        if (checkpointWriter != null) {
+            checkpointWriter.flush();
+        }
+    }
+
+    @Override
+    public Properties loadSaveMetadata(final File saveState) {
+        return readSaveMetadata(saveState);
+    }
+
+    @Override
+    public File findLastSaveState(final File workingFolder) {
+        awaitSaves();
+        //the manifest knows the latest checkpoint, only fall back to listing the folder for old zip save states
+        final File latest = new CheckpointStore(workingFolder).latest();
+        if (latest != null) { return latest; }
+        final SortedSet<File> saveStates = listLegacySaveStates(workingFolder);
         if (saveStates.isEmpty()) { return null; }
         return saveStates.last();
     }
 
+    @Override
+    public File findBestSaveState(final File workingFolder) {
+        awaitSaves();
+        final File best = new CheckpointStore(workingFolder).best();
+        return best != null ? best : findLastSaveState(workingFolder);
+    }
+
+    @Override
+    public double getBestScore(final File workingFolder) {
+        awaitSaves();
+        return new CheckpointStore(workingFolder).bestScore();
+    }
+
+    /**
+     * Stops the data parallel workers, if any, they are recreated for the current network when training continues.
+     */
+    private void closeWorkers() {
+        if (workers != null) {
+            workers.close();
+            workers = null;
+        }
+    }
+
+    /**
+     * Makes ND4J create new arrays in our precision.
+     */
+    private void applyPrecision() {
+        if (Nd4j.dataType() != precision.dataType()) {
+            log.info("Switching ND4J data type from " + Nd4j.dataType() + " to " + precision.dataType());
+            Nd4j.setDataType(precision.dataType());
+        }
+    }
+
+    /**
+     * Makes ND4J's native code use our number of threads.
+     */
+    private void applyNativeThreads() {
+        if (nativeThreads <= 0) { return; }
+        NativeOpsHolder.getInstance().getDeviceNativeOps().setOmpNumThreads(nativeThreads);
+        Nd4j.factory().blas().setMaxThreads(nativeThreads);
+    }
+
+    /**
+     * @return a copy of the given array in the current ND4J data type, same shape & order
+     */
+    private static INDArray toCurrentDataType(final INDArray array) {
+        return Nd4j.create(array.shape(), array.ordering()).assign(array);
+    }
+
+    /**
+     * Converts a network loaded from a save state with a different precision, returns the network itself if it
+     * already has our precision.
+     */
+    private MultiLayerNetwork toPrecision(final MultiLayerNetwork network) {
+        final DataBuffer.Type loadedType = network.params().data().dataType();
+        if (loadedType == precision.dataType()) { return network; }
+        log.info("Converting loaded network from " + loadedType + " to " + precision.dataType());
+        final MultiLayerNetwork result = new MultiLayerNetwork(network.getLayerWiseConfigurations().clone());
+        result.init(toCurrentDataType(network.params()), false);
+        final Updater updater = network.getUpdater();
+        final INDArray updaterState = updater == null ? null : updater.getStateViewArray();
+        if (updaterState != null) {
+            result.getUpdater().setStateViewArray(result, toCurrentDataType(updaterState), false);
+        }
+        return result;
+    }
+
+    /**
+     * Applies the memory policy to the current network.
+     */
+    private void applyMemoryPolicy() {
+        nn.getLayerWiseConfigurations().setTrainingWorkspaceMode(memoryPolicy.workspaceMode());
+        nn.getLayerWiseConfigurations().setInferenceWorkspaceMode(memoryPolicy.workspaceMode());
+    }
+
     @Override
     public void init() {
+        closeWorkers();
+        sampleCount = 0;
+        applyPrecision();
+        applyNativeThreads();
         nn = buildNetwork();
+        applyMemoryPolicy();
         attachListeners();
     }
 
     @Override
     public void load(final File saveState) {
+        //parameter-only checkpoints take their updater state from the latest full one, which might still be written
+        awaitSaves();
+        closeWorkers();
+        sampleCount = 0;
+        applyPrecision();
+        applyNativeThreads();
         try {
-            nn = MultiLayerNetwork.load(saveState, true);
+            //checkpoints are always read in the current precision, legacy zips keep the precision they were saved in
+            if (CheckpointStore.isCheckpoint(saveState)) {
+                nn = new CheckpointStore(saveState.getParentFile()).read(saveState);
+            } else {
+                nn = toPrecision(MultiLayerNetwork.load(saveState, true));
+            }
+            final Properties metadata = readSaveMetadata(saveState);
+            final String savedPrecision = metadata.getProperty(METADATA_PRECISION);
+            if (savedPrecision != null && !savedPrecision.equals(precision.name())) {
+                log.info("Save state was trained with precision " + savedPrecision + ", continuing with " + precision);
+            }
+            final String savedPolicy = metadata.getProperty(METADATA_MEMORY_POLICY);
+            if (savedPolicy != null && !savedPolicy.equals(memoryPolicy.name())) {
+                log.info("Save state was trained with memory policy " + savedPolicy + ", continuing with " + memoryPolicy);
+            }
+            applyMemoryPolicy();
             attachListeners();
         } catch (final IOException e) {
             throw new RuntimeException("Could not load MultiLayerNetwork save state from: " + saveState, e);
@@ -96,34 +522,389 @@ public abstract class AbstractDL4JMultilayerTrainer implements Trainer {
 
     @Override
     public File save(final File workingFolder) {
-        final File saveFile = new File(workingFolder, buildSaveFilename());
+        return save(workingFolder, true, Double.NaN);
+    }
+
+    @Override
+    public File saveParameters(final File workingFolder) {
+        return save(workingFolder, false, Double.NaN);
+    }
+
+    @Override
+    public File saveBest(final File workingFolder, final double score) {
+        return save(workingFolder, false, score);
+    }
+
+    /**
+     * Writes a checkpoint to the {@link CheckpointStore} in the working folder and applies retention.
+     * @param full true: include the updater state, false: parameters only
+     * @param bestScore validation score if the checkpoint becomes the best one, NaN for a regular checkpoint
+     * @return the checkpoint folder
+     */
+    private File save(final File workingFolder, final boolean full, final double bestScore) {
+        //make sure the network contains what the replicas learned so far
+        if (workers != null) {
+            workers.average();
+        }
+        if (checkpointWriter == null) {
+            final Updater updater = nn.getUpdater();
+            final INDArray updaterState = full && updater != null ? updater.getStateViewArray() : null;
+            return writeCheckpoint(workingFolder, nn.getLayerWiseConfigurations(), nn.params(), updaterState, bestScore);
+        }
+        //only copy the state on the training thread, writing happens in the background
+        return save(workingFolder, full ? NetworkSnapshot.of(nn) : NetworkSnapshot.parametersOf(nn), bestScore);
+    }
+
+    /**
+     * Writes a checkpoint of the given snapshot, in the background if saves are asynchronous.
+     * @param bestScore validation score if the checkpoint becomes the best one, NaN for a regular checkpoint
+     * @return the checkpoint folder
+     */
+    private File save(final File workingFolder, final NetworkSnapshot snapshot, final double bestScore) {
+        if (checkpointWriter == null) {
+            return writeCheckpoint(workingFolder, snapshot.getConfiguration(), snapshot.getParameters(),
+                                   snapshot.getUpdaterState(), bestScore);
+        }
+        //the name is taken now, so checkpoints are named in the order they were triggered
+        final String name = nextSaveName();
+        checkpointWriter.submit(() -> {
+            final File checkpoint = writeCheckpoint(workingFolder, name, snapshot.getConfiguration(),
+                                                    snapshot.getParameters(), snapshot.getUpdaterState(), bestScore);
+            log.info("Finished writing save state: " + checkpoint);
+        });
+        return new File(workingFolder, name);
+    }
+
+    private File writeCheckpoint(final File workingFolder, final MultiLayerConfiguration configuration,
+                                 final INDArray params, final INDArray updaterState, final double bestScore) {
+        return writeCheckpoint(workingFolder, nextSaveName(), configuration, params, updaterState, bestScore);
+    }
+
+    /**
+     * Writes a checkpoint to the {@link CheckpointStore} in the working folder, marks it as best if it has a score
+     * and applies retention.
+     */
+    private File writeCheckpoint(final File workingFolder, final String name, final MultiLayerConfiguration configuration,
+                                 final INDArray params, final INDArray updaterState, final double bestScore) {
+        final Properties metadata = buildSaveMetadata();
+        final boolean best = !Double.isNaN(bestScore);
+        if (best) {
+            metadata.setProperty(METADATA_VALIDATION_SCORE, Double.toString(bestScore));
+        }
+        final CheckpointStore store = new CheckpointStore(workingFolder);
+        final File checkpoint = store.write(name, configuration, params, updaterState, metadata);
+        if (best) {
+            store.markBest(name, bestScore);
+        }
+        store.deleteOld(keepLastSaves);
+        return checkpoint;
+    }
+
+    /**
+     * @return a new, unique checkpoint name
+     */
+    private String nextSaveName() {
+        ++saveCount;
+        return buildSaveName();
+    }
+
+    @Override
+    public double validate(final boolean full) {
+        //never validate concurrently with a background validation, they share the validation data
+        awaitValidation();
+        if (workers != null) {
+            workers.average();
+        }
+        log.info("Validating epoch " + nn.getEpochCount() + ", iteration " + nn.getIterationCount());
+        return validate(nn, full);
+    }
+
+    @Override
+    public boolean validateConcurrently(final boolean full) {
+        if (!validationRunning.compareAndSet(false, true)) {
+            ++skippedValidations;
+            log.info("Previous validation still running, skipping validation (" + skippedValidations + " skipped so far).");
+            return false;
+        }
+        if (workers != null) {
+            workers.average();
+        }
+        //only copying the parameters happens on the training thread
+        final NetworkSnapshot snapshot = NetworkSnapshot.parametersOf(nn);
+        if (validationExecutor == null) {
+            validationExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "validation");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        lastValidation = validationExecutor.submit(() -> {
+            try {
+                log.info("Validating snapshot of epoch " + snapshot.getEpochCount() +
+                         ", iteration " + snapshot.getIterationCount());
+                final double score = validate(snapshot.restore(), full);
+                finishedValidation.set(new BackgroundValidation(score, full) {
+                    @Override
+                    public File saveBest(final File workingFolder) {
+                        return save(workingFolder, snapshot, score);
+                    }
+                });
+            } catch (final RuntimeException e) {
+                log.error("Background validation failed.", e);
+            } finally {
+                validationRunning.set(false);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public BackgroundValidation takeBackgroundValidation() {
+        return finishedValidation.getAndSet(null);
+    }
+
+    /**
+     * Waits until the last background validation, if any, is finished.
+     */
+    private void awaitValidation() {
+        if (lastValidation == null) { return; }
         try {
-            nn.save(saveFile, true);
-        } catch (final IOException e) {
-            throw new RuntimeException("Could not save MultiLayerNetwork save state to: " + saveFile, e);
+            lastValidation.get();
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException ee) {
+            //already logged by the validation itself
+        }
+    }
+
+    @Override
+    public void close() {
+        awaitValidation();
+        if (validationExecutor != null) {
+            validationExecutor.shutdown();
+            validationExecutor = null;
+        }
+        closeTrainingIterator();
+        closeWorkers();
+        if (checkpointWriter != null) {
+            checkpointWriter.close();
+            checkpointWriter = null;
+        }
+    }
+
+    /**
+     * Wraps the given iterator into the configured pipeline stages.
+     */
+    private DataSetIterator wrapIterator(final DataSetIterator iterator) {
+        if (prefetchQueueSize <= 0) { return iterator; }
+        return new PrefetchingDataSetIterator(iterator, prefetchQueueSize, prefetchThreads);
+    }
+
+    /**
+     * Stops background threads of the current training iterator, if any.
+     */
+    private void closeTrainingIterator() {
+        if (trainingIterator instanceof PrefetchingDataSetIterator) {
+            ((PrefetchingDataSetIterator) trainingIterator).close();
         }
-        return saveFile;
     }
 
     @Override
     public int startEpoch() {
+        //log how the previous epoch went, so we know if we are limited by input or by compute
+        if (trainingIterator instanceof PrefetchingDataSetIterator) {
+            log.info("Input pipeline: " + ((PrefetchingDataSetIterator) trainingIterator).statistics());
+        }
         //if we do not have a data set iterator yet, or if we have one that cannot be reset, build a new one
         if (trainingIterator == null || !trainingIterator.resetSupported()) {
-            trainingIterator = buildIterator();
+            closeTrainingIterator();
+            trainingIterator = wrapIterator(trainingSource != null ? prepareTrainingSource(trainingSource)
+                                                                   : buildIterator());
         } else {
             //if we can just reset the iterator, do that, it is generally cheaper
             trainingIterator.reset();
         }
         //increase counter so we know what iteration we are in
         nn.incrementEpochCount();
+        if (metrics != null) {
+            metrics.recordEpochStart(nn.getEpochCount());
+        }
+        if (eventLog != null) {
+            eventLog.epoch(nn.getEpochCount(), sampleCount);
+        }
         return nn.getEpochCount();
     }
 
     @Override
     public boolean train() {
+        if (workerCount > 1) {
+            return trainParallel();
+        }
+        //prefetching & streaming iterators wait for data in hasNext(), so fetching covers hasNext() and next()
+        final long fetchStart = profiler == null ? 0 : System.nanoTime();
         if (trainingIterator.hasNext()) {
-            nn.fit(trainingIterator.next());
+            //with gradient accumulation, one iteration updates the parameters once from several minibatches
+            final List<DataSet> minibatches = new ArrayList<>(gradientAccumulation);
+            int iterationSamples = 0;
+            while (minibatches.size() < gradientAccumulation && trainingIterator.hasNext()) {
+                final DataSet minibatch = trainingIterator.next();
+                minibatches.add(minibatch);
+                iterationSamples += minibatch.numExamples();
+            }
+            if (profiler != null) {
+                profiler.recordFetch(System.nanoTime() - fetchStart);
+            }
+            final long start = metrics == null ? 0 : System.nanoTime();
+            if (allocationTracker != null) {
+                allocationTracker.beforeIteration();
+            }
+            if (profiler != null) {
+                profiler.startFit();
+            }
+            if (minibatches.size() == 1) {
+                fit(minibatches.get(0));
+            } else {
+                fitAccumulated(minibatches, iterationSamples);
+            }
+            if (allocationTracker != null) {
+                allocationTracker.afterIteration();
+            }
+            if (metrics != null) {
+                metrics.recordFit(System.nanoTime() - start, iterationSamples);
+                for (final DataSet minibatch : minibatches) {
+                    recordIngestLag(minibatch);
+                }
+            }
+            if (profiler != null) {
+                //replayed after the fit was recorded, so the metrics do not include it
+                profiler.afterFit(nn, minibatches.get(minibatches.size() - 1));
+            }
+            sampleCount += iterationSamples;
+        }
+        //waiting for the next minibatch happens here, count it as fetching as well
+        final long waitStart = profiler == null ? 0 : System.nanoTime();
+        final boolean hasNext = trainingIterator.hasNext();
+        if (profiler != null) {
+            profiler.recordFetch(System.nanoTime() - waitStart);
+        }
+        return hasNext;
+    }
+
+    /**
+     * Records how long ago the oldest example of the given, just fitted minibatch was ingested, if it carries
+     * ingest times like minibatches of a {@link StreamingDataSetIterator}.
+     */
+    private void recordIngestLag(final DataSet minibatch) {
+        final long ingestNanos = StreamingDataSetIterator.earliestIngestNanos(minibatch);
+        if (ingestNanos >= 0) {
+            metrics.recordIngestLag(System.nanoTime() - ingestNanos);
         }
-        return trainingIterator.hasNext();
+    }
+
+    /**
+     * Fits the network on one minibatch.
+     */
+    private void fit(final DataSet minibatch) {
+        nn.fit(minibatch);
+    }
+
+    /**
+     * Performs one parameter update from several minibatches: computes the gradient of each minibatch, averages
+     * them weighted by minibatch size and applies the average like a single fit would, updater first, then the step.
+     * @param examples total number of examples in the minibatches
+     */
+    private void fitAccumulated(final List<DataSet> minibatches, final int examples) {
+        final INDArray gradientSum = Nd4j.zeros(1, nn.numParams());
+        for (final DataSet minibatch : minibatches) {
+            nn.setInput(minibatch.getFeatures());
+            nn.setLabels(minibatch.getLabels());
+            nn.computeGradientAndScore();
+            gradientSum.addi(nn.getFlattenedGradients().mul(minibatch.numExamples()));
+        }
+        //the layers' gradients are views of the flattened gradients, so the updater sees the average
+        nn.getFlattenedGradients().assign(gradientSum.divi(examples));
+        final Gradient gradient = nn.gradient();
+        nn.getUpdater().update(nn, gradient, nn.getIterationCount(), nn.getEpochCount(), examples,
+                               LayerWorkspaceMgr.noWorkspaces());
+        nn.params().subi(nn.getFlattenedGradients());
+        nn.clear();
+        for (final TrainingListener listener : nn.getListeners()) {
+            listener.iterationDone(nn, nn.getIterationCount(), nn.getEpochCount());
+        }
+        nn.getLayerWiseConfigurations().setIterationCount(nn.getIterationCount() + 1);
+    }
+
+    /**
+     * Performs one data parallel step: hands one minibatch to each replica and fits them all at once.
+     */
+    private boolean trainParallel() {
+        if (workers == null) {
+            workers = new ParameterAveragingWorkers(nn, workerCount, averagingFrequency);
+        }
+        final List<DataSet> minibatches = new ArrayList<>(workerCount);
+        int stepSamples = 0;
+        while (minibatches.size() < workerCount && trainingIterator.hasNext()) {
+            final DataSet minibatch = trainingIterator.next();
+            minibatches.add(minibatch);
+            stepSamples += minibatch.numExamples();
+        }
+        if (!minibatches.isEmpty()) {
+            final long start = metrics == null ? 0 : System.nanoTime();
+            workers.fit(minibatches);
+            if (metrics != null) {
+                metrics.recordFit(System.nanoTime() - start, stepSamples);
+                for (final DataSet minibatch : minibatches) {
+                    recordIngestLag(minibatch);
+                }
+            }
+        }
+        sampleCount += stepSamples;
+        final boolean hasNext = trainingIterator.hasNext();
+        //at the end of the epoch the network should contain everything we learned
+        if (!hasNext) {
+            workers.average();
+        }
+        return hasNext;
+    }
+
+    @Override
+    public INDArray output(final INDArray input) {
+        return nn.output(input, false);
+    }
+
+    @Override
+    public int inputSize() {
+        return nn.layerInputSize(0);
+    }
+
+    @Override
+    public int outputSize() {
+        return nn.layerSize(nn.getnLayers() - 1);
+    }
+
+    @Override
+    public INDArray params() {
+        //replicas of data parallel training only reach the master when averaging
+        if (workers != null) {
+            workers.average();
+        }
+        return nn.params();
+    }
+
+    /**
+     * Exports the current network for allocation free inference in pure Java. The engine only covers the network,
+     * input preprocessing a subclass applies in {@link #output(INDArray)} has to be applied by the caller.
+     * @param quantize true: store the weights as int8, false: as floats
+     */
+    public DenseInferenceEngine exportInferenceEngine(final boolean quantize) {
+        if (workers != null) {
+            workers.average();
+        }
+        return DenseInferenceEngine.of(nn, quantize);
+    }
+
+    @Override
+    public long getSampleCount() {
+        return sampleCount;
     }
 }
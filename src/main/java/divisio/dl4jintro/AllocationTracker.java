@@ -0,0 +1,98 @@
+package divisio.dl4jintro;
+
+import org.bytedeco.javacpp.Pointer;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures memory use of the training thread per iteration: bytes allocated on the JVM heap (as reported by the JVM
+ * for the current thread) and the net growth of the memory JavaCPP has allocated off-heap for ND4J. The latter is
+ * allocations minus frees during the iteration, so it shows leaks and growth, but an iteration that allocates and
+ * frees a lot natively still reads as about zero. For how well workspaces cover the native allocations, the log line
+ * also lists the training thread's workspaces with the bytes they spilled (allocated outside the workspace because
+ * it was too small) and pinned (kept alive beyond their cycle). Only used from the training thread.
+ */
+class AllocationTracker {
+
+    private static final Logger log = LoggerFactory.getLogger(AllocationTracker.class);
+
+    /** the JVM's thread bean, null if it cannot report allocated bytes */
+    private final com.sun.management.ThreadMXBean threadBean;
+    /** number of iterations between log lines */
+    private final int logEveryIterations;
+
+    private long heapBefore;
+    private long offHeapBefore;
+
+    //sums over the current logging window
+    private long iterations = 0;
+    private long heapBytes = 0;
+    private long offHeapGrowth = 0;
+
+    /**
+     * @param logEveryIterations number of iterations to average over before logging
+     */
+    AllocationTracker(final int logEveryIterations) {
+        this.logEveryIterations = logEveryIterations;
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean &&
+            ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported())
+        {
+            threadBean = (com.sun.management.ThreadMXBean) bean;
+            threadBean.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            log.warn("JVM cannot report allocated heap bytes per thread, only tracking off-heap allocations.");
+            threadBean = null;
+        }
+    }
+
+    private long heapAllocated() {
+        return threadBean == null ? 0 : threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Call right before the iteration.
+     */
+    void beforeIteration() {
+        heapBefore = heapAllocated();
+        offHeapBefore = Pointer.totalBytes();
+    }
+
+    /**
+     * Call right after the iteration, logs the averages every couple of iterations.
+     */
+    void afterIteration() {
+        heapBytes += heapAllocated() - heapBefore;
+        offHeapGrowth += Pointer.totalBytes() - offHeapBefore;
+        ++iterations;
+        if (iterations >= logEveryIterations) {
+            log.info("Per iteration (avg. over " + iterations + "): heap allocated " + heapBytes / iterations +
+                     " bytes, off-heap net growth " + offHeapGrowth / iterations + " bytes; workspaces: " +
+                     describeWorkspaces());
+            iterations = 0;
+            heapBytes = 0;
+            offHeapGrowth = 0;
+        }
+    }
+
+    /**
+     * @return size, spilled and pinned bytes of each workspace of the current thread
+     */
+    private static String describeWorkspaces() {
+        final StringBuilder result = new StringBuilder();
+        for (final MemoryWorkspace workspace : Nd4j.getWorkspaceManager().getAllWorkspacesForCurrentThread()) {
+            if (result.length() > 0) {
+                result.append(", ");
+            }
+            result.append(workspace.getId()).append(" (size ").append(workspace.getCurrentSize())
+                  .append(", spilled ").append(workspace.getSpilledSize())
+                  .append(", pinned ").append(workspace.getPinnedSize()).append(')');
+        }
+        return result.length() > 0 ? result.toString() : "none";
+    }
+}
@@ -1,141 +1,384 @@
 package divisio.dl4jintro;
 
-import org.deeplearning4j.datasets.iterator.INDArrayDataSetIterator;
+import org.datavec.api.transform.schema.Schema;
+import org.deeplearning4j.eval.EvaluationBinary;
 import org.deeplearning4j.eval.ROCMultiClass;
 import org.deeplearning4j.nn.api.OptimizationAlgorithm;
-import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
 import org.deeplearning4j.nn.conf.layers.OutputLayer;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.nn.weights.WeightInit;
 import org.nd4j.linalg.activations.Activation;
 import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
-import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.dataset.api.preprocessor.NormalizerStandardize;
 import org.nd4j.linalg.learning.config.Adam;
 import org.nd4j.linalg.lossfunctions.LossFunctions.LossFunction;
-import org.nd4j.linalg.primitives.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Properties;
+import java.util.Random;
 
 /**
- * A DL4J Multilayer trainer that trains a net to AND bits of two inputs together.
+ * A DL4J Multilayer trainer that trains a net to AND bits of two inputs together. With a
+ * {@link BitwiseDataGenerator} it learns AND, OR or XOR of two N bit numbers from generated examples instead.
  */
 public class BinaryAndTrainer extends AbstractDL4JMultilayerTrainer {
 
     private static final Logger log = LoggerFactory.getLogger(BinaryAndTrainer.class);
 
     /**
-     * number of instances per mini-batch
+     * number of thresholds for ROC, a fixed number keeps memory constant no matter how much we validate on
+     */
+    private static final int ROC_THRESHOLD_STEPS = 100;
+
+    /**
+     * number of raw predictions we print during validation
+     */
+    private static final int PRINTED_EXAMPLES = 4;
+
+    /**
+     * number of instances per mini-batch, see {@link PerformanceTuner} to find the fastest one
      */
-    private final int batchSize = 1; //try 1 and 4
+    private final int batchSize;
+
+    /**
+     * learning rate of the Adam updater
+     */
+    private double learningRate = 0.01;
 
     /**
      * Our data for training, will be wrapped in a DataSetIterator
      */
-    private List<Pair<INDArray, INDArray>> trainingData = null;
+    private ContiguousDataSet trainingData = null;
 
     /**
      * Data for validating, separately created from training data, for large bitCounts there should be little to
      * no overlap with the training data.
      */
-    private List<Pair<INDArray, INDArray>> validationData = null;
+    private ContiguousDataSet validationData = null;
+
+    /**
+     * row periodic validations on a subsample start at, they never overlap, so no synchronization is needed
+     */
+    private int periodicValidationRow = 0;
+
+    /**
+     * number of instances per forward pass during validation
+     */
+    private int validationBatchSize = 1024;
+
+    /**
+     * optional file in the binary data set format to train from, null to train from data built in memory
+     */
+    private File trainingDataFile = null;
+
+    /**
+     * optional folder with shards written by {@link SparkPreprocessor} to train from, null to train from other data
+     */
+    private File trainingShardFolder = null;
+
+    /**
+     * normalizes data that did not go through preprocessing like the training shards, null if we do not normalize
+     */
+    private NormalizerStandardize normalizer = null;
+
+    /**
+     * optional generator for N bit training data, null to train on the four combinations of two bits
+     */
+    private BitwiseDataGenerator generator = null;
+
+    /**
+     * number of generated examples per epoch, used with the generator
+     */
+    private long generatedExamplesPerEpoch = 0;
+
+    /**
+     * number of generated validation examples, used with the generator
+     */
+    private int generatedValidationExamples = 0;
 
     public BinaryAndTrainer() {
+        this(1);
+    }
+
+    /**
+     * @param batchSize number of instances per mini-batch
+     */
+    public BinaryAndTrainer(final int batchSize) {
         super(1);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Lets training read its data from a memory mapped file instead of the heap. If the file does not exist yet,
+     * it is created from the data built by {@link #buildData()}.
+     * @param trainingDataFile a file in the {@link BinaryDataSetFile} format, null to train from memory
+     */
+    public void setTrainingDataFile(final File trainingDataFile) {
+        this.trainingDataFile = trainingDataFile;
+    }
+
+    /**
+     * Lets training read preprocessed shards. Validation data and inference inputs are normalized with the
+     * normalizer stored next to the shards.
+     * @param trainingShardFolder folder written by {@link SparkPreprocessor}, null to train from other data
+     */
+    public void setTrainingShards(final File trainingShardFolder) {
+        this.trainingShardFolder = trainingShardFolder;
+        this.normalizer = trainingShardFolder == null ? null : SparkPreprocessor.loadNormalizer(trainingShardFolder);
+    }
+
+    /**
+     * Lets training and validation use generated examples for N bit numbers. Training examples are generated while
+     * training, validation examples are generated once with a different seed.
+     * @param generator generates training examples, null to train on the four combinations of two bits
+     * @param examplesPerEpoch number of training examples per epoch
+     * @param validationExamples number of validation examples
+     */
+    public void setGenerator(final BitwiseDataGenerator generator, final long examplesPerEpoch,
+                             final int validationExamples) {
+        this.generator = generator;
+        this.generatedExamplesPerEpoch = examplesPerEpoch;
+        this.generatedValidationExamples = validationExamples;
+    }
+
+    /**
+     * @param validationBatchSize number of instances per forward pass during validation
+     */
+    public void setValidationBatchSize(final int validationBatchSize) {
+        this.validationBatchSize = validationBatchSize;
+    }
+
+    /**
+     * @param learningRate learning rate of the Adam updater, applies to networks built afterwards
+     */
+    public void setLearningRate(final double learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    @Override
+    protected Properties buildSaveMetadata() {
+        final Properties metadata = super.buildSaveMetadata();
+        metadata.setProperty(METADATA_BATCH_SIZE, Integer.toString(batchSize));
+        return metadata;
     }
 
     @Override
     protected MultiLayerNetwork buildNetwork() {
-        final MultiLayerConfiguration nnConf = new NeuralNetConfiguration.Builder()
+        final int bitCount = generator == null ? 1 : generator.getBitCount();
+        final NeuralNetConfiguration.ListBuilder layers = new NeuralNetConfiguration.Builder()
             .weightInit(WeightInit.XAVIER)
             .optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT)
-            .updater(Adam.builder().learningRate(0.01).build())
+            .updater(Adam.builder().learningRate(learningRate).build())
             .activation(Activation.RELU)
-            .list(
-                new OutputLayer.Builder(LossFunction.L2).nIn(2).nOut(1)
-                        .activation(Activation.SIGMOID).build()
-            )
-            .build();
-        return new MultiLayerNetwork(nnConf);
+            .list();
+        final int nIn = 2 * bitCount;
+        if (generator != null && generator.getOperation() == BitwiseDataGenerator.Operation.XOR) {
+            //XOR is not linearly separable, it needs two hidden units per bit
+            layers.layer(new DenseLayer.Builder().nIn(nIn).nOut(2 * bitCount).build());
+        }
+        layers.layer(new OutputLayer.Builder(LossFunction.L2).nIn(nIn).nOut(bitCount)
+                         .activation(Activation.SIGMOID).build());
+        return new MultiLayerNetwork(layers.build());
     }
 
     /**
-     * Builds an AND test instance with the given boolean values
+     * Writes an AND test instance with the given boolean values into the given row of the feature & label arrays.
      * @param bitA the first input
      * @param bitB the second input
-     * @return a test instance with two sets of bits as input and two sets of bits as output
+     * @param features row major feature array, two values per row
+     * @param labels row major label array, one value per row
+     * @param row the row to write
      */
-    public Pair<INDArray, INDArray> buildInstance(final boolean bitA, final boolean bitB) {
-        final double[] input = new double[2];
-        final double[] labels = new double[1];
-        for (int idx = 0; idx < labels.length; ++idx) {
+    public void buildInstance(final boolean bitA, final boolean bitB,
+                              final float[] features, final float[] labels, final int row) {
+        final int labelCount = 1;
+        for (int idx = 0; idx < labelCount; ++idx) {
             final boolean result = bitA && bitB;
-            input[idx * 2]     = bitA   ? 1.0 : 0.0;
-            input[idx * 2 + 1] = bitB   ? 1.0 : 0.0;
-            labels[idx]        = result ? 1.0 : 0.0;
+            features[(row * labelCount + idx) * 2]     = bitA   ? 1.0f : 0.0f;
+            features[(row * labelCount + idx) * 2 + 1] = bitB   ? 1.0f : 0.0f;
+            labels[row * labelCount + idx]             = result ? 1.0f : 0.0f;
         }
-        return Pair.create(
-            Nd4j.create(input),
-            Nd4j.create(labels)
-        );
     }
 
     /**
      * Builds all combinations of instances*
-     * @return a list with instances, never null
+     * @return a data set with all instances, never null
      */
-    public List<Pair<INDArray, INDArray>> buildData() {
-        final ArrayList<Pair<INDArray, INDArray>> result = new ArrayList<>(4);
+    public ContiguousDataSet buildData() {
+        final int rows = 4;
+        final float[] features = new float[rows * 2];
+        final float[] labels = new float[rows];
 
+        int row = 0;
         for (final boolean bitA : new boolean[]{true, false}) {
             for (final boolean bitB : new boolean[]{true, false}) {
-                result.add(buildInstance(bitA, bitB));
+                buildInstance(bitA, bitB, features, labels, row);
+                ++row;
             }
         }
 
-        return result;
+        return ContiguousDataSet.fromRowMajor(features, 2, labels, 1);
+    }
+
+    /**
+     * @return the schema of the raw records written by {@link #writeRawData(File, int)}
+     */
+    public Schema buildRawSchema() {
+        return new Schema.Builder()
+            .addColumnsDouble("bitA", "bitB")
+            .addColumnDouble("and")
+            .build();
+    }
+
+    /**
+     * Writes raw records as CSV, e.g. as input for {@link SparkPreprocessor}.
+     * @param csvFile the file to write
+     * @param repetitions how often all combinations are written
+     */
+    public void writeRawData(final File csvFile, final int repetitions) {
+        final ContiguousDataSet data = buildData();
+        final INDArray features = data.getFeatures();
+        final INDArray labels = data.getLabels();
+        try (final PrintWriter out = new PrintWriter(csvFile, "UTF-8")) {
+            for (int repetition = 0; repetition < repetitions; ++repetition) {
+                for (int row = 0; row < features.rows(); ++row) {
+                    out.println(features.getDouble(row, 0) + "," + features.getDouble(row, 1) + "," +
+                                labels.getDouble(row, 0));
+                }
+            }
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not write raw data to: " + csvFile, e);
+        }
     }
 
     @Override
     protected DataSetIterator buildIterator() {
+        if (trainingShardFolder != null) {
+            //rows are shuffled during preprocessing, only the shard order changes per epoch
+            return new ShardDataSetIterator(trainingShardFolder, batchSize, new Random());
+        }
+        if (trainingDataFile != null) {
+            if (!trainingDataFile.exists()) {
+                log.info("Writing training data to: " + trainingDataFile);
+                final DataSetIterator source = generator == null
+                                               ? buildData().iterator(batchSize, null)
+                                               : generator.iterator(batchSize, generatedExamplesPerEpoch);
+                BinaryDataSetFile.write(source, trainingDataFile, getPrecision().fileDataType());
+            }
+            return new MappedDataSetIterator(trainingDataFile, batchSize, new Random());
+        }
+        if (generator != null) {
+            //generated examples are random already, no shuffling needed
+            return generator.iterator(batchSize, generatedExamplesPerEpoch);
+        }
         if (trainingData == null) {
             trainingData = buildData();
-            //shuffle the data, so we get a different order between resumed trainings - helps a bit escaping
-            //when the network is "stuck"
-            Collections.shuffle(trainingData);
         }
-        return new INDArrayDataSetIterator(trainingData, batchSize);
+        //shuffle the examples on every epoch, so we get a different order between resumed trainings - helps
+        //a bit escaping when the network is "stuck"
+        return trainingData.iterator(batchSize, new Random());
     }
 
+    /**
+     * Streamed examples are raw, like validation data, so they are normalized like the training shards were.
+     */
     @Override
-    public void validate() {
+    protected DataSetIterator prepareTrainingSource(final DataSetIterator trainingSource) {
+        if (normalizer != null) {
+            trainingSource.setPreProcessor(normalizer);
+        }
+        return trainingSource;
+    }
+
+    /**
+     * @param firstRow validation example to start at, iteration wraps around to the examples before it
+     * @return a new iterator over the validation data, in large batches
+     */
+    protected DataSetIterator buildValidationIterator(final int firstRow) {
         if (validationData == null) {
-            validationData = buildData();
+            //a different seed keeps generated validation examples apart from the training examples
+            validationData = generator == null ? buildData()
+                                               : generator.withSeed(~generator.getSeed())
+                                                          .generate(0, generatedValidationExamples);
         }
+        final DataSetIterator result = validationData.iterator(validationBatchSize, firstRow);
+        if (normalizer != null) {
+            result.setPreProcessor(normalizer);
+        }
+        return result;
+    }
 
-        final ROCMultiClass evaluationResult =
-                nn.evaluateROCMultiClass(new INDArrayDataSetIterator(validationData, 1));
+    @Override
+    public INDArray output(final INDArray input) {
+        if (normalizer == null) {
+            return super.output(input);
+        }
+        final INDArray normalized = input.dup();
+        normalizer.transform(normalized);
+        return super.output(normalized);
+    }
 
-        log.info("\n" + evaluationResult.stats());
+    @Override
+    protected double validate(final MultiLayerNetwork network, final boolean full) {
+        final long maxSamples = full || validationMaxSamples <= 0 ? Long.MAX_VALUE : validationMaxSamples;
+        final long deadline = full || validationMaxMillis <= 0 ? Long.MAX_VALUE
+                                                               : System.currentTimeMillis() + validationMaxMillis;
 
-        //manually print a couple of examples
-        final int maxExamples = 4;
-        int counter = 0;
-        log.info("\n Raw outputs: ");
-        for (final Pair<INDArray, INDArray> inputOutput : validationData) {
-            final INDArray input  = inputOutput.getFirst();
-            final INDArray output = inputOutput.getSecond();
-            final INDArray prediction = nn.output(input);
-            log.info(input + " -> " + prediction + ", training data: " + output);
-
-            ++counter;
-            if (counter >= maxExamples) {
-                break;
+        //all metrics are updated batch by batch, so we never need all validation data at once
+        final ROCMultiClass roc = new ROCMultiClass(ROC_THRESHOLD_STEPS);
+        final EvaluationBinary evaluation = new EvaluationBinary();
+        double squaredErrorSum = 0.0;
+        long sampleCount = 0;
+        long valueCount = 0;
+        DataSet printedExamples = null;
+        INDArray printedPredictions = null;
+
+        //periodic validations start where the last one stopped, so over time the subsamples cover all data
+        final int firstRow = full ? 0 : periodicValidationRow;
+        final DataSetIterator iterator = buildValidationIterator(firstRow);
+        while (iterator.hasNext() && sampleCount < maxSamples && System.currentTimeMillis() < deadline) {
+            final DataSet batch = iterator.next();
+            final INDArray predictions = network.output(batch.getFeatures(), false);
+            roc.eval(batch.getLabels(), predictions);
+            evaluation.eval(batch.getLabels(), predictions);
+            squaredErrorSum += predictions.squaredDistance(batch.getLabels());
+            sampleCount += batch.numExamples();
+            valueCount += batch.getLabels().length();
+            //keep a couple of examples from the same pass to print them
+            if (printedExamples == null) {
+                printedExamples = batch;
+                printedPredictions = predictions;
             }
         }
+        if (sampleCount == 0) {
+            log.warn("No validation data.");
+            return Double.NaN;
+        }
+        if (!full) {
+            periodicValidationRow = (int) ((firstRow + sampleCount) % validationData.numExamples());
+        }
+        final double loss = squaredErrorSum / valueCount;
+
+        log.info("\n" + roc.stats());
+        log.info("\n" + evaluation.stats());
+        log.info("Validated on " + sampleCount + " examples" + (full ? "" : " (periodic)") + ", mean squared error: " + loss);
+
+        //print a couple of examples
+        final int maxExamples = Math.min(PRINTED_EXAMPLES, printedExamples.numExamples());
+        log.info("\n Raw outputs: ");
+        final INDArray inputs = printedExamples.getFeatures();
+        final INDArray outputs = printedExamples.getLabels();
+        for (int row = 0; row < maxExamples; ++row) {
+            log.info(inputs.getRow(row) + " -> " + printedPredictions.getRow(row) + ", training data: " + outputs.getRow(row));
+        }
+        return loss;
     }
 }
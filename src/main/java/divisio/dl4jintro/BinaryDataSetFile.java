@@ -0,0 +1,249 @@
+package divisio.dl4jintro;
+
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Compact binary on-disk format for training data that can be memory mapped, see {@link MappedDataSetIterator}.
+ * Layout, all values little endian:
+ * <pre>
+ * header (32 bytes): magic (int), version (int), bytes per value (int), rows (long), feature count (int),
+ *                    label count (int), reserved (int)
+ * features section:  rows x feature count values, row major
+ * labels section:    rows x label count values, row major
+ * </pre>
+ * Values are either 4 byte floats or 8 byte doubles. Keeping features and labels in separate sections means a
+ * block of consecutive rows can be read with one bulk copy per section.
+ */
+public final class BinaryDataSetFile {
+
+    /** "DL4D" */
+    static final int MAGIC = 0x444C3444;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+
+    /** size of the buffer used while writing */
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+
+    private BinaryDataSetFile() { /* static utility */ }
+
+    /**
+     * The header of a binary data set file.
+     */
+    public static final class Header {
+        /** 4 for float, 8 for double */
+        final int bytesPerValue;
+        final long rows;
+        final int featureCount;
+        final int labelCount;
+
+        Header(final int bytesPerValue, final long rows, final int featureCount, final int labelCount) {
+            this.bytesPerValue = bytesPerValue;
+            this.rows = rows;
+            this.featureCount = featureCount;
+            this.labelCount = labelCount;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public int getFeatureCount() {
+            return featureCount;
+        }
+
+        public int getLabelCount() {
+            return labelCount;
+        }
+
+        public DataBuffer.Type getDataType() {
+            return bytesPerValue == 8 ? DataBuffer.Type.DOUBLE : DataBuffer.Type.FLOAT;
+        }
+
+        /**
+         * @return offset of the first feature value in the file
+         */
+        long featuresOffset() {
+            return HEADER_BYTES;
+        }
+
+        /**
+         * @return offset of the first label value in the file
+         */
+        long labelsOffset() {
+            return HEADER_BYTES + rows * featureCount * bytesPerValue;
+        }
+
+        void writeTo(final ByteBuffer buffer) {
+            buffer.putInt(MAGIC)
+                  .putInt(VERSION)
+                  .putInt(bytesPerValue)
+                  .putLong(rows)
+                  .putInt(featureCount)
+                  .putInt(labelCount)
+                  .putInt(0);
+        }
+
+        static Header readFrom(final ByteBuffer buffer, final File file) {
+            final int magic = buffer.getInt();
+            final int version = buffer.getInt();
+            if (magic != MAGIC || version != VERSION) {
+                throw new IllegalArgumentException("Not a binary data set file (version " + VERSION + "): " + file);
+            }
+            final int bytesPerValue = buffer.getInt();
+            final long rows = buffer.getLong();
+            final int featureCount = buffer.getInt();
+            final int labelCount = buffer.getInt();
+            if (bytesPerValue != 4 && bytesPerValue != 8) {
+                throw new IllegalArgumentException("Unsupported value size " + bytesPerValue + " in " + file);
+            }
+            return new Header(bytesPerValue, rows, featureCount, labelCount);
+        }
+    }
+
+    /**
+     * Reads the header of the given file.
+     */
+    public static Header readHeader(final File file) {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IllegalArgumentException("File too short for a binary data set header: " + file);
+                }
+            }
+            buffer.flip();
+            return Header.readFrom(buffer, file);
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not read binary data set header from: " + file, e);
+        }
+    }
+
+    /**
+     * Converts all data of the given iterator into a binary data set file. Reads the iterator once from its
+     * current position. The file is written to a temporary file first and renamed when complete.
+     * @param source the data to convert
+     * @param target the file to write
+     * @param dataType {@link DataBuffer.Type#FLOAT} or {@link DataBuffer.Type#DOUBLE}
+     * @return the header of the written file
+     */
+    public static Header write(final DataSetIterator source, final File target, final DataBuffer.Type dataType) {
+        final int bytesPerValue;
+        switch (dataType) {
+            case FLOAT:  bytesPerValue = 4; break;
+            case DOUBLE: bytesPerValue = 8; break;
+            default: throw new IllegalArgumentException("Unsupported data type for binary data sets: " + dataType);
+        }
+        final File tempFile = new File(target.getAbsoluteFile().getParentFile(), target.getName() + ".tmp");
+        final File labelsFile = new File(target.getAbsoluteFile().getParentFile(), target.getName() + ".labels.tmp");
+        try {
+            long rows = 0;
+            int featureCount = -1;
+            int labelCount = -1;
+            //features go to the final file right after the header, labels to a side file that is appended later
+            try (final SectionWriter features = new SectionWriter(tempFile, HEADER_BYTES, bytesPerValue);
+                 final SectionWriter labels = new SectionWriter(labelsFile, 0, bytesPerValue))
+            {
+                while (source.hasNext()) {
+                    final DataSet minibatch = source.next();
+                    if (featureCount < 0) {
+                        featureCount = minibatch.getFeatures().columns();
+                        labelCount = minibatch.getLabels().columns();
+                    }
+                    features.write(minibatch.getFeatures());
+                    labels.write(minibatch.getLabels());
+                    rows += minibatch.numExamples();
+                }
+            }
+            final Header header = new Header(bytesPerValue, rows, Math.max(featureCount, 0), Math.max(labelCount, 0));
+            try (final FileChannel out = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE);
+                 final FileChannel labelsIn = FileChannel.open(labelsFile.toPath(), StandardOpenOption.READ))
+            {
+                final ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                header.writeTo(headerBuffer);
+                headerBuffer.flip();
+                out.write(headerBuffer, 0);
+                //append the labels section
+                out.position(out.size());
+                long transferred = 0;
+                final long labelBytes = labelsIn.size();
+                while (transferred < labelBytes) {
+                    transferred += labelsIn.transferTo(transferred, labelBytes - transferred, out);
+                }
+            }
+            Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return header;
+        } catch (final IOException e) {
+            //noinspection ResultOfMethodCallIgnored (best effort cleanup)
+            tempFile.delete();
+            throw new RuntimeException("Could not write binary data set file: " + target, e);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored (best effort cleanup)
+            labelsFile.delete();
+        }
+    }
+
+    /**
+     * Buffered writer for one section of values.
+     */
+    private static class SectionWriter implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final int bytesPerValue;
+
+        SectionWriter(final File file, final long offset, final int bytesPerValue) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                            StandardOpenOption.TRUNCATE_EXISTING);
+            this.channel.position(offset);
+            this.buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            this.bytesPerValue = bytesPerValue;
+        }
+
+        /**
+         * Appends the values of the given matrix in row major order.
+         */
+        void write(final INDArray matrix) throws IOException {
+            //copy into a fresh row major array, views would otherwise expose their whole backing buffer
+            final DataBuffer data = matrix.dup('c').data();
+            final long length = matrix.length();
+            for (long idx = 0; idx < length; ++idx) {
+                if (buffer.remaining() < bytesPerValue) {
+                    flush();
+                }
+                if (bytesPerValue == 8) {
+                    buffer.putDouble(data.getDouble(idx));
+                } else {
+                    buffer.putFloat(data.getFloat(idx));
+                }
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package divisio.dl4jintro;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Generates random examples for a bitwise operation on two N bit numbers: features are the N bits of the first
+ * number followed by the N bits of the second, labels are the N bits of the result. With one bit and AND, this is
+ * the layout {@link BinaryAndTrainer#buildInstance(boolean, boolean, float[], float[], int)} writes.
+ * <p>
+ * Examples are numbered, and example i is always the same for the same seed: the examples are split into chunks of
+ * fixed size with a random generator of their own per chunk. Chunks are generated in parallel, each one straight into
+ * its rows of one bulk array per data set, and the operation is applied to 64 bits at once.
+ */
+public class BitwiseDataGenerator {
+
+    /**
+     * The bitwise operation we learn, applied to 64 bits at once.
+     */
+    public enum Operation {
+        AND {
+            @Override
+            long apply(final long a, final long b) { return a & b; }
+        },
+        OR {
+            @Override
+            long apply(final long a, final long b) { return a | b; }
+        },
+        XOR {
+            @Override
+            long apply(final long a, final long b) { return a ^ b; }
+        };
+
+        abstract long apply(final long a, final long b);
+    }
+
+    /** spreads seeds apart, so the chunk streams of different seeds do not overlap */
+    private static final long SEED_MULTIPLIER = 0xBF58476D1CE4E5B9L;
+
+    private final Operation operation;
+    private final int bitCount;
+    private final long seed;
+    private final int chunkSize;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param operation the operation that computes the labels
+     * @param bitCount number of bits per number, at least 1
+     * @param seed the data set's seed, the same seed generates the same examples
+     * @param chunkSize number of examples per random generator, also the unit of work per thread
+     * @param threads number of threads generating chunks
+     */
+    public BitwiseDataGenerator(final Operation operation, final int bitCount, final long seed,
+                                final int chunkSize, final int threads) {
+        if (bitCount < 1 || chunkSize < 1 || threads < 1) {
+            throw new IllegalArgumentException("Bit count, chunk size and threads must be positive, got: " +
+                                               bitCount + ", " + chunkSize + ", " + threads);
+        }
+        this.operation = operation;
+        this.bitCount = bitCount;
+        this.seed = seed;
+        this.chunkSize = chunkSize;
+        //fork join workers are daemons and time out when idle, so the generator needs no shutdown
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    /**
+     * @return a generator for the same operation with another seed, e.g. for validation data
+     */
+    public BitwiseDataGenerator withSeed(final long seed) {
+        return new BitwiseDataGenerator(operation, bitCount, seed, chunkSize, pool.getParallelism());
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getBitCount() {
+        return bitCount;
+    }
+
+    /**
+     * @return number of features per example, two per bit
+     */
+    public int featureCount() {
+        return 2 * bitCount;
+    }
+
+    /**
+     * @return number of labels per example, one per bit
+     */
+    public int labelCount() {
+        return bitCount;
+    }
+
+    /**
+     * @return number of examples generated per chunk and thread
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return number of threads generating chunks
+     */
+    public int getThreads() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Generates the given range of examples.
+     * @param firstExample number of the first example
+     * @param rows number of examples
+     * @return the examples, in one contiguous matrix for features & labels each
+     */
+    public ContiguousDataSet generate(final long firstExample, final int rows) {
+        if ((long) rows * featureCount() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Cannot generate " + rows + " examples of " + featureCount() +
+                                               " features at once, split them up");
+        }
+        final float[] features = new float[rows * featureCount()];
+        final float[] labels = new float[rows * labelCount()];
+        //one task per chunk the range touches, each writes its own rows only
+        final List<Callable<Void>> tasks = new ArrayList<>();
+        long example = firstExample;
+        final long end = firstExample + rows;
+        while (example < end) {
+            final long chunk = example / chunkSize;
+            final int chunkOffset = (int) (example - chunk * chunkSize);
+            final int chunkRows = (int) Math.min(chunkSize - chunkOffset, end - example);
+            final int row = (int) (example - firstExample);
+            tasks.add(() -> {
+                fillChunk(chunk, chunkOffset, chunkRows, features, labels, row);
+                return null;
+            });
+            example += chunkRows;
+        }
+        try {
+            for (final Future<Void> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while generating data", ie);
+        } catch (final ExecutionException e) {
+            throw new RuntimeException("Could not generate data", e.getCause());
+        }
+        return ContiguousDataSet.fromRowMajor(features, featureCount(), labels, labelCount());
+    }
+
+    /**
+     * Writes examples of one chunk into the bulk arrays.
+     * @param chunk number of the chunk
+     * @param chunkOffset first example to write, relative to the start of the chunk
+     * @param rows number of examples to write
+     * @param firstRow row of the bulk arrays to write the first example to
+     */
+    private void fillChunk(final long chunk, final int chunkOffset, final int rows,
+                           final float[] features, final float[] labels, final int firstRow) {
+        final SplittableRandom random = new SplittableRandom(seed * SEED_MULTIPLIER + chunk);
+        final int words = (bitCount + 63) / 64;
+        //skip the examples of the chunk before our range, two random words per 64 bits
+        for (long skip = (long) chunkOffset * words * 2; skip > 0; --skip) {
+            random.nextLong();
+        }
+        final int featureCount = featureCount();
+        for (int row = firstRow; row < firstRow + rows; ++row) {
+            final int featureBase = row * featureCount;
+            final int labelBase = row * bitCount;
+            for (int word = 0; word < words; ++word) {
+                final long a = random.nextLong();
+                final long b = random.nextLong();
+                final long result = operation.apply(a, b);
+                final int bitBase = word * 64;
+                final int bits = Math.min(64, bitCount - bitBase);
+                for (int bit = 0; bit < bits; ++bit) {
+                    features[featureBase + bitBase + bit]            = (a >>> bit) & 1L;
+                    features[featureBase + bitCount + bitBase + bit] = (b >>> bit) & 1L;
+                    labels[labelBase + bitBase + bit]                = (result >>> bit) & 1L;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param batchSize number of examples per minibatch
+     * @param examplesPerEpoch number of examples per epoch, every epoch sees the same examples
+     * @return an iterator generating the examples while training, one block of chunks per thread at a time
+     */
+    public BitwiseDataSetIterator iterator(final int batchSize, final long examplesPerEpoch) {
+        return new BitwiseDataSetIterator(this, batchSize, examplesPerEpoch);
+    }
+}
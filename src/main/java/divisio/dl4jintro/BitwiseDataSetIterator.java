@@ -0,0 +1,134 @@
+package divisio.dl4jintro;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams the examples of a {@link BitwiseDataGenerator} as minibatches without keeping an epoch in memory: whenever
+ * the current block is used up, the next block of one chunk per generator thread is generated in parallel, and
+ * minibatches are handed out as views of its rows. Wrapped in a {@link PrefetchingDataSetIterator}, generation
+ * overlaps with training.
+ */
+public class BitwiseDataSetIterator implements DataSetIterator {
+
+    private final BitwiseDataGenerator generator;
+    private final int batchSize;
+    private final long examplesPerEpoch;
+    /** number of examples per generated block, a multiple of the batch size */
+    private final int blockSize;
+
+    /** the current block, null if we need a new one */
+    private ContiguousDataSet block;
+    /** number of the first example of the current block */
+    private long blockStart;
+    /** number of the next example we hand out */
+    private long cursor = 0;
+    private DataSetPreProcessor preProcessor;
+
+    /**
+     * @param generator generates the examples
+     * @param batchSize number of examples per minibatch
+     * @param examplesPerEpoch number of examples per epoch, every epoch sees the same examples
+     */
+    public BitwiseDataSetIterator(final BitwiseDataGenerator generator, final int batchSize,
+                                  final long examplesPerEpoch) {
+        if (batchSize < 1 || examplesPerEpoch < 1) {
+            throw new IllegalArgumentException("Batch size and examples per epoch must be positive, got: " +
+                                               batchSize + ", " + examplesPerEpoch);
+        }
+        this.generator = generator;
+        this.batchSize = batchSize;
+        this.examplesPerEpoch = examplesPerEpoch;
+        final long perThreads = (long) generator.getChunkSize() * generator.getThreads();
+        final long batches = Math.max(1, perThreads / batchSize);
+        this.blockSize = (int) Math.min(batches * batchSize, Integer.MAX_VALUE / generator.featureCount());
+    }
+
+    @Override
+    public boolean hasNext() {
+        return cursor < examplesPerEpoch;
+    }
+
+    @Override
+    public DataSet next() {
+        return next(batchSize);
+    }
+
+    /**
+     * Takes up to num examples from the current position on. If they do not fit into the current block, a new block
+     * starting at the current position is generated, large enough to hold them.
+     */
+    @Override
+    public DataSet next(final int num) {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final int rows = (int) Math.min(num, examplesPerEpoch - cursor);
+        if (block == null || cursor + rows > blockStart + block.numExamples()) {
+            blockStart = cursor;
+            block = generator.generate(blockStart, (int) Math.min(Math.max(blockSize, rows),
+                                                                  examplesPerEpoch - blockStart));
+        }
+        final int fromRow = (int) (cursor - blockStart);
+        final int toRow = fromRow + rows;
+        cursor += rows;
+        if (preProcessor == null) {
+            return new DataSet(block.getFeatures(fromRow, toRow), block.getLabels(fromRow, toRow));
+        }
+        //pre processors work in place, so they must not see the views of our block
+        final DataSet result = new DataSet(block.getFeatures(fromRow, toRow).dup(), block.getLabels(fromRow, toRow).dup());
+        preProcessor.preProcess(result);
+        return result;
+    }
+
+    @Override
+    public int inputColumns() {
+        return generator.featureCount();
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return generator.labelCount();
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        cursor = 0;
+        //the first block is generated again lazily, no need to keep an old one around
+        block = null;
+    }
+
+    @Override
+    public int batch() {
+        return batchSize;
+    }
+
+    @Override
+    public void setPreProcessor(final DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return null;
+    }
+}
@@ -0,0 +1,385 @@
+package divisio.dl4jintro;
+
+import org.apache.commons.io.FileUtils;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Stores checkpoints of a MultiLayerNetwork in the working folder, one subfolder per checkpoint:
+ * <pre>
+ * configuration.json   the network configuration, including epoch & iteration count
+ * parameters.bin       the flattened parameters as raw values
+ * updater.bin          the flattened updater state as raw values, missing for parameter-only checkpoints
+ * metadata.properties  trainer settings
+ * </pre>
+ * Raw value files have a 24 byte header (magic, version, bytes per value, reserved as ints, value count as long,
+ * all little endian) followed by the values, so loading them is a memory mapping and one bulk copy between the
+ * mapping and the array's native buffer instead of unzipping and deserializing. Only values stored in another
+ * precision than the array's, e.g. half precision parameters, are converted through a heap array.
+ * <p>
+ * A small manifest file in the working folder lists all checkpoints and records the latest one, the latest full
+ * one and the one with the best validation score. Checkpoint folders are written under a temporary name and renamed
+ * when complete, the manifest is replaced atomically afterwards, so the manifest only ever points to complete
+ * checkpoints and finding the latest checkpoint never has to list the working folder.
+ * <p>
+ * Not thread safe, all writes must happen on the same thread.
+ */
+class CheckpointStore {
+
+    private static final Logger log = LoggerFactory.getLogger(CheckpointStore.class);
+
+    static final String MANIFEST_FILE = "checkpoints.manifest";
+    static final String CONFIGURATION_FILE = "configuration.json";
+    static final String PARAMETERS_FILE = "parameters.bin";
+    static final String UPDATER_FILE = "updater.bin";
+    static final String METADATA_FILE = "metadata.properties";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    //keys of the manifest
+    private static final String MANIFEST_LATEST = "latest";
+    private static final String MANIFEST_LATEST_FULL = "latestFull";
+    private static final String MANIFEST_EPOCH = "epoch";
+    private static final String MANIFEST_ITERATION = "iteration";
+    private static final String MANIFEST_CHECKPOINTS = "checkpoints";
+    private static final String MANIFEST_BEST = "best";
+    private static final String MANIFEST_BEST_SCORE = "bestScore";
+
+    /** "DL4P" */
+    static final int MAGIC = 0x444C3450;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 24;
+
+    private final File workingFolder;
+
+    /**
+     * @param workingFolder the folder holding the checkpoints and the manifest
+     */
+    CheckpointStore(final File workingFolder) {
+        this.workingFolder = workingFolder;
+    }
+
+    /**
+     * @return true if the given file is a checkpoint folder written by this class
+     */
+    static boolean isCheckpoint(final File file) {
+        return file.isDirectory() && new File(file, CONFIGURATION_FILE).isFile();
+    }
+
+    /**
+     * @return true if the given checkpoint folder also holds the updater state
+     */
+    static boolean isFull(final File checkpoint) {
+        return new File(checkpoint, UPDATER_FILE).isFile();
+    }
+
+    /**
+     * Writes a new checkpoint and makes it the latest one in the manifest.
+     * @param name name of the checkpoint folder, must be unique in the working folder
+     * @param configuration the network configuration
+     * @param parameters the flattened network parameters
+     * @param updaterState the flattened updater state, null for a parameter-only checkpoint
+     * @param metadata trainer settings to store along with the checkpoint
+     * @return the checkpoint folder
+     */
+    File write(final String name, final MultiLayerConfiguration configuration, final INDArray parameters,
+               final INDArray updaterState, final Properties metadata) {
+        final File checkpoint = new File(workingFolder, name);
+        final File tempFolder = new File(workingFolder, name + TEMP_SUFFIX);
+        try {
+            Files.createDirectories(tempFolder.toPath());
+            Files.write(new File(tempFolder, CONFIGURATION_FILE).toPath(),
+                        configuration.toJson().getBytes(StandardCharsets.UTF_8));
+            writeValues(parameters, new File(tempFolder, PARAMETERS_FILE));
+            if (updaterState != null) {
+                writeValues(updaterState, new File(tempFolder, UPDATER_FILE));
+            }
+            try (final OutputStream out = new FileOutputStream(new File(tempFolder, METADATA_FILE))) {
+                metadata.store(out, "trainer settings of " + name);
+            }
+            Files.move(tempFolder.toPath(), checkpoint.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException e) {
+            FileUtils.deleteQuietly(tempFolder);
+            throw new RuntimeException("Could not write checkpoint: " + checkpoint, e);
+        }
+        //only now that the checkpoint is complete, point the manifest to it
+        final Properties manifest = readManifest();
+        final List<String> checkpoints = checkpointNames(manifest);
+        checkpoints.add(name);
+        manifest.setProperty(MANIFEST_CHECKPOINTS, String.join(",", checkpoints));
+        manifest.setProperty(MANIFEST_LATEST, name);
+        if (updaterState != null) {
+            manifest.setProperty(MANIFEST_LATEST_FULL, name);
+        }
+        manifest.setProperty(MANIFEST_EPOCH, Integer.toString(configuration.getEpochCount()));
+        manifest.setProperty(MANIFEST_ITERATION, Integer.toString(configuration.getIterationCount()));
+        writeManifest(manifest);
+        return checkpoint;
+    }
+
+    /**
+     * Lists checkpoint folders that are complete already, e.g. copied into the working folder, in the manifest as
+     * the oldest checkpoints. The latest checkpoint does not change.
+     * @param names names of the checkpoint folders, oldest first
+     */
+    void register(final List<String> names) {
+        final Properties manifest = readManifest();
+        final List<String> checkpoints = new ArrayList<>(names);
+        checkpoints.addAll(checkpointNames(manifest));
+        manifest.setProperty(MANIFEST_CHECKPOINTS, String.join(",", checkpoints));
+        writeManifest(manifest);
+    }
+
+    /**
+     * @return the latest checkpoint according to the manifest, null if there is no manifest or it points nowhere
+     */
+    File latest() {
+        final String name = readManifest().getProperty(MANIFEST_LATEST);
+        if (name == null) { return null; }
+        final File checkpoint = new File(workingFolder, name);
+        return isCheckpoint(checkpoint) ? checkpoint : null;
+    }
+
+    /**
+     * @return the latest full checkpoint according to the manifest, null if there is none
+     */
+    File latestFull() {
+        final String name = readManifest().getProperty(MANIFEST_LATEST_FULL);
+        if (name == null) { return null; }
+        final File checkpoint = new File(workingFolder, name);
+        return isCheckpoint(checkpoint) ? checkpoint : null;
+    }
+
+    /**
+     * Records the given, already written checkpoint as the one with the best validation score.
+     * @param name name of the checkpoint folder
+     * @param score its validation score, lower is better
+     */
+    void markBest(final String name, final double score) {
+        final Properties manifest = readManifest();
+        manifest.setProperty(MANIFEST_BEST, name);
+        manifest.setProperty(MANIFEST_BEST_SCORE, Double.toString(score));
+        writeManifest(manifest);
+    }
+
+    /**
+     * @return the checkpoint with the best validation score according to the manifest, null if there is none
+     */
+    File best() {
+        final String name = readManifest().getProperty(MANIFEST_BEST);
+        if (name == null) { return null; }
+        final File checkpoint = new File(workingFolder, name);
+        return isCheckpoint(checkpoint) ? checkpoint : null;
+    }
+
+    /**
+     * @return the validation score of {@link #best()}, NaN if there is no best checkpoint
+     */
+    double bestScore() {
+        final String score = readManifest().getProperty(MANIFEST_BEST_SCORE);
+        return score == null || best() == null ? Double.NaN : Double.parseDouble(score);
+    }
+
+    /**
+     * Deletes the oldest checkpoints listed in the manifest so that at most keepLast remain. The latest full
+     * checkpoint is always kept, so we can resume with updater state, and so is the best checkpoint.
+     * @param keepLast number of checkpoints to keep, 0 keeps all
+     */
+    void deleteOld(final int keepLast) {
+        if (keepLast <= 0) { return; }
+        final Properties manifest = readManifest();
+        final List<String> checkpoints = checkpointNames(manifest);
+        final String latestFull = manifest.getProperty(MANIFEST_LATEST_FULL);
+        final String best = manifest.getProperty(MANIFEST_BEST);
+        final List<String> deleted = new ArrayList<>();
+        for (int idx = 0; idx < checkpoints.size() - keepLast; ++idx) {
+            if (!checkpoints.get(idx).equals(latestFull) && !checkpoints.get(idx).equals(best)) {
+                deleted.add(checkpoints.get(idx));
+            }
+        }
+        if (deleted.isEmpty()) { return; }
+        //first drop them from the manifest, so it never lists checkpoints that are half deleted
+        checkpoints.removeAll(deleted);
+        manifest.setProperty(MANIFEST_CHECKPOINTS, String.join(",", checkpoints));
+        writeManifest(manifest);
+        for (final String name : deleted) {
+            final File checkpoint = new File(workingFolder, name);
+            if (!FileUtils.deleteQuietly(checkpoint)) {
+                log.warn("Could not delete old checkpoint: " + checkpoint);
+            }
+        }
+    }
+
+    /**
+     * Builds a network from the given checkpoint. For parameter-only checkpoints the updater state of the latest
+     * full checkpoint is used, if it fits, otherwise the updater starts fresh.
+     * @param checkpoint a checkpoint folder
+     * @return a new, initialized network
+     */
+    MultiLayerNetwork read(final File checkpoint) {
+        try {
+            final String json = new String(Files.readAllBytes(new File(checkpoint, CONFIGURATION_FILE).toPath()),
+                                           StandardCharsets.UTF_8);
+            final MultiLayerNetwork network = new MultiLayerNetwork(MultiLayerConfiguration.fromJson(json));
+            network.init(readValues(new File(checkpoint, PARAMETERS_FILE)), false);
+            File updaterFile = new File(checkpoint, UPDATER_FILE);
+            if (!updaterFile.isFile()) {
+                final File full = latestFull();
+                updaterFile = full == null ? null : new File(full, UPDATER_FILE);
+                log.info("Parameter-only checkpoint " + checkpoint.getName() + ", taking updater state from: " + full);
+            }
+            if (updaterFile != null && network.getUpdater() != null) {
+                final INDArray updaterState = readValues(updaterFile);
+                final INDArray expected = network.getUpdater().getStateViewArray();
+                if (expected != null && expected.length() == updaterState.length()) {
+                    network.getUpdater().setStateViewArray(network, updaterState, false);
+                } else {
+                    log.warn("Updater state in " + updaterFile + " does not fit the network, starting with a fresh updater.");
+                }
+            }
+            return network;
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not read checkpoint: " + checkpoint, e);
+        }
+    }
+
+    /**
+     * Reads the metadata of the given checkpoint.
+     * @return the metadata, empty if the checkpoint has none
+     */
+    static Properties readMetadata(final File checkpoint) {
+        return readProperties(new File(checkpoint, METADATA_FILE));
+    }
+
+    private Properties readManifest() {
+        return readProperties(new File(workingFolder, MANIFEST_FILE));
+    }
+
+    private void writeManifest(final Properties manifest) {
+        final File manifestFile = new File(workingFolder, MANIFEST_FILE);
+        final File tempFile = new File(workingFolder, MANIFEST_FILE + TEMP_SUFFIX);
+        try {
+            try (final OutputStream out = new FileOutputStream(tempFile)) {
+                manifest.store(out, "checkpoint index, do not edit while training");
+            }
+            Files.move(tempFile.toPath(), manifestFile.toPath(),
+                       StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (final IOException e) {
+            //noinspection ResultOfMethodCallIgnored (nothing we can do if the temp file cannot be removed either)
+            tempFile.delete();
+            throw new RuntimeException("Could not write checkpoint manifest: " + manifestFile, e);
+        }
+    }
+
+    private static List<String> checkpointNames(final Properties manifest) {
+        final String names = manifest.getProperty(MANIFEST_CHECKPOINTS, "");
+        final List<String> result = new ArrayList<>();
+        if (!names.isEmpty()) {
+            result.addAll(Arrays.asList(names.split(",")));
+        }
+        return result;
+    }
+
+    private static Properties readProperties(final File file) {
+        final Properties result = new Properties();
+        if (!file.isFile()) { return result; }
+        try (final InputStream in = new FileInputStream(file)) {
+            result.load(in);
+        } catch (final IOException e) {
+            log.warn("Could not read " + file, e);
+        }
+        return result;
+    }
+
+    /**
+     * Writes the values of the given array in row major order, as doubles for double arrays, as floats otherwise
+     * (half precision is widened, {@link #readValues(File)} converts to the current data type anyway).
+     */
+    static void writeValues(final INDArray array, final File file) throws IOException {
+        final boolean isDouble = array.data().dataType() == DataBuffer.Type.DOUBLE;
+        final int bytesPerValue = isDouble ? 8 : 4;
+        final long length = array.length();
+        final long size = HEADER_BYTES + length * bytesPerValue;
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                                          StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                                          StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(bytesPerValue).putInt(0).putLong(length);
+            //dup('c') so views never expose their whole backing buffer
+            final DataBuffer data = array.isView() ? array.dup('c').data() : array.data();
+            if (data.getElementSize() == bytesPerValue && ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+                //one bulk copy from the native buffer into the mapping
+                final ByteBuffer values = data.asNio();
+                values.limit((int) (length * bytesPerValue));
+                buffer.put(values);
+            } else if (isDouble) {
+                buffer.asDoubleBuffer().put(data.asDouble());
+            } else {
+                buffer.asFloatBuffer().put(data.asFloat());
+            }
+            buffer.force();
+        }
+    }
+
+    /**
+     * Reads values written by {@link #writeValues(INDArray, File)} by mapping the file.
+     * @return a row vector with the values, in the current data type
+     */
+    static INDArray readValues(final File file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not a raw value file (version " + VERSION + "): " + file);
+            }
+            final int bytesPerValue = buffer.getInt();
+            buffer.getInt();
+            final long length = buffer.getLong();
+            if ((bytesPerValue != 4 && bytesPerValue != 8) || buffer.remaining() < length * bytesPerValue) {
+                throw new IOException("Corrupt raw value file: " + file);
+            }
+            final ByteBuffer values = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+            values.limit((int) (length * bytesPerValue));
+            final INDArray result = Nd4j.createUninitialized(new int[]{1, (int) length}, 'c');
+            final DataBuffer data = result.data();
+            if (data.getElementSize() == bytesPerValue && ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+                //one bulk copy from the mapping into the native buffer
+                data.asNio().put(values);
+            } else if (bytesPerValue == 8) {
+                final double[] converted = new double[(int) length];
+                values.asDoubleBuffer().get(converted);
+                data.setData(converted);
+            } else {
+                final float[] converted = new float[(int) length];
+                values.asFloatBuffer().get(converted);
+                data.setData(converted);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package divisio.dl4jintro;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs checkpoint writes on a single background thread. The number of writes that are queued or running is
+ * bounded: if the disk cannot keep up, submitting blocks until a slot frees up, so we never pile up snapshots
+ * in memory.
+ */
+class CheckpointWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(CheckpointWriter.class);
+
+    /** the single thread doing the writing, so checkpoints are written in order */
+    private final ExecutorService executor;
+    /** one permit per write that may be queued or running */
+    private final Semaphore pendingWrites;
+
+    /**
+     * @param maxPendingWrites number of writes that may be queued or in progress at the same time, at least 1
+     */
+    CheckpointWriter(final int maxPendingWrites) {
+        if (maxPendingWrites < 1) {
+            throw new IllegalArgumentException("Need at least one pending write, got: " + maxPendingWrites);
+        }
+        this.pendingWrites = new Semaphore(maxPendingWrites);
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            //daemon, so a forgotten close() never keeps the VM alive - the shutdown hook closes us explicitly
+            final Thread thread = new Thread(runnable, "checkpoint-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues the given write, blocks if the maximum number of pending writes is reached.
+     * @param write the write to perform, errors are logged, not rethrown
+     */
+    void submit(final Runnable write) {
+        pendingWrites.acquireUninterruptibly();
+        try {
+            executor.execute(() -> {
+                try {
+                    write.run();
+                } catch (final RuntimeException e) {
+                    log.error("Background checkpoint write failed.", e);
+                } finally {
+                    pendingWrites.release();
+                }
+            });
+        } catch (final RuntimeException e) {
+            //rejected, e.g. because we are already closed
+            pendingWrites.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for all writes submitted so far to finish, new writes can still be submitted afterwards.
+     */
+    void flush() {
+        try {
+            //writes run in order on a single thread, so once this no-op ran, everything before it is done
+            executor.submit(() -> { }).get();
+        } catch (final InterruptedException ie) {
+            log.warn("Interrupted while waiting for pending checkpoint writes.");
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException ee) {
+            //cannot happen for a no-op
+        }
+    }
+
+    /**
+     * Stops accepting new writes and waits for all pending writes to finish.
+     */
+    void close() {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.info("Waiting for pending checkpoint writes to finish...");
+            }
+        } catch (final InterruptedException ie) {
+            log.warn("Interrupted while waiting for pending checkpoint writes.");
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package divisio.dl4jintro;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * In-memory data set that keeps all features and all labels in one contiguous matrix each, one example per row.
+ * Compared to a list of tiny per-example arrays this saves one native allocation per example, and minibatches can
+ * be handed out as views of consecutive rows instead of being stacked together again in every epoch.
+ */
+public class ContiguousDataSet {
+
+    /** all features, one row per example */
+    private final INDArray features;
+    /** all labels, one row per example */
+    private final INDArray labels;
+
+    /**
+     * @param features matrix with one row of features per example
+     * @param labels matrix with one row of labels per example, same number of rows as features
+     */
+    public ContiguousDataSet(final INDArray features, final INDArray labels) {
+        if (features.rows() != labels.rows()) {
+            throw new IllegalArgumentException("Features and labels need the same number of rows, got: " +
+                                               features.rows() + ", " + labels.rows());
+        }
+        this.features = features;
+        this.labels = labels;
+    }
+
+    /**
+     * Creates a data set from row major arrays, with only one native allocation for features and labels each.
+     * @param features row major features, length is a multiple of featureCount
+     * @param featureCount number of features per example
+     * @param labels row major labels, one row for each row of features
+     * @param labelCount number of labels per example
+     */
+    public static ContiguousDataSet fromRowMajor(final double[] features, final int featureCount,
+                                                 final double[] labels, final int labelCount) {
+        final int rows = features.length / featureCount;
+        return new ContiguousDataSet(
+            Nd4j.create(features, new int[]{rows, featureCount}),
+            Nd4j.create(labels, new int[]{rows, labelCount})
+        );
+    }
+
+    /**
+     * Creates a data set from row major float arrays, with only one native allocation for features and labels each.
+     * Values are stored in ND4J's current data type, floats avoid a double precision detour for FP32 & FP16.
+     * @param features row major features, length is a multiple of featureCount
+     * @param featureCount number of features per example
+     * @param labels row major labels, one row for each row of features
+     * @param labelCount number of labels per example
+     */
+    public static ContiguousDataSet fromRowMajor(final float[] features, final int featureCount,
+                                                 final float[] labels, final int labelCount) {
+        final int rows = features.length / featureCount;
+        return new ContiguousDataSet(
+            Nd4j.create(features, new int[]{rows, featureCount}),
+            Nd4j.create(labels, new int[]{rows, labelCount})
+        );
+    }
+
+    /**
+     * @return number of examples
+     */
+    public int numExamples() {
+        return features.rows();
+    }
+
+    /**
+     * @return the matrix with all features, one row per example
+     */
+    public INDArray getFeatures() {
+        return features;
+    }
+
+    /**
+     * @return the matrix with all labels, one row per example
+     */
+    public INDArray getLabels() {
+        return labels;
+    }
+
+    /**
+     * @return a view of the features of the given examples, no data is copied
+     */
+    public INDArray getFeatures(final int fromRow, final int toRow) {
+        return features.get(NDArrayIndex.interval(fromRow, toRow), NDArrayIndex.all());
+    }
+
+    /**
+     * @return a view of the labels of the given examples, no data is copied
+     */
+    public INDArray getLabels(final int fromRow, final int toRow) {
+        return labels.get(NDArrayIndex.interval(fromRow, toRow), NDArrayIndex.all());
+    }
+
+    /**
+     * Shuffles the examples in place: features and labels rows are permuted the same way in native code, so this
+     * needs no second copy of the data. Views handed out earlier see the new order.
+     * @param random the random generator that picks the permutation
+     */
+    public void shuffle(final Random random) {
+        Nd4j.shuffle(Arrays.asList(features, labels), random, Arrays.asList(new int[]{1}, new int[]{1}));
+    }
+
+    /**
+     * @param batchSize number of examples per minibatch
+     * @param random used to shuffle the examples on each reset, null to keep the stored order
+     * @return a new iterator over this data set
+     */
+    public ContiguousDataSetIterator iterator(final int batchSize, final Random random) {
+        return new ContiguousDataSetIterator(this, batchSize, random);
+    }
+
+    /**
+     * @param batchSize number of examples per minibatch
+     * @param firstRow row to start at, iteration wraps around to the rows before it
+     * @return a new iterator over this data set in stored order
+     */
+    public ContiguousDataSetIterator iterator(final int batchSize, final int firstRow) {
+        return new ContiguousDataSetIterator(this, batchSize, null, firstRow);
+    }
+}
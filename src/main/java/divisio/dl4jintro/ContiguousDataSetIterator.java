@@ -0,0 +1,137 @@
+package divisio.dl4jintro;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Iterates over a {@link ContiguousDataSet} in minibatches that are views of consecutive rows, so fetching a
+ * minibatch allocates no new data. Shuffling permutes the examples of the data set in place on each reset, so every
+ * epoch sees differently composed minibatches without copying them together per minibatch.
+ */
+public class ContiguousDataSetIterator implements DataSetIterator {
+
+    /** the data we iterate over */
+    private final ContiguousDataSet data;
+    /** number of examples per minibatch, the last one may be smaller */
+    private final int batchSize;
+    /** used to shuffle the examples, null if we do not shuffle */
+    private final Random random;
+    /** row we start at, iteration wraps around to the rows before it */
+    private final int firstRow;
+    /** number of examples handed out since the last reset */
+    private int cursor = 0;
+    /** optional pre processor */
+    private DataSetPreProcessor preProcessor;
+
+    /**
+     * Iterates over all rows, starting with the first one.
+     */
+    public ContiguousDataSetIterator(final ContiguousDataSet data, final int batchSize, final Random random) {
+        this(data, batchSize, random, 0);
+    }
+
+    /**
+     * @param data the data to iterate over, shuffled in place if random is not null
+     * @param batchSize number of examples per minibatch, at least 1
+     * @param random used to shuffle the examples on each reset, null to keep the stored order
+     * @param firstRow row to start at, e.g. to let subsamples of the data start in different places, iteration wraps
+     *                 around to the rows before it
+     */
+    public ContiguousDataSetIterator(final ContiguousDataSet data, final int batchSize, final Random random,
+                                     final int firstRow) {
+        if (batchSize < 1 || firstRow < 0) {
+            throw new IllegalArgumentException("Invalid batch size / first row: " + batchSize + ", " + firstRow);
+        }
+        this.data = data;
+        this.batchSize = batchSize;
+        this.random = random;
+        this.firstRow = data.numExamples() == 0 ? 0 : firstRow % data.numExamples();
+        shuffle();
+    }
+
+    private void shuffle() {
+        if (random != null) {
+            data.shuffle(random);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return cursor < data.numExamples();
+    }
+
+    @Override
+    public DataSet next() {
+        return next(batchSize);
+    }
+
+    @Override
+    public DataSet next(final int num) {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final int rows = data.numExamples();
+        final int fromRow = (firstRow + cursor) % rows;
+        //a minibatch never wraps around, so it stays a view of consecutive rows
+        final int toRow = Math.min(fromRow + num, Math.min(rows, fromRow + rows - cursor));
+        cursor += toRow - fromRow;
+        if (preProcessor == null) {
+            return new DataSet(data.getFeatures(fromRow, toRow), data.getLabels(fromRow, toRow));
+        }
+        //pre processors work in place, so they must not see the views of our stored data
+        final DataSet result = new DataSet(data.getFeatures(fromRow, toRow).dup(), data.getLabels(fromRow, toRow).dup());
+        preProcessor.preProcess(result);
+        return result;
+    }
+
+    @Override
+    public int inputColumns() {
+        return data.getFeatures().columns();
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return data.getLabels().columns();
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        cursor = 0;
+        shuffle();
+    }
+
+    @Override
+    public int batch() {
+        return batchSize;
+    }
+
+    @Override
+    public void setPreProcessor(final DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return null;
+    }
+}
@@ -0,0 +1,284 @@
+package divisio.dl4jintro;
+
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.conf.layers.BaseLayer;
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.params.DefaultParamInitializer;
+import org.nd4j.linalg.activations.IActivation;
+import org.nd4j.linalg.activations.impl.ActivationIdentity;
+import org.nd4j.linalg.activations.impl.ActivationReLU;
+import org.nd4j.linalg.activations.impl.ActivationSigmoid;
+import org.nd4j.linalg.activations.impl.ActivationSoftmax;
+import org.nd4j.linalg.activations.impl.ActivationTanH;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * Pure Java inference for small feed forward networks, exported from a trained {@link MultiLayerNetwork} with
+ * dense and output layers. For tiny networks, most of the time of {@link MultiLayerNetwork#output(INDArray)} is
+ * spent crossing JNI and creating INDArrays, here all weights live in flat arrays and the forward pass runs on
+ * caller provided buffers, so it allocates nothing.
+ * <p>
+ * Weights are stored per output neuron, either as floats or quantized to int8 with one scale per output neuron
+ * (symmetric, scale = max |weight| / 127). Biases and activations always stay floats. Inputs and outputs are row
+ * major float arrays, one example per row.
+ * <p>
+ * Instances are immutable and can be shared between threads, {@link Buffers} cannot.
+ */
+public final class DenseInferenceEngine {
+
+    /**
+     * The activations we can compute.
+     */
+    private enum Activation { IDENTITY, RELU, SIGMOID, TANH, SOFTMAX }
+
+    /**
+     * One dense layer: output = activation(weights * input + bias).
+     */
+    private static final class DenseWeights {
+        final int inputs;
+        final int outputs;
+        /** outputs x inputs, row major, null if quantized */
+        final float[] weights;
+        /** outputs x inputs, row major, null if not quantized */
+        final byte[] quantizedWeights;
+        /** one scale per output, null if not quantized */
+        final float[] scales;
+        final float[] bias;
+        final Activation activation;
+
+        DenseWeights(final int inputs, final int outputs, final float[] weights, final byte[] quantizedWeights,
+                     final float[] scales, final float[] bias, final Activation activation) {
+            this.inputs = inputs;
+            this.outputs = outputs;
+            this.weights = weights;
+            this.quantizedWeights = quantizedWeights;
+            this.scales = scales;
+            this.bias = bias;
+            this.activation = activation;
+        }
+    }
+
+    /**
+     * Scratch space for the hidden layer activations of a forward pass, reused between calls. Get one per thread
+     * from {@link #newBuffers(int)}.
+     */
+    public static final class Buffers {
+        private final int maxRows;
+        private final float[] first;
+        private final float[] second;
+
+        private Buffers(final int maxRows, final int maxWidth) {
+            this.maxRows = maxRows;
+            this.first = new float[maxRows * maxWidth];
+            this.second = new float[maxRows * maxWidth];
+        }
+    }
+
+    private final DenseWeights[] layers;
+    private final int maxWidth;
+    private final boolean quantized;
+
+    private DenseInferenceEngine(final DenseWeights[] layers, final boolean quantized) {
+        this.layers = layers;
+        this.quantized = quantized;
+        int width = 0;
+        for (final DenseWeights layer : layers) {
+            width = Math.max(width, layer.outputs);
+        }
+        this.maxWidth = width;
+    }
+
+    /**
+     * Exports the given network. Later changes to the network do not affect the engine.
+     * @param network a network with only dense & output layers using identity, ReLU, sigmoid, tanh or softmax
+     * @param quantize true: store the weights as int8, false: as floats
+     * @throws IllegalArgumentException if the network has other layers or activations
+     */
+    public static DenseInferenceEngine of(final MultiLayerNetwork network, final boolean quantize) {
+        final Layer[] networkLayers = network.getLayers();
+        final DenseWeights[] layers = new DenseWeights[networkLayers.length];
+        for (int idx = 0; idx < networkLayers.length; ++idx) {
+            final org.deeplearning4j.nn.conf.layers.Layer conf = networkLayers[idx].conf().getLayer();
+            if (!(conf instanceof DenseLayer) && !(conf instanceof OutputLayer)) {
+                throw new IllegalArgumentException("Layer " + idx + " is not a dense or output layer: " + conf);
+            }
+            final Activation activation = activationOf(((BaseLayer) conf).getActivationFn(), idx);
+            //DL4J stores weights as inputs x outputs
+            final INDArray w = networkLayers[idx].getParam(DefaultParamInitializer.WEIGHT_KEY);
+            final INDArray b = networkLayers[idx].getParam(DefaultParamInitializer.BIAS_KEY);
+            final int inputs = w.rows();
+            final int outputs = w.columns();
+            final float[] weights = new float[outputs * inputs];
+            for (int output = 0; output < outputs; ++output) {
+                for (int input = 0; input < inputs; ++input) {
+                    weights[output * inputs + input] = w.getFloat(input, output);
+                }
+            }
+            final float[] bias = new float[outputs];
+            for (int output = 0; output < outputs; ++output) {
+                bias[output] = b.getFloat(output);
+            }
+            if (quantize) {
+                final byte[] quantizedWeights = new byte[weights.length];
+                final float[] scales = new float[outputs];
+                for (int output = 0; output < outputs; ++output) {
+                    float maxAbs = 0.0f;
+                    for (int input = 0; input < inputs; ++input) {
+                        maxAbs = Math.max(maxAbs, Math.abs(weights[output * inputs + input]));
+                    }
+                    final float scale = maxAbs > 0.0f ? maxAbs / 127.0f : 1.0f;
+                    scales[output] = scale;
+                    for (int input = 0; input < inputs; ++input) {
+                        quantizedWeights[output * inputs + input] =
+                            (byte) Math.round(weights[output * inputs + input] / scale);
+                    }
+                }
+                layers[idx] = new DenseWeights(inputs, outputs, null, quantizedWeights, scales, bias, activation);
+            } else {
+                layers[idx] = new DenseWeights(inputs, outputs, weights, null, null, bias, activation);
+            }
+        }
+        if (layers.length == 0) {
+            throw new IllegalArgumentException("Network has no layers.");
+        }
+        return new DenseInferenceEngine(layers, quantize);
+    }
+
+    private static Activation activationOf(final IActivation activation, final int layer) {
+        if (activation instanceof ActivationIdentity) { return Activation.IDENTITY; }
+        if (activation instanceof ActivationReLU) { return Activation.RELU; }
+        if (activation instanceof ActivationSigmoid) { return Activation.SIGMOID; }
+        if (activation instanceof ActivationTanH) { return Activation.TANH; }
+        if (activation instanceof ActivationSoftmax) { return Activation.SOFTMAX; }
+        throw new IllegalArgumentException("Unsupported activation in layer " + layer + ": " + activation);
+    }
+
+    /**
+     * @return number of input values per example
+     */
+    public int inputSize() {
+        return layers[0].inputs;
+    }
+
+    /**
+     * @return number of output values per example
+     */
+    public int outputSize() {
+        return layers[layers.length - 1].outputs;
+    }
+
+    /**
+     * @return true if the weights are stored as int8
+     */
+    public boolean isQuantized() {
+        return quantized;
+    }
+
+    /**
+     * @param maxRows maximum number of examples per call that will use the buffers
+     * @return new scratch space for forward passes of up to maxRows examples
+     */
+    public Buffers newBuffers(final int maxRows) {
+        return new Buffers(maxRows, maxWidth);
+    }
+
+    /**
+     * Computes the output of a single example.
+     * @param input {@link #inputSize()} values
+     * @param output receives {@link #outputSize()} values
+     * @param buffers scratch space for at least one row
+     */
+    public void output(final float[] input, final float[] output, final Buffers buffers) {
+        output(input, output, 1, buffers);
+    }
+
+    /**
+     * Computes the outputs of a batch of examples.
+     * @param inputs rows x {@link #inputSize()} values, row major
+     * @param outputs receives rows x {@link #outputSize()} values, row major
+     * @param rows number of examples
+     * @param buffers scratch space for at least rows rows
+     */
+    public void output(final float[] inputs, final float[] outputs, final int rows, final Buffers buffers) {
+        if (rows > buffers.maxRows) {
+            throw new IllegalArgumentException("Buffers hold " + buffers.maxRows + " rows, got " + rows);
+        }
+        if (inputs.length < rows * inputSize() || outputs.length < rows * outputSize()) {
+            throw new IllegalArgumentException("Arrays too small for " + rows + " rows.");
+        }
+        float[] in = inputs;
+        for (int idx = 0; idx < layers.length; ++idx) {
+            //hidden layers alternate between the two buffers, the last layer writes to the outputs
+            final float[] out = idx == layers.length - 1 ? outputs : (idx % 2 == 0 ? buffers.first : buffers.second);
+            forward(layers[idx], in, out, rows);
+            in = out;
+        }
+    }
+
+    private static void forward(final DenseWeights layer, final float[] in, final float[] out, final int rows) {
+        final int inputs = layer.inputs;
+        final int outputs = layer.outputs;
+        for (int row = 0; row < rows; ++row) {
+            final int inOffset = row * inputs;
+            final int outOffset = row * outputs;
+            for (int output = 0; output < outputs; ++output) {
+                final int weightOffset = output * inputs;
+                float sum = 0.0f;
+                if (layer.weights != null) {
+                    for (int input = 0; input < inputs; ++input) {
+                        sum += layer.weights[weightOffset + input] * in[inOffset + input];
+                    }
+                } else {
+                    for (int input = 0; input < inputs; ++input) {
+                        sum += layer.quantizedWeights[weightOffset + input] * in[inOffset + input];
+                    }
+                    sum *= layer.scales[output];
+                }
+                out[outOffset + output] = sum + layer.bias[output];
+            }
+            activate(layer.activation, out, outOffset, outputs);
+        }
+    }
+
+    private static void activate(final Activation activation, final float[] values, final int offset,
+                                 final int length) {
+        switch (activation) {
+            case IDENTITY:
+                break;
+            case RELU:
+                for (int idx = offset; idx < offset + length; ++idx) {
+                    values[idx] = Math.max(0.0f, values[idx]);
+                }
+                break;
+            case SIGMOID:
+                for (int idx = offset; idx < offset + length; ++idx) {
+                    values[idx] = (float) (1.0 / (1.0 + Math.exp(-values[idx])));
+                }
+                break;
+            case TANH:
+                for (int idx = offset; idx < offset + length; ++idx) {
+                    values[idx] = (float) Math.tanh(values[idx]);
+                }
+                break;
+            case SOFTMAX:
+                //subtract the maximum so exp cannot overflow
+                float max = Float.NEGATIVE_INFINITY;
+                for (int idx = offset; idx < offset + length; ++idx) {
+                    max = Math.max(max, values[idx]);
+                }
+                float sum = 0.0f;
+                for (int idx = offset; idx < offset + length; ++idx) {
+                    values[idx] = (float) Math.exp(values[idx] - max);
+                    sum += values[idx];
+                }
+                for (int idx = offset; idx < offset + length; ++idx) {
+                    values[idx] /= sum;
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown activation: " + activation);
+        }
+    }
+}
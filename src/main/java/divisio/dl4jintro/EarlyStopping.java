@@ -0,0 +1,125 @@
+package divisio.dl4jintro;
+
+/**
+ * Decides when training should stop before all epochs are done: when the validation score stopped improving for a
+ * number of validations (patience), or when a wall clock or iteration budget is used up. Also keeps track of the
+ * best validation score, so the caller knows when to save a new best model.
+ * <p>
+ * The wall clock budget is timed by the caller, e.g. with a {@link TrainingController} trigger calling
+ * {@link #timeBudgetUsedUp(long)}, so checking the budgets after each iteration does not read the clock.
+ * <p>
+ * Not thread safe, meant to be called from the training loop.
+ */
+public class EarlyStopping {
+
+    private final int patience;
+    private final double minDelta;
+    private final long maxIterations;
+
+    private long iterations = 0;
+    /** best score so far, NaN if we have not seen one */
+    private double bestScore;
+    /** number of validations since the last improvement */
+    private int validationsWithoutImprovement = 0;
+    /** why we stopped, null while training may continue */
+    private String stopReason;
+
+    /**
+     * @param patience number of validations without improvement after which training stops, 0 disables the
+     *                 score criterion
+     * @param minDelta how much lower a score must be than the best one to count as an improvement
+     * @param maxIterations maximum number of training iterations, 0 for no limit
+     * @param bestScore best score of an earlier run when resuming, NaN if there is none
+     */
+    public EarlyStopping(final int patience, final double minDelta, final long maxIterations, final double bestScore) {
+        this.patience = patience;
+        this.minDelta = minDelta;
+        this.maxIterations = maxIterations;
+        this.bestScore = bestScore;
+    }
+
+    /**
+     * Starts counting iterations for the iteration budget.
+     */
+    public void start() {
+        iterations = 0;
+    }
+
+    /**
+     * Stops training because the wall clock budget is used up.
+     * @param maxMillis the budget, for the stop reason
+     */
+    public void timeBudgetUsedUp(final long maxMillis) {
+        if (stopReason == null) {
+            stopReason = "time budget of " + maxMillis / 1000 + "s used up";
+        }
+    }
+
+    /**
+     * @return true if we stop based on validation scores, so validations should happen at least once per epoch
+     */
+    public boolean usesScores() {
+        return patience > 0;
+    }
+
+    /**
+     * Checks if the next training iteration may run and counts it if so.
+     * @return true if training may continue
+     */
+    public boolean onIteration() {
+        if (shouldStop()) { return false; }
+        ++iterations;
+        return true;
+    }
+
+    /**
+     * Records a validation score.
+     * @param score the validation score, lower is better
+     * @return true if the score is a new best score, i.e. the model should be saved as the best model
+     */
+    public boolean onValidation(final double score) {
+        if (Double.isNaN(score)) { return false; }
+        if (Double.isNaN(bestScore) || score < bestScore - minDelta) {
+            bestScore = score;
+            validationsWithoutImprovement = 0;
+            return true;
+        }
+        ++validationsWithoutImprovement;
+        if (stopReason == null && patience > 0 && validationsWithoutImprovement >= patience) {
+            stopReason = "no improvement of more than " + minDelta + " over best score " + bestScore +
+                         " in " + validationsWithoutImprovement + " validations";
+        }
+        return false;
+    }
+
+    /**
+     * @return true if training should stop, because the score stopped improving or a budget is used up
+     */
+    public boolean shouldStop() {
+        if (stopReason == null && maxIterations > 0 && iterations >= maxIterations) {
+            stopReason = "iteration budget of " + maxIterations + " used up";
+        }
+        return stopReason != null;
+    }
+
+    /**
+     * @return why training should stop, null if it may continue
+     */
+    public String getStopReason() {
+        return stopReason;
+    }
+
+    /**
+     * @return the best score so far, NaN if there is none
+     */
+    public double getBestScore() {
+        return bestScore;
+    }
+
+    /**
+     * @return number of iterations since {@link #start()}
+     */
+    public long getIterations() {
+        return iterations;
+    }
+}
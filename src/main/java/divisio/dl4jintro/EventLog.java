@@ -0,0 +1,232 @@
+package divisio.dl4jintro;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Structured training event log, one JSON object per line (NDJSON), appended to a file by a background thread.
+ * <p>
+ * Recording an event only creates a small object and puts it into a bounded, lock free queue, formatting and writing
+ * happen on the writer thread, which writes whatever is queued in one batch. Recording never blocks: iteration
+ * events are sampled (every n-th iteration), and are dropped while the queue is more than half full, so the rarer
+ * epoch, save & validation events still fit. If the queue is full, any event is dropped. The number of dropped
+ * events is written as an event of its own, so gaps in the log are visible.
+ * <p>
+ * Events can be recorded before {@link #start(File)}, they are queued until the writer starts.
+ * <p>
+ * Fields: t (epoch millis), type, and depending on the type iteration, epoch, score, ms (duration), file, samples.
+ * See {@link EventLogReader} for summarizing a log.
+ */
+public class EventLog implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(EventLog.class);
+
+    //event types
+    static final String ITERATION = "iteration";
+    static final String EPOCH = "epoch";
+    static final String SAVE = "save";
+    static final String VALIDATION = "validation";
+    static final String DROPPED = "dropped";
+
+    /** how long the writer sleeps when the queue is empty */
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /**
+     * A recorded event, formatted on the writer thread. Unused fields are NaN, -1 or null.
+     */
+    private static final class Event {
+        final long time;
+        final String type;
+        final int iteration;
+        final int epoch;
+        final double score;
+        final long durationNanos;
+        final long samples;
+        final String file;
+
+        Event(final String type, final int iteration, final int epoch, final double score, final long durationNanos,
+              final long samples, final String file) {
+            this.time = System.currentTimeMillis();
+            this.type = type;
+            this.iteration = iteration;
+            this.epoch = epoch;
+            this.score = score;
+            this.durationNanos = durationNanos;
+            this.samples = samples;
+            this.file = file;
+        }
+    }
+
+    private final int capacity;
+    private final int sampleEvery;
+    private final Queue<Event> queue = new ConcurrentLinkedQueue<>();
+    /** number of queued events, ConcurrentLinkedQueue.size() is not constant time */
+    private final AtomicInteger queued = new AtomicInteger();
+    /** events dropped since the last dropped event was written */
+    private final AtomicLong dropped = new AtomicLong();
+    /** the file we write, null until started */
+    private File file;
+    private Thread writer;
+    private volatile boolean running = true;
+
+    /**
+     * @param capacity maximum number of queued events
+     * @param sampleEvery only every n-th iteration is recorded, 1 records all
+     */
+    public EventLog(final int capacity, final int sampleEvery) {
+        if (capacity < 2 || sampleEvery < 1) {
+            throw new IllegalArgumentException("Need a capacity of at least 2 and a sampling of at least 1, got: " +
+                                               capacity + ", " + sampleEvery);
+        }
+        this.capacity = capacity;
+        this.sampleEvery = sampleEvery;
+    }
+
+    /**
+     * Starts the writer thread, appends to the file if it exists.
+     * @param file the NDJSON file to write
+     */
+    public synchronized void start(final File file) {
+        if (writer != null) {
+            throw new IllegalStateException("Event log already writes to " + this.file);
+        }
+        this.file = file;
+        this.writer = new Thread(this::run, "event-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        log.info("Writing training events to: " + file);
+    }
+
+    /**
+     * Records a finished iteration, if it is sampled and the queue has room.
+     * @param durationNanos time since the previous iteration
+     */
+    public void iteration(final int iteration, final int epoch, final double score, final long durationNanos) {
+        if (iteration % sampleEvery != 0) { return; }
+        //keep the second half of the queue for the events that matter more
+        if (queued.get() >= capacity / 2) {
+            dropped.incrementAndGet();
+            return;
+        }
+        offer(new Event(ITERATION, iteration, epoch, score, durationNanos, -1, null));
+    }
+
+    /**
+     * Records the start of an epoch.
+     */
+    public void epoch(final int epoch, final long samples) {
+        offer(new Event(EPOCH, -1, epoch, Double.NaN, -1, samples, null));
+    }
+
+    /**
+     * Records a save.
+     */
+    public void save(final File saveState, final long durationNanos) {
+        offer(new Event(SAVE, -1, -1, Double.NaN, durationNanos, -1, saveState.getName()));
+    }
+
+    /**
+     * Records a validation.
+     * @param score the validation score, NaN if it ran in the background
+     */
+    public void validation(final double score, final long durationNanos) {
+        offer(new Event(VALIDATION, -1, -1, score, durationNanos, -1, null));
+    }
+
+    private void offer(final Event event) {
+        if (queued.incrementAndGet() > capacity) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.offer(event);
+    }
+
+    private void run() {
+        final StringBuilder line = new StringBuilder(256);
+        try (final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                                                                          StandardCharsets.UTF_8), 1 << 16))
+        {
+            while (running || !queue.isEmpty()) {
+                //write everything queued as one batch, flush once per batch
+                int written = 0;
+                Event event;
+                while (written < capacity && (event = queue.poll()) != null) {
+                    queued.decrementAndGet();
+                    format(event, line);
+                    out.write(line.toString());
+                    ++written;
+                }
+                final long droppedEvents = dropped.getAndSet(0);
+                if (droppedEvents > 0) {
+                    format(new Event(DROPPED, -1, -1, Double.NaN, -1, droppedEvents, null), line);
+                    out.write(line.toString());
+                    ++written;
+                }
+                if (written > 0) {
+                    out.flush();
+                } else {
+                    LockSupport.parkNanos(IDLE_NANOS);
+                }
+            }
+        } catch (final IOException e) {
+            log.error("Could not write event log " + file + ", no more events are written.", e);
+            running = false;
+        }
+    }
+
+    private static void format(final Event event, final StringBuilder line) {
+        line.setLength(0);
+        line.append("{\"t\":").append(event.time).append(",\"type\":\"").append(event.type).append('"');
+        if (event.iteration >= 0) {
+            line.append(",\"iteration\":").append(event.iteration);
+        }
+        if (event.epoch >= 0) {
+            line.append(",\"epoch\":").append(event.epoch);
+        }
+        if (!Double.isNaN(event.score) && !Double.isInfinite(event.score)) {
+            line.append(",\"score\":").append(event.score);
+        }
+        if (event.durationNanos >= 0) {
+            line.append(",\"ms\":").append(String.format(Locale.ROOT, "%.3f", event.durationNanos / 1e6));
+        }
+        if (event.samples >= 0) {
+            line.append(",\"samples\":").append(event.samples);
+        }
+        if (event.file != null) {
+            //save state names never contain characters that need escaping
+            line.append(",\"file\":\"").append(event.file).append('"');
+        }
+        line.append("}\n");
+    }
+
+    /**
+     * Writes the events still queued and stops the writer.
+     */
+    @Override
+    public synchronized void close() {
+        running = false;
+        if (writer == null) { return; }
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package divisio.dl4jintro;
+
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.optimize.api.BaseTrainingListener;
+
+/**
+ * Records each finished iteration with its score and the time since the previous iteration in an {@link EventLog}.
+ * Only reads the score and hands a small object to the log's queue, so it can stay attached for every iteration.
+ */
+public class EventLogListener extends BaseTrainingListener {
+
+    private final EventLog eventLog;
+    private long lastIterationNanos = -1;
+
+    public EventLogListener(final EventLog eventLog) {
+        this.eventLog = eventLog;
+    }
+
+    @Override
+    public void iterationDone(final Model model, final int iteration, final int epoch) {
+        final long now = System.nanoTime();
+        eventLog.iteration(iteration, epoch, model.score(), lastIterationNanos < 0 ? -1 : now - lastIterationNanos);
+        lastIterationNanos = now;
+    }
+}
@@ -0,0 +1,198 @@
+package divisio.dl4jintro;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Summarizes an event log written by {@link EventLog}: event counts, time span, iteration timing percentiles, the
+ * course of the training score, saves, validations and dropped events.
+ * <p>
+ * Usage: java divisio.dl4jintro.EventLogReader BinaryAndTrainer/events.ndjson
+ */
+public class EventLogReader {
+
+    /** the flat "key":value pairs {@link EventLog} writes */
+    private static final Pattern FIELD = Pattern.compile("\"(\\w+)\":(\"([^\"]*)\"|[^,}]+)");
+
+    private final Map<String, Integer> counts = new TreeMap<>();
+    private final List<Double> iterationMillis = new ArrayList<>();
+    private final List<Double> saveMillis = new ArrayList<>();
+    private final List<Double> validationMillis = new ArrayList<>();
+    private long firstTime = -1;
+    private long lastTime = -1;
+    private long firstIteration = -1;
+    private long lastIteration = -1;
+    private int lastEpoch = -1;
+    private double firstScore = Double.NaN;
+    private double lastScore = Double.NaN;
+    private double minScore = Double.NaN;
+    private double bestValidation = Double.NaN;
+    private double lastValidation = Double.NaN;
+    private long droppedEvents = 0;
+    private int malformedLines = 0;
+
+    /**
+     * Reads all events of the given log.
+     */
+    public void read(final File file) throws IOException {
+        try (final BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    accept(parse(line));
+                }
+            }
+        }
+    }
+
+    private static Map<String, String> parse(final String line) {
+        final Map<String, String> result = new HashMap<>();
+        final Matcher matcher = FIELD.matcher(line);
+        while (matcher.find()) {
+            result.put(matcher.group(1), matcher.group(3) != null ? matcher.group(3) : matcher.group(2).trim());
+        }
+        return result;
+    }
+
+    private void accept(final Map<String, String> event) {
+        final String type = event.get("type");
+        final String time = event.get("t");
+        final String numberField = numberField(type);
+        if (type == null || time == null || (numberField != null && event.get(numberField) == null)) {
+            ++malformedLines;
+            return;
+        }
+        //parse everything before recording anything, so a malformed line leaves no trace but its count
+        final long t;
+        final long number;
+        final double score;
+        final double millis;
+        try {
+            t = Long.parseLong(time);
+            number = numberField != null ? Long.parseLong(event.get(numberField)) : 0;
+            score = event.containsKey("score") ? Double.parseDouble(event.get("score")) : Double.NaN;
+            millis = event.containsKey("ms") ? Double.parseDouble(event.get("ms")) : Double.NaN;
+        } catch (final NumberFormatException e) {
+            ++malformedLines;
+            return;
+        }
+        firstTime = firstTime < 0 ? t : Math.min(firstTime, t);
+        lastTime = Math.max(lastTime, t);
+        counts.merge(type, 1, Integer::sum);
+        switch (type) {
+            case EventLog.ITERATION:
+                if (firstIteration < 0) {
+                    firstIteration = number;
+                    firstScore = score;
+                }
+                lastIteration = number;
+                lastScore = score;
+                if (!Double.isNaN(score) && (Double.isNaN(minScore) || score < minScore)) {
+                    minScore = score;
+                }
+                if (!Double.isNaN(millis)) {
+                    iterationMillis.add(millis);
+                }
+                break;
+            case EventLog.EPOCH:
+                lastEpoch = (int) number;
+                break;
+            case EventLog.SAVE:
+                saveMillis.add(millis);
+                break;
+            case EventLog.VALIDATION:
+                validationMillis.add(millis);
+                if (!Double.isNaN(score)) {
+                    lastValidation = score;
+                    if (Double.isNaN(bestValidation) || score < bestValidation) {
+                        bestValidation = score;
+                    }
+                }
+                break;
+            case EventLog.DROPPED:
+                droppedEvents += number;
+                break;
+            default:
+                //unknown types are only counted
+        }
+    }
+
+    /**
+     * @return the field an event of the given type must have, holding its iteration, epoch or dropped examples,
+     * null if it needs none
+     */
+    private static String numberField(final String type) {
+        if (EventLog.ITERATION.equals(type)) { return "iteration"; }
+        if (EventLog.EPOCH.equals(type)) { return "epoch"; }
+        if (EventLog.DROPPED.equals(type)) { return "samples"; }
+        return null;
+    }
+
+    /**
+     * @return the summary of everything read so far
+     */
+    public String summary() {
+        final StringBuilder result = new StringBuilder();
+        result.append(String.format(Locale.ROOT, "span:        %.1f s%n", (lastTime - firstTime) / 1000.0));
+        result.append("events:      ").append(counts).append('\n');
+        result.append("dropped:     ").append(droppedEvents).append('\n');
+        if (firstIteration >= 0) {
+            result.append(String.format(Locale.ROOT, "iterations:  %d - %d, last epoch %d%n",
+                                        firstIteration, lastIteration, lastEpoch));
+            result.append(String.format(Locale.ROOT, "score:       first %.6f, last %.6f, min %.6f%n",
+                                        firstScore, lastScore, minScore));
+            result.append("iteration:   ").append(percentiles(iterationMillis)).append('\n');
+        }
+        result.append("saves:       ").append(percentiles(saveMillis)).append('\n');
+        result.append("validations: ").append(percentiles(validationMillis));
+        if (!Double.isNaN(bestValidation)) {
+            result.append(String.format(Locale.ROOT, ", best score %.6f, last score %.6f",
+                                        bestValidation, lastValidation));
+        }
+        result.append('\n');
+        if (malformedLines > 0) {
+            result.append("malformed:   ").append(malformedLines).append(" lines\n");
+        }
+        return result.toString();
+    }
+
+    private static String percentiles(final List<Double> millis) {
+        final List<Double> sorted = new ArrayList<>();
+        for (final double value : millis) {
+            if (!Double.isNaN(value)) {
+                sorted.add(value);
+            }
+        }
+        if (sorted.isEmpty()) { return millis.size() + " x"; }
+        Collections.sort(sorted);
+        return String.format(Locale.ROOT, "%d x, p50 %.3f ms, p99 %.3f ms, max %.3f ms", millis.size(),
+                             sorted.get((int) (0.5 * (sorted.size() - 1))),
+                             sorted.get((int) (0.99 * (sorted.size() - 1))),
+                             sorted.get(sorted.size() - 1));
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: EventLogReader <events.ndjson>...");
+            System.exit(-1);
+            return;
+        }
+        for (final String arg : args) {
+            final EventLogReader reader = new EventLogReader();
+            reader.read(new File(arg));
+            System.out.println(arg + ":\n" + reader.summary());
+        }
+    }
+}
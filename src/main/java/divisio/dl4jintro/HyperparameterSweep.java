@@ -0,0 +1,256 @@
+package divisio.dl4jintro;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Trains one trainer per hyperparameter point, several at once, and stops poorly scoring runs early with successive
+ * halving: all runs train for a small number of epochs, are validated, and only the best 1/eta of them continue for
+ * eta times as many epochs, until one run is left or the maximum number of epochs is reached.
+ * <p>
+ * Each run saves to its own subfolder of the sweep folder, a summary of all runs is logged and written to
+ * {@value #SUMMARY_FILE} at the end.
+ */
+public class HyperparameterSweep {
+
+    private static final Logger log = LoggerFactory.getLogger(HyperparameterSweep.class);
+
+    static final String SUMMARY_FILE = "sweep-summary.csv";
+
+    /**
+     * State of a single run of the sweep.
+     */
+    private static class Run {
+        final int id;
+        final Map<String, Double> hyperparameters;
+        final File folder;
+        Trainer trainer;
+        int epochsTrained = 0;
+        double score = Double.NaN;
+        /** how the run ended, null while it is still running */
+        String status;
+
+        Run(final int id, final Map<String, Double> hyperparameters, final File folder) {
+            this.id = id;
+            this.hyperparameters = hyperparameters;
+            this.folder = folder;
+        }
+    }
+
+    /** orders runs by score, best first, failed runs last */
+    private static final Comparator<Run> BY_SCORE = Comparator.comparingDouble(
+        run -> Double.isNaN(run.score) ? Double.POSITIVE_INFINITY : run.score);
+
+    private final Function<Map<String, Double>, Trainer> trainerFactory;
+    private final File sweepFolder;
+    private final int parallelRuns;
+    private final int minEpochs;
+    private final int maxEpochs;
+    private final int eta;
+
+    private volatile boolean running = true;
+    private volatile boolean started = false;
+    /** released when a started sweep has finished, including saving & the summary */
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    /**
+     * @param trainerFactory builds a fresh, uninitialized trainer for a hyperparameter point
+     * @param sweepFolder folder for the run subfolders and the summary
+     * @param parallelRuns number of runs training at the same time, i.e. the core budget
+     * @param minEpochs epochs every run trains before the first cut
+     * @param maxEpochs epochs the surviving runs train at most
+     * @param eta reduction factor, only the best 1/eta of the runs survive each cut, at least 2
+     */
+    public HyperparameterSweep(final Function<Map<String, Double>, Trainer> trainerFactory, final File sweepFolder,
+                               final int parallelRuns, final int minEpochs, final int maxEpochs, final int eta) {
+        if (eta < 2) {
+            throw new IllegalArgumentException("eta must be at least 2, got: " + eta);
+        }
+        this.trainerFactory = trainerFactory;
+        this.sweepFolder = sweepFolder;
+        this.parallelRuns = Math.max(1, parallelRuns);
+        this.minEpochs = Math.max(1, minEpochs);
+        this.maxEpochs = Math.max(this.minEpochs, maxEpochs);
+        this.eta = eta;
+    }
+
+    /**
+     * Runs the sweep, returns when all runs are done or {@link #stop(long)} was called.
+     * @param points the hyperparameter points to try
+     * @return the summary table
+     */
+    public String run(final List<Map<String, Double>> points) {
+        started = true;
+        try {
+            return runAll(points);
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    private String runAll(final List<Map<String, Double>> points) {
+        final List<Run> runs = new ArrayList<>(points.size());
+        for (int idx = 0; idx < points.size(); ++idx) {
+            runs.add(new Run(idx, points.get(idx), new File(sweepFolder, String.format("run_%03d", idx))));
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelRuns, runnable -> {
+            final Thread thread = new Thread(runnable, "sweep-run");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Run> alive = new ArrayList<>(runs);
+            int epochs = minEpochs;
+            int rung = 0;
+            while (running) {
+                log.info("Sweep rung " + rung + ": training " + alive.size() + " run(s) up to " + epochs + " epochs.");
+                trainAll(executor, alive, epochs);
+                alive.sort(BY_SCORE);
+                if (alive.size() <= 1 || epochs >= maxEpochs || !running) { break; }
+                //successive halving: only the best 1/eta continue, with eta times the epochs
+                final int survivors = Math.max(1, alive.size() / eta);
+                for (final Run stopped : alive.subList(survivors, alive.size())) {
+                    finish(stopped, "stopped after rung " + rung);
+                }
+                alive = new ArrayList<>(alive.subList(0, survivors));
+                epochs = (int) Math.min((long) epochs * eta, maxEpochs);
+                ++rung;
+            }
+            for (final Run run : alive) {
+                finish(run, running ? "completed" : "interrupted");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        final String summary = summary(runs);
+        log.info("Sweep summary:\n" + summary);
+        try {
+            Files.write(new File(sweepFolder, SUMMARY_FILE).toPath(), summary.getBytes(StandardCharsets.UTF_8));
+        } catch (final IOException e) {
+            log.error("Could not write sweep summary.", e);
+        }
+        return summary;
+    }
+
+    /**
+     * Asks a running sweep to stop and waits until it is done: runs finish their current minibatch, are validated
+     * and saved, and the summary is written.
+     * @param millis maximum time to wait
+     * @return true if the sweep is done, false if it is still stopping
+     */
+    public boolean stop(final long millis) {
+        running = false;
+        if (!started) { return true; }
+        try {
+            return finished.await(millis, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return finished.getCount() == 0;
+        }
+    }
+
+    /**
+     * Trains all given runs up to the given number of epochs on the executor and waits for them.
+     */
+    private void trainAll(final ExecutorService executor, final List<Run> runs, final int epochs) {
+        final List<Future<?>> futures = new ArrayList<>(runs.size());
+        for (final Run run : runs) {
+            futures.add(executor.submit(() -> train(run, epochs)));
+        }
+        for (final Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                running = false;
+            } catch (final ExecutionException ee) {
+                //train handles its own errors, this should not happen
+                log.error("Sweep run failed.", ee.getCause());
+            }
+        }
+    }
+
+    /**
+     * Continues training the given run up to the given number of epochs, validates and saves it.
+     */
+    private void train(final Run run, final int epochs) {
+        //failed runs are out of the race
+        if (run.status != null) { return; }
+        try {
+            if (run.trainer == null) {
+                run.trainer = trainerFactory.apply(run.hyperparameters);
+                run.trainer.init();
+                log.info("Started run " + run.id + " with " + run.hyperparameters);
+            }
+            while (run.epochsTrained < epochs && running) {
+                run.trainer.startEpoch();
+                while (run.trainer.train() && running) {
+                    //just train
+                }
+                ++run.epochsTrained;
+            }
+            run.score = run.trainer.validate(true);
+            if (!run.folder.isDirectory()) {
+                Files.createDirectories(run.folder.toPath());
+            }
+            run.trainer.save(run.folder);
+            log.info("Run " + run.id + " scored " + run.score + " after " + run.epochsTrained + " epochs.");
+        } catch (final IOException | RuntimeException e) {
+            log.error("Run " + run.id + " with " + run.hyperparameters + " failed.", e);
+            run.score = Double.NaN;
+            finish(run, "failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Ends the given run and releases its trainer.
+     */
+    private static void finish(final Run run, final String status) {
+        if (run.status != null) { return; }
+        run.status = status;
+        if (run.trainer != null) {
+            run.trainer.close();
+            run.trainer = null;
+        }
+    }
+
+    /**
+     * @return one CSV line per run, best first
+     */
+    private static String summary(final List<Run> runs) {
+        final List<Run> sorted = new ArrayList<>(runs);
+        sorted.sort(BY_SCORE);
+        final StringBuilder result = new StringBuilder("run,");
+        if (!runs.isEmpty()) {
+            result.append(String.join(",", runs.get(0).hyperparameters.keySet())).append(',');
+        }
+        result.append("epochs,score,status\n");
+        for (final Run run : sorted) {
+            result.append(run.id).append(',');
+            for (final Double value : run.hyperparameters.values()) {
+                result.append(value).append(',');
+            }
+            result.append(run.epochsTrained).append(',')
+                  .append(run.score).append(',')
+                  .append(run.status == null ? "not started" : run.status.replace(',', ';'))
+                  .append('\n');
+        }
+        return result.toString();
+    }
+}
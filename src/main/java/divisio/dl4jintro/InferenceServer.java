@@ -0,0 +1,321 @@
+package divisio.dl4jintro;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Serves predictions of a trained model on a local HTTP endpoint. Concurrent requests are collected into
+ * micro-batches, bounded by a maximum number of rows and a maximum wait time, and answered with a single forward
+ * pass. The model is hot-reloaded when a new best save state (or, without one, a newer save state) appears in the
+ * working folder.
+ * <p>
+ * POST /predict with one example per line, features separated by commas. The response contains one prediction
+ * per line in the same format. GET /stats returns request latency percentiles.
+ */
+public class InferenceServer {
+
+    private static final Logger log = LoggerFactory.getLogger(InferenceServer.class);
+
+    /** how long a request handler waits for its batch before giving up */
+    private static final long REQUEST_TIMEOUT_MS = 30000;
+
+    /**
+     * A request waiting to be batched.
+     */
+    private static class PendingRequest {
+        final float[][] rows;
+        final CompletableFuture<INDArray> result = new CompletableFuture<>();
+
+        PendingRequest(final float[][] rows) {
+            this.rows = rows;
+        }
+    }
+
+    private final Trainer trainer;
+    private final File workingFolder;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final long reloadEveryMillis;
+
+    private final BlockingQueue<PendingRequest> queue = new LinkedBlockingQueue<>();
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+    private final LatencyHistogram batchLatency = new LatencyHistogram();
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final Thread batcher;
+
+    /** the save state the trainer currently serves */
+    private File currentSaveState;
+    private long currentSaveStateModified;
+    /** number of features the served model expects, read by the request handlers */
+    private volatile int inputSize;
+    private volatile boolean running = true;
+
+    /**
+     * Starts serving.
+     * @param trainer a trainer with a loaded model, only used by the batching thread from now on
+     * @param servedSaveState the save state the trainer was loaded from
+     * @param workingFolder folder to watch for newer save states
+     * @param port local port to listen on
+     * @param maxBatchSize maximum number of rows per forward pass
+     * @param maxWaitMillis maximum time the first request of a batch waits for more requests
+     * @param reloadEverySeconds seconds between checks for a newer save state
+     */
+    public InferenceServer(final Trainer trainer, final File servedSaveState, final File workingFolder,
+                           final int port, final int maxBatchSize, final long maxWaitMillis,
+                           final int reloadEverySeconds) {
+        this.trainer = trainer;
+        this.currentSaveState = servedSaveState;
+        this.currentSaveStateModified = servedSaveState.lastModified();
+        this.workingFolder = workingFolder;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.reloadEveryMillis = reloadEverySeconds * 1000L;
+        this.inputSize = trainer.inputSize();
+
+        this.batcher = new Thread(this::runBatcher, "inference-batcher");
+        this.batcher.start();
+
+        this.handlers = Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "inference-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch (final IOException e) {
+            running = false;
+            batcher.interrupt();
+            throw new RuntimeException("Could not start inference server on port " + port, e);
+        }
+        server.createContext("/predict", this::handlePredict);
+        server.createContext("/stats", this::handleStats);
+        server.setExecutor(handlers);
+        server.start();
+        log.info("Serving predictions on http://localhost:" + port + "/predict");
+    }
+
+    /**
+     * Main loop of the batching thread: collect requests into a batch, predict, hand out results, occasionally
+     * check for a newer model.
+     */
+    private void runBatcher() {
+        long lastReloadCheck = System.currentTimeMillis();
+        final List<PendingRequest> batch = new ArrayList<>();
+        while (running) {
+            try {
+                final PendingRequest first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    int rows = first.rows.length;
+                    final long deadline = System.nanoTime() + maxWaitNanos;
+                    while (rows < maxBatchSize) {
+                        final long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) { break; }
+                        final PendingRequest next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) { break; }
+                        batch.add(next);
+                        rows += next.rows.length;
+                    }
+                    predict(batch, rows);
+                    batch.clear();
+                }
+                if (System.currentTimeMillis() - lastReloadCheck > reloadEveryMillis) {
+                    reloadIfNewer();
+                    lastReloadCheck = System.currentTimeMillis();
+                }
+            } catch (final InterruptedException ie) {
+                break;
+            }
+        }
+        //fail everything that is still waiting
+        for (final PendingRequest pending : batch) {
+            pending.result.completeExceptionally(new IllegalStateException("Server is shutting down."));
+        }
+        PendingRequest pending;
+        while ((pending = queue.poll()) != null) {
+            pending.result.completeExceptionally(new IllegalStateException("Server is shutting down."));
+        }
+    }
+
+    /**
+     * Stacks all rows of the batch into one matrix, runs one forward pass and completes each request with its slice
+     * of the result.
+     */
+    private void predict(final List<PendingRequest> batch, final int rows) {
+        final long start = System.nanoTime();
+        try {
+            //the handlers checked the width of each request, so every row has the same width
+            final int columns = batch.get(0).rows[0].length;
+            final float[] values = new float[rows * columns];
+            int offset = 0;
+            for (final PendingRequest request : batch) {
+                for (final float[] row : request.rows) {
+                    System.arraycopy(row, 0, values, offset, columns);
+                    offset += columns;
+                }
+            }
+            final INDArray output = trainer.output(Nd4j.create(values, new int[]{rows, columns}));
+            int fromRow = 0;
+            for (final PendingRequest request : batch) {
+                final int toRow = fromRow + request.rows.length;
+                request.result.complete(output.get(NDArrayIndex.interval(fromRow, toRow), NDArrayIndex.all()));
+                fromRow = toRow;
+            }
+        } catch (final RuntimeException e) {
+            for (final PendingRequest request : batch) {
+                request.result.completeExceptionally(e);
+            }
+        }
+        batchLatency.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Loads the best save state if it is not the one we are serving.
+     */
+    private void reloadIfNewer() {
+        final File lastSaveState = trainer.findBestSaveState(workingFolder);
+        if (lastSaveState == null) { return; }
+        final long modified = lastSaveState.lastModified();
+        if (lastSaveState.equals(currentSaveState) && modified == currentSaveStateModified) { return; }
+        try {
+            trainer.load(lastSaveState);
+            inputSize = trainer.inputSize();
+            currentSaveState = lastSaveState;
+            currentSaveStateModified = modified;
+            log.info("Reloaded model from: " + lastSaveState);
+        } catch (final RuntimeException e) {
+            log.warn("Could not reload model from " + lastSaveState + ", still serving " + currentSaveState, e);
+        }
+    }
+
+    private void handlePredict(final HttpExchange exchange) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "Use POST.\n");
+                return;
+            }
+            final float[][] rows;
+            try {
+                rows = parseRows(IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8), inputSize);
+            } catch (final IllegalArgumentException e) {
+                respond(exchange, 400, e.getMessage() + "\n");
+                return;
+            }
+            final PendingRequest request = new PendingRequest(rows);
+            queue.add(request);
+            final INDArray prediction;
+            try {
+                prediction = request.result.get(REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (final ExecutionException e) {
+                respond(exchange, 500, e.getCause().getMessage() + "\n");
+                return;
+            } catch (final TimeoutException | InterruptedException e) {
+                respond(exchange, 503, "Prediction timed out.\n");
+                return;
+            }
+            respond(exchange, 200, formatRows(prediction));
+        } finally {
+            requestLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    private void handleStats(final HttpExchange exchange) throws IOException {
+        respond(exchange, 200, "request latency: " + requestLatency.summary() + "\n" +
+                               "batch latency:   " + batchLatency.summary() + "\n" +
+                               "model:           " + currentSaveState + "\n");
+    }
+
+    /**
+     * Parses a request before it is batched, so a malformed request never fails the requests batched with it.
+     * @param columns number of values each line must have
+     * @return one float array per non empty line, values separated by commas
+     */
+    private static float[][] parseRows(final String body, final int columns) {
+        final List<float[]> result = new ArrayList<>();
+        for (final String line : body.split("\n")) {
+            final String trimmed = line.trim();
+            if (trimmed.isEmpty()) { continue; }
+            final String[] values = trimmed.split(",");
+            if (values.length != columns) {
+                throw new IllegalArgumentException("Expected " + columns + " features, got " + values.length + ": " + trimmed);
+            }
+            final float[] row = new float[values.length];
+            for (int idx = 0; idx < values.length; ++idx) {
+                try {
+                    row[idx] = Float.parseFloat(values[idx].trim());
+                } catch (final NumberFormatException nfe) {
+                    throw new IllegalArgumentException("Not a number: " + values[idx]);
+                }
+            }
+            result.add(row);
+        }
+        if (result.isEmpty()) {
+            throw new IllegalArgumentException("No input rows.");
+        }
+        return result.toArray(new float[result.size()][]);
+    }
+
+    private static String formatRows(final INDArray matrix) {
+        final StringBuilder result = new StringBuilder();
+        for (int row = 0; row < matrix.rows(); ++row) {
+            for (int column = 0; column < matrix.columns(); ++column) {
+                if (column > 0) {
+                    result.append(',');
+                }
+                result.append(matrix.getFloat(row, column));
+            }
+            result.append('\n');
+        }
+        return result.toString();
+    }
+
+    private static void respond(final HttpExchange exchange, final int status, final String body) throws IOException {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (final OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Stops accepting requests, fails pending ones and waits for the batching thread to end.
+     */
+    public void close() {
+        server.stop(0);
+        running = false;
+        batcher.interrupt();
+        try {
+            batcher.join();
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        handlers.shutdownNow();
+        log.info("Inference server stopped, request latency: " + requestLatency.summary());
+    }
+}
@@ -0,0 +1,108 @@
+package divisio.dl4jintro;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram for latencies in nanoseconds. Values are counted in logarithmic buckets with four
+ * sub-buckets per power of two, so percentiles are accurate to about 20% while recording is a single atomic
+ * increment, cheap enough for every training iteration.
+ */
+public class LatencyHistogram {
+
+    /** number of sub-buckets per power of two, as a number of bits */
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** enough buckets for any positive long */
+    private static final int BUCKET_COUNT = SUB_BUCKETS * 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @return the bucket for the given value
+     */
+    private static int bucketIndex(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the largest value that falls into the given bucket
+     */
+    private static long bucketUpperBound(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        final long subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Records one value.
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(final long nanos) {
+        buckets.incrementAndGet(bucketIndex(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long currentMax = max.get();
+        while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * @return number of recorded values
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return sum of all recorded values in nanoseconds
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * @return largest recorded value in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param quantile between 0 and 1, e.g. 0.99
+     * @return an upper bound for the given quantile of the recorded values in nanoseconds, 0 if nothing was recorded
+     */
+    public long getPercentile(final double quantile) {
+        final long total = count.get();
+        if (total == 0) { return 0; }
+        final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int idx = 0; idx < BUCKET_COUNT; ++idx) {
+            seen += buckets.get(idx);
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(idx), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * @return p50, p99 and max in milliseconds, for logging
+     */
+    public String summary() {
+        return String.format("n=%d p50=%.3fms p99=%.3fms max=%.3fms",
+                             getCount(), getPercentile(0.5) / 1e6, getPercentile(0.99) / 1e6, getMax() / 1e6);
+    }
+}
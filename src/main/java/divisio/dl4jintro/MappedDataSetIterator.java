@@ -0,0 +1,295 @@
+package divisio.dl4jintro;
+
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Iterates over a file in the {@link BinaryDataSetFile} format by memory mapping it, so we can train on data sets
+ * larger than RAM and let the OS page cache do the caching. Each minibatch is a block of consecutive rows that is
+ * copied from the mapped file with one bulk copy per section straight into the native buffer backing the minibatch,
+ * as long as the file stores the value type we train with. Otherwise values are converted through a heap array.
+ * Supports shuffling the block order on each reset and reading only a shard of the blocks, e.g. one per worker.
+ */
+public class MappedDataSetIterator implements DataSetIterator {
+
+    /** upper limit for a single mapping, mappings are limited to 2GB by the JDK */
+    private static final long MAX_MAPPING_BYTES = 1L << 30;
+
+    private final BinaryDataSetFile.Header header;
+    private final MappedSection features;
+    private final MappedSection labels;
+    /** number of rows per minibatch, the last block may be smaller */
+    private final int batchSize;
+    /** used to shuffle the block order on each reset, null if we do not shuffle */
+    private final Random random;
+    /** the blocks of our shard, in the order we visit them */
+    private final long[] blockOrder;
+    /** index into blockOrder of the current block */
+    private int cursor = 0;
+    /** number of rows of the current block handed out already */
+    private int blockOffset = 0;
+    /** optional pre processor */
+    private DataSetPreProcessor preProcessor;
+
+    /**
+     * Reads all blocks of the given file.
+     */
+    public MappedDataSetIterator(final File file, final int batchSize, final Random random) {
+        this(file, batchSize, random, 0, 1);
+    }
+
+    /**
+     * @param file a file in the {@link BinaryDataSetFile} format
+     * @param batchSize number of rows per minibatch
+     * @param random used to shuffle the block order on each reset, null to read blocks in file order
+     * @param shardIndex index of the shard to read, 0 &lt;= shardIndex &lt; shardCount
+     * @param shardCount number of shards the blocks are distributed over round robin
+     */
+    public MappedDataSetIterator(final File file, final int batchSize, final Random random,
+                                 final int shardIndex, final int shardCount) {
+        if (batchSize < 1 || shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+            throw new IllegalArgumentException("Invalid batch size / shard: " + batchSize + ", " +
+                                               shardIndex + "/" + shardCount);
+        }
+        this.header = BinaryDataSetFile.readHeader(file);
+        this.batchSize = batchSize;
+        this.random = random;
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            //mappings stay valid after the channel is closed
+            this.features = new MappedSection(channel, header.featuresOffset(), header.featureCount, header);
+            this.labels = new MappedSection(channel, header.labelsOffset(), header.labelCount, header);
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not map binary data set file: " + file, e);
+        }
+        final long blockCount = (header.rows + batchSize - 1) / batchSize;
+        final long shardBlocks = blockCount / shardCount + (shardIndex < blockCount % shardCount ? 1 : 0);
+        this.blockOrder = new long[(int) shardBlocks];
+        for (int idx = 0; idx < blockOrder.length; ++idx) {
+            blockOrder[idx] = (long) idx * shardCount + shardIndex;
+        }
+        shuffle();
+    }
+
+    /**
+     * Fisher-Yates shuffle of the block order, if we have a random generator.
+     */
+    private void shuffle() {
+        if (random == null) { return; }
+        for (int idx = blockOrder.length - 1; idx > 0; --idx) {
+            final int swapIdx = random.nextInt(idx + 1);
+            final long tmp = blockOrder[idx];
+            blockOrder[idx] = blockOrder[swapIdx];
+            blockOrder[swapIdx] = tmp;
+        }
+    }
+
+    /**
+     * @return the header of the file we read
+     */
+    public BinaryDataSetFile.Header getHeader() {
+        return header;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return cursor < blockOrder.length;
+    }
+
+    @Override
+    public DataSet next() {
+        return next(batchSize);
+    }
+
+    /**
+     * Takes up to num rows from the current position on, across blocks if needed, still with one copy per section
+     * and block.
+     */
+    @Override
+    public DataSet next(final int num) {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        //collect the row ranges first, so each section is read into one array
+        final List<long[]> ranges = new ArrayList<>();
+        int rowCount = 0;
+        while (rowCount < num && hasNext()) {
+            final long blockStart = blockOrder[cursor] * batchSize;
+            final int blockRows = (int) Math.min(batchSize, header.rows - blockStart);
+            final int taken = Math.min(num - rowCount, blockRows - blockOffset);
+            ranges.add(new long[]{blockStart + blockOffset, taken});
+            rowCount += taken;
+            blockOffset += taken;
+            if (blockOffset == blockRows) {
+                ++cursor;
+                blockOffset = 0;
+            }
+        }
+        final DataSet result = new DataSet(features.read(ranges, rowCount), labels.read(ranges, rowCount));
+        if (preProcessor != null) {
+            preProcessor.preProcess(result);
+        }
+        return result;
+    }
+
+    @Override
+    public int inputColumns() {
+        return header.featureCount;
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return header.labelCount;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        cursor = 0;
+        blockOffset = 0;
+        shuffle();
+    }
+
+    @Override
+    public int batch() {
+        return batchSize;
+    }
+
+    @Override
+    public void setPreProcessor(final DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return null;
+    }
+
+    /**
+     * One section (features or labels) of the file, mapped in segments that each hold a whole number of rows, so
+     * a row never spans two mappings.
+     */
+    private static class MappedSection {
+        private final List<MappedByteBuffer> segments = new ArrayList<>();
+        private final int columns;
+        private final int bytesPerValue;
+        private final long rowsPerSegment;
+
+        MappedSection(final FileChannel channel, final long offset, final int columns,
+                      final BinaryDataSetFile.Header header) throws IOException {
+            this.columns = columns;
+            this.bytesPerValue = header.bytesPerValue;
+            final long rowBytes = Math.max(1L, (long) columns * bytesPerValue);
+            this.rowsPerSegment = Math.max(1L, MAX_MAPPING_BYTES / rowBytes);
+            for (long row = 0; row < header.rows; row += rowsPerSegment) {
+                final long rows = Math.min(rowsPerSegment, header.rows - row);
+                final MappedByteBuffer segment =
+                    channel.map(FileChannel.MapMode.READ_ONLY, offset + row * rowBytes, rows * rowBytes);
+                segment.order(ByteOrder.LITTLE_ENDIAN);
+                segments.add(segment);
+            }
+        }
+
+        /**
+         * Copies the given row ranges, one after the other, into a new matrix.
+         * @param ranges first row and number of rows of each range
+         * @param rowCount total number of rows of all ranges
+         */
+        INDArray read(final List<long[]> ranges, final int rowCount) {
+            final INDArray result = Nd4j.createUninitialized(new int[]{rowCount, columns}, 'c');
+            final DataBuffer data = result.data();
+            if (data.getElementSize() != bytesPerValue || ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN) {
+                return readConverted(ranges, rowCount, result);
+            }
+            //same value type and byte order: copy the bytes from the mapping straight into the native buffer
+            final ByteBuffer target = data.asNio();
+            int done = 0;
+            for (final long[] range : ranges) {
+                final int first = done;
+                final int end = done + (int) range[1];
+                while (done < end) {
+                    final long row = range[0] + done - first;
+                    final int segmentRows = rowsInSegment(row, end - done);
+                    final ByteBuffer source = segment(row);
+                    source.limit(source.position() + segmentRows * columns * bytesPerValue);
+                    target.position(done * columns * bytesPerValue);
+                    target.put(source);
+                    done += segmentRows;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Reads the given row ranges into the given matrix if the file stores another value type than the one we
+         * train with, values are converted through a heap array.
+         */
+        private INDArray readConverted(final List<long[]> ranges, final int rowCount, final INDArray result) {
+            final double[] values = new double[rowCount * columns];
+            int done = 0;
+            for (final long[] range : ranges) {
+                final int first = done;
+                final int end = done + (int) range[1];
+                while (done < end) {
+                    final long row = range[0] + done - first;
+                    final int segmentRows = rowsInSegment(row, end - done);
+                    final ByteBuffer source = segment(row);
+                    for (int idx = done * columns; idx < (done + segmentRows) * columns; ++idx) {
+                        values[idx] = bytesPerValue == 8 ? source.getDouble() : source.getFloat();
+                    }
+                    done += segmentRows;
+                }
+            }
+            result.data().setData(values);
+            return result;
+        }
+
+        /**
+         * @return number of the wanted rows starting at the given row that are in the same segment
+         */
+        private int rowsInSegment(final long row, final int wanted) {
+            final long left = rowsPerSegment - row % rowsPerSegment;
+            return (int) Math.min(left, wanted);
+        }
+
+        /**
+         * @return an independent buffer positioned at the given row, so concurrent readers (e.g. prefetching
+         * threads) never share a buffer position
+         */
+        private ByteBuffer segment(final long row) {
+            final MappedByteBuffer segment = segments.get((int) (row / rowsPerSegment));
+            final ByteBuffer result = segment.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            result.position((int) (row % rowsPerSegment * columns * bytesPerValue));
+            return result;
+        }
+    }
+}
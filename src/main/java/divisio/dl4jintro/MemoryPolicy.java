@@ -0,0 +1,27 @@
+package divisio.dl4jintro;
+
+import org.deeplearning4j.nn.conf.WorkspaceMode;
+
+/**
+ * How ND4J memory is allocated for training & inference. Without workspaces every temporary array of every
+ * iteration is a separate native allocation that is only freed once the garbage collector finds its Java object.
+ * With workspaces, DL4J keeps the activations, gradients and other temporaries of each fit and output call in its
+ * own workspaces, so after warm-up the hot path reuses the same memory. DL4J decides which arrays live in which
+ * workspace and which have to outlive them, so we only switch its workspaces on and do not open any of our own
+ * around its calls.
+ */
+public enum MemoryPolicy {
+
+    /** default ND4J allocation, no workspaces */
+    NONE,
+
+    /** DL4J's workspaces for training and inference, sized by DL4J while it runs the first iterations */
+    WORKSPACES;
+
+    /**
+     * @return the workspace mode for the network's training & inference workspaces
+     */
+    public WorkspaceMode workspaceMode() {
+        return this == NONE ? WorkspaceMode.NONE : WorkspaceMode.ENABLED;
+    }
+}
@@ -0,0 +1,22 @@
+package divisio.dl4jintro;
+
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.optimize.api.BaseTrainingListener;
+
+/**
+ * Passes iteration and score of each finished iteration to {@link TrainingMetrics}. Only stores two values, so it
+ * can stay attached for every iteration.
+ */
+public class MetricsListener extends BaseTrainingListener {
+
+    private final TrainingMetrics metrics;
+
+    public MetricsListener(final TrainingMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void iterationDone(final Model model, final int iteration, final int epoch) {
+        metrics.recordIteration(iteration, model.score());
+    }
+}
@@ -0,0 +1,100 @@
+package divisio.dl4jintro;
+
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes {@link TrainingMetrics}: on a local HTTP endpoint in the Prometheus text format and periodically as a
+ * line in a CSV file. Both run on their own threads, the training thread is never involved.
+ */
+public class MetricsReporter {
+
+    private static final Logger log = LoggerFactory.getLogger(MetricsReporter.class);
+
+    private final TrainingMetrics metrics;
+    /** serves /metrics, null if disabled */
+    private final HttpServer server;
+    /** appends to the CSV file */
+    private final ScheduledExecutorService csvWriter;
+    private final File csvFile;
+
+    /**
+     * Starts the HTTP endpoint and the CSV writer.
+     * @param metrics the metrics to publish
+     * @param port local port for the HTTP endpoint, 0 to disable it
+     * @param csvFile file to append CSV lines to
+     * @param csvEveryS seconds between two CSV lines
+     */
+    public MetricsReporter(final TrainingMetrics metrics, final int port, final File csvFile, final int csvEveryS) {
+        this.metrics = metrics;
+        this.csvFile = csvFile;
+        this.server = port > 0 ? startServer(port) : null;
+        this.csvWriter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "metrics-csv");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (!csvFile.exists()) {
+            appendLine(TrainingMetrics.csvHeader());
+        }
+        csvWriter.scheduleAtFixedRate(() -> appendLine(metrics.toCsvRow()), csvEveryS, csvEveryS, TimeUnit.SECONDS);
+    }
+
+    private HttpServer startServer(final int port) {
+        try {
+            //only bind to loopback, this is meant for a local scraper, not for the world
+            final HttpServer result = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            result.createContext("/metrics", exchange -> {
+                final byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (final OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            result.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "metrics-http");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            result.start();
+            log.info("Serving metrics on http://localhost:" + port + "/metrics");
+            return result;
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not start metrics endpoint on port " + port, e);
+        }
+    }
+
+    private void appendLine(final String line) {
+        try (final Writer writer = new FileWriter(csvFile, true)) {
+            writer.write(line);
+            writer.write('\n');
+        } catch (final IOException e) {
+            log.warn("Could not write metrics to " + csvFile, e);
+        }
+    }
+
+    /**
+     * Writes a last CSV line and stops the endpoint.
+     */
+    public void close() {
+        csvWriter.shutdownNow();
+        appendLine(metrics.toCsvRow());
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+}
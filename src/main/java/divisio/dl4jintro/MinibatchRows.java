@@ -0,0 +1,67 @@
+package divisio.dl4jintro;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers for iterators that hand out minibatches of any size, see
+ * {@link org.nd4j.linalg.dataset.api.iterator.DataSetIterator#next(int)}, from data that arrives in minibatches of
+ * another size: cutting rows out of a minibatch and putting pieces back together. Example meta data is kept, masks
+ * are not supported, none of our data has them.
+ */
+final class MinibatchRows {
+
+    private MinibatchRows() {
+    }
+
+    /**
+     * @return the given rows of the minibatch, as views, or the minibatch itself if all rows are wanted
+     */
+    static DataSet slice(final DataSet data, final int fromRow, final int toRow) {
+        if (fromRow == 0 && toRow == data.numExamples()) {
+            return data;
+        }
+        final DataSet result = new DataSet(
+            data.getFeatures().get(NDArrayIndex.interval(fromRow, toRow), NDArrayIndex.all()),
+            data.getLabels().get(NDArrayIndex.interval(fromRow, toRow), NDArrayIndex.all())
+        );
+        final List<Serializable> metaData = data.getExampleMetaData();
+        if (metaData != null) {
+            result.setExampleMetaData(new ArrayList<>(metaData.subList(fromRow, toRow)));
+        }
+        return result;
+    }
+
+    /**
+     * @return one minibatch with the rows of all pieces, in order, the piece itself if there is only one
+     */
+    static DataSet concat(final List<DataSet> pieces) {
+        if (pieces.size() == 1) {
+            return pieces.get(0);
+        }
+        final List<INDArray> features = new ArrayList<>(pieces.size());
+        final List<INDArray> labels = new ArrayList<>(pieces.size());
+        List<Serializable> metaData = new ArrayList<>();
+        for (final DataSet piece : pieces) {
+            features.add(piece.getFeatures());
+            labels.add(piece.getLabels());
+            if (metaData != null && piece.getExampleMetaData() != null) {
+                metaData.addAll(piece.getExampleMetaData());
+            } else {
+                //meta data only makes sense if every row has it
+                metaData = null;
+            }
+        }
+        final DataSet result = new DataSet(Nd4j.vstack(features), Nd4j.vstack(labels));
+        if (metaData != null) {
+            result.setExampleMetaData(metaData);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,106 @@
+package divisio.dl4jintro;
+
+import org.deeplearning4j.nn.api.Updater;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * An in-memory copy of the state of a MultiLayerNetwork: configuration (including epoch & iteration count),
+ * parameters and updater state. Taking a snapshot only copies two flat arrays, so it is cheap enough to do on the
+ * training thread. Everything expensive (building a network from it, serializing it) can then happen elsewhere.
+ */
+class NetworkSnapshot {
+
+    /** copy of the configuration, also holds epoch and iteration count */
+    private final MultiLayerConfiguration configuration;
+    /** copy of the flattened parameters */
+    private final INDArray parameters;
+    /** copy of the flattened updater state, null if the network has no updater state (yet) */
+    private final INDArray updaterState;
+
+    private NetworkSnapshot(final MultiLayerConfiguration configuration,
+                            final INDArray parameters,
+                            final INDArray updaterState) {
+        this.configuration = configuration;
+        this.parameters = parameters;
+        this.updaterState = updaterState;
+    }
+
+    /**
+     * Copies the current state of the given network.
+     * @param network not null, must not be trained concurrently while the snapshot is taken
+     * @return a snapshot that is independent of further changes to the network
+     */
+    static NetworkSnapshot of(final MultiLayerNetwork network) {
+        final Updater updater = network.getUpdater();
+        final INDArray updaterState = updater == null ? null : updater.getStateViewArray();
+        return new NetworkSnapshot(
+            network.getLayerWiseConfigurations().clone(),
+            network.params().dup(),
+            updaterState == null ? null : updaterState.dup()
+        );
+    }
+
+    /**
+     * Copies only configuration and parameters of the given network, enough for inference & validation.
+     * @param network not null, must not be trained concurrently while the snapshot is taken
+     * @return a snapshot without updater state
+     */
+    static NetworkSnapshot parametersOf(final MultiLayerNetwork network) {
+        return new NetworkSnapshot(
+            network.getLayerWiseConfigurations().clone(),
+            network.params().dup(),
+            null
+        );
+    }
+
+    /**
+     * @return the copied configuration
+     */
+    MultiLayerConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * @return the copied flattened parameters
+     */
+    INDArray getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @return the copied flattened updater state, null if the snapshot has none
+     */
+    INDArray getUpdaterState() {
+        return updaterState;
+    }
+
+    /**
+     * @return the epoch count at the time the snapshot was taken
+     */
+    int getEpochCount() {
+        return configuration.getEpochCount();
+    }
+
+    /**
+     * @return the iteration count at the time the snapshot was taken
+     */
+    int getIterationCount() {
+        return configuration.getIterationCount();
+    }
+
+    /**
+     * Builds a new network from this snapshot. The snapshot's arrays are used directly, so each snapshot should
+     * only be restored once.
+     * @return a new, initialized network with the state of the snapshot
+     */
+    MultiLayerNetwork restore() {
+        final MultiLayerNetwork network = new MultiLayerNetwork(configuration);
+        network.init(parameters, false);
+        if (updaterState != null) {
+            network.getUpdater().setStateViewArray(network, updaterState, false);
+        }
+        return network;
+    }
+}
@@ -0,0 +1,148 @@
+package divisio.dl4jintro;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Data parallel training on a single machine: keeps one replica of the master network per worker thread, fits each
+ * replica on its own minibatch and periodically averages parameters and updater state of all replicas back into
+ * the master. Averaging after every step is the closest we get to synchronous gradient sharing, larger averaging
+ * frequencies trade accuracy for less synchronization.
+ * The master network is the one that is saved and validated, so save states stay compatible with single threaded
+ * training.
+ */
+class ParameterAveragingWorkers {
+
+    /** the network that receives the averaged parameters */
+    private final MultiLayerNetwork master;
+    /** one copy of the master per worker */
+    private final List<MultiLayerNetwork> replicas = new ArrayList<>();
+    /** runs the fits of the replicas */
+    private final ExecutorService executor;
+    /** number of parallel steps between averaging */
+    private final int averagingFrequency;
+    /** number of parallel steps since we last averaged */
+    private int stepsSinceAveraging = 0;
+
+    /**
+     * @param master the network to train, its parameters are updated on each averaging step
+     * @param workerCount number of replicas & threads, at least 2
+     * @param averagingFrequency number of parallel steps between averaging, at least 1
+     */
+    ParameterAveragingWorkers(final MultiLayerNetwork master, final int workerCount, final int averagingFrequency) {
+        if (workerCount < 2 || averagingFrequency < 1) {
+            throw new IllegalArgumentException("Need at least two workers and a positive averaging frequency, got: " +
+                                               workerCount + ", " + averagingFrequency);
+        }
+        this.master = master;
+        this.averagingFrequency = averagingFrequency;
+        for (int idx = 0; idx < workerCount; ++idx) {
+            replicas.add(master.clone());
+        }
+        //only the first replica reports to the listeners, otherwise we would log every score n times
+        replicas.get(0).setListeners(master.getListeners());
+        this.executor = Executors.newFixedThreadPool(workerCount, runnable -> {
+            final Thread thread = new Thread(runnable, "training-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return number of replicas, i.e. the number of minibatches {@link #fit(List)} can process in one step
+     */
+    int getWorkerCount() {
+        return replicas.size();
+    }
+
+    /**
+     * Fits one replica per given minibatch in parallel, then averages if it is time to do so.
+     * @param minibatches at most {@link #getWorkerCount()} minibatches
+     */
+    void fit(final List<DataSet> minibatches) {
+        final List<Future<?>> results = new ArrayList<>(minibatches.size());
+        for (int idx = 0; idx < minibatches.size(); ++idx) {
+            final MultiLayerNetwork replica = replicas.get(idx);
+            final DataSet minibatch = minibatches.get(idx);
+            results.add(executor.submit(() -> replica.fit(minibatch)));
+        }
+        for (final Future<?> result : results) {
+            try {
+                result.get();
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for training workers.", ie);
+            } catch (final ExecutionException ee) {
+                throw new RuntimeException("Training worker failed.", ee.getCause());
+            }
+        }
+        //keep the master's iteration count in sync with the total number of minibatches we fitted
+        master.getLayerWiseConfigurations().setIterationCount(master.getIterationCount() + minibatches.size());
+        ++stepsSinceAveraging;
+        if (stepsSinceAveraging >= averagingFrequency) {
+            average();
+        }
+    }
+
+    /**
+     * Averages parameters and updater state of all replicas into the master, then copies the result back into
+     * all replicas. Does nothing if no step was done since the last averaging.
+     */
+    void average() {
+        if (stepsSinceAveraging == 0) { return; }
+        average(master.params(), replicaParams());
+        final INDArray masterUpdaterState = master.getUpdater().getStateViewArray();
+        if (masterUpdaterState != null) {
+            average(masterUpdaterState, replicaUpdaterStates());
+        }
+        for (final MultiLayerNetwork replica : replicas) {
+            replica.params().assign(master.params());
+            if (masterUpdaterState != null) {
+                replica.getUpdater().getStateViewArray().assign(masterUpdaterState);
+            }
+        }
+        stepsSinceAveraging = 0;
+    }
+
+    private List<INDArray> replicaParams() {
+        final List<INDArray> result = new ArrayList<>(replicas.size());
+        for (final MultiLayerNetwork replica : replicas) {
+            result.add(replica.params());
+        }
+        return result;
+    }
+
+    private List<INDArray> replicaUpdaterStates() {
+        final List<INDArray> result = new ArrayList<>(replicas.size());
+        for (final MultiLayerNetwork replica : replicas) {
+            result.add(replica.getUpdater().getStateViewArray());
+        }
+        return result;
+    }
+
+    /**
+     * Writes the mean of all sources into the target, in place.
+     */
+    private static void average(final INDArray target, final List<INDArray> sources) {
+        target.assign(sources.get(0));
+        for (int idx = 1; idx < sources.size(); ++idx) {
+            target.addi(sources.get(idx));
+        }
+        target.divi(sources.size());
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    void close() {
+        executor.shutdownNow();
+    }
+}
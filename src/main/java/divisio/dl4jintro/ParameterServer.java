@@ -0,0 +1,369 @@
+package divisio.dl4jintro;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coordinator for data parallel training across JVMs: holds the master parameters and accepts connections from
+ * {@link ParameterServerClient}s on a local port, one thread per worker. Workers train on their own data and push
+ * the change of their parameters since the last exchange, dense or threshold encoded; the server adds each change,
+ * scaled, to the master parameters and answers with the current master parameters.
+ * <p>
+ * Updates are applied asynchronously in the order they arrive. With a staleness bound, a worker that pushed more
+ * than that many times more than the slowest connected worker waits for the others before it gets its answer
+ * (stale synchronous parallel). A push is read completely before it is applied, so a worker crashing in the middle
+ * of a push does not touch the master parameters; it is simply removed and no longer holds back the others. A worker
+ * that sends nothing for longer than the timeout, e.g. because it hangs, is removed the same way. Only the server
+ * times out: its answer to a push may be held back by the staleness bound, so clients wait for it as long as it takes.
+ * <p>
+ * Protocol, big endian: the client sends {@link #MAGIC} and its worker id, the server answers with the current
+ * version (number of applied pushes) and the parameters as float count and floats. Each push is a message type,
+ * the number of examples fitted for it and the update, answered like the handshake. {@link #BYE} ends the session.
+ */
+public class ParameterServer implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(ParameterServer.class);
+
+    /** first int a client sends */
+    static final int MAGIC = 0x50534431;
+    //message types
+    static final byte BYE = 0;
+    static final byte DENSE = 1;
+    static final byte THRESHOLD = 2;
+
+    /** how long waiting workers sleep between checks, in case a notification is missed */
+    private static final long WAIT_MILLIS = 100;
+
+    /** the master parameters, guarded by this */
+    private final float[] params;
+    /** maximum number of pushes a worker may be ahead of the slowest one, negative for fully asynchronous */
+    private final int staleness;
+    /** how long a worker may send nothing before it is removed, in milliseconds, 0 waits forever */
+    private final int timeoutMillis;
+    /** factor for each pushed change, e.g. 1 / number of workers */
+    private final float deltaScale;
+    private final ServerSocket serverSocket;
+    /** number of pushes per connected worker id, guarded by this */
+    private final Map<Integer, Long> clocks = new HashMap<>();
+    /** open connections and the threads serving them */
+    private final Map<Socket, Thread> connections = new ConcurrentHashMap<>();
+    /** number of applied pushes, guarded by this */
+    private long version = 0;
+    private final AtomicLong sampleCount = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private volatile boolean running = true;
+
+    /**
+     * Starts listening.
+     * @param port local port to listen on, 0 for any free port
+     * @param initialParams the parameters to start from, copied
+     * @param staleness maximum number of pushes a worker may be ahead of the slowest one, negative for asynchronous
+     * @param deltaScale factor for each pushed change
+     * @param timeoutMillis how long a worker may send nothing before it is removed, 0 waits forever
+     */
+    public ParameterServer(final int port, final INDArray initialParams, final int staleness, final double deltaScale,
+                           final int timeoutMillis) {
+        this.params = initialParams.dup().data().asFloat();
+        this.staleness = staleness;
+        this.timeoutMillis = timeoutMillis;
+        this.deltaScale = (float) deltaScale;
+        try {
+            this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not listen for training workers on port " + port, e);
+        }
+        final Thread acceptor = new Thread(this::accept, "parameter-server-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log.info("Parameter server for " + params.length + " parameters on localhost:" + getPort() +
+                 (staleness < 0 ? ", asynchronous" : ", staleness bound " + staleness));
+    }
+
+    /**
+     * @return the port we listen on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return number of pushes applied so far
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return number of connected workers
+     */
+    public synchronized int getWorkerCount() {
+        return clocks.size();
+    }
+
+    /**
+     * @return number of examples the workers fitted for the pushes applied so far
+     */
+    public long getSampleCount() {
+        return sampleCount.get();
+    }
+
+    /**
+     * @return number of update bytes received so far
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Copies the master parameters into the given network parameters, e.g. before saving or validating.
+     */
+    public synchronized void exportParams(final INDArray target) {
+        target.assign(Nd4j.create(params));
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(timeoutMillis);
+                final Thread handler = new Thread(() -> serve(socket), "parameter-server-" + socket.getPort());
+                handler.setDaemon(true);
+                connections.put(socket, handler);
+                handler.start();
+            } catch (final IOException e) {
+                if (running) {
+                    log.warn("Could not accept connection.", e);
+                }
+            }
+        }
+    }
+
+    private void serve(final Socket socket) {
+        int workerId = -1;
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+             final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16)))
+        {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a parameter server client: " + socket.getRemoteSocketAddress());
+            }
+            final int id = in.readInt();
+            join(id);
+            workerId = id;
+            log.info("Worker " + id + " connected from " + socket.getRemoteSocketAddress());
+
+            final float[] reply = new float[params.length];
+            final float[] dense = new float[params.length];
+            final int[] indices = new int[params.length];
+            final ByteBuffer buffer = ByteBuffer.allocate(4 * params.length);
+            sendParams(out, reply, buffer);
+            while (running) {
+                final byte type = in.readByte();
+                if (type == BYE) { break; }
+                final long samples = in.readLong();
+                if (type == DENSE) {
+                    readFloats(in, dense, buffer);
+                    bytesReceived.addAndGet(4L * dense.length + 13);
+                    push(id, dense, null, 0, 0.0f);
+                } else if (type == THRESHOLD) {
+                    final float threshold = in.readFloat();
+                    final int count = readInts(in, indices, buffer);
+                    bytesReceived.addAndGet(4L * count + 17);
+                    push(id, null, indices, count, threshold);
+                } else {
+                    throw new IOException("Unknown message type: " + type);
+                }
+                sampleCount.addAndGet(samples);
+                sendParams(out, reply, buffer);
+            }
+            log.info("Worker " + id + " finished.");
+        } catch (final EOFException e) {
+            if (running) {
+                log.warn("Worker " + workerId + " disconnected without saying goodbye, continuing without it.");
+            }
+        } catch (final SocketTimeoutException e) {
+            if (running) {
+                log.warn("Worker " + workerId + " sent nothing for " + timeoutMillis + " ms, continuing without it.");
+            }
+        } catch (final IOException e) {
+            if (running) {
+                log.warn("Lost worker " + workerId + ", continuing without it.", e);
+            }
+        } finally {
+            leave(workerId);
+            connections.remove(socket);
+        }
+    }
+
+    /**
+     * Registers a worker, a (re)joining worker starts at the clock of the slowest one so it does not hold back others.
+     */
+    private synchronized void join(final int workerId) throws IOException {
+        if (clocks.containsKey(workerId)) {
+            throw new IOException("Worker " + workerId + " is already connected.");
+        }
+        clocks.put(workerId, clocks.isEmpty() ? 0 : minClock());
+        notifyAll();
+    }
+
+    private synchronized void leave(final int workerId) {
+        if (workerId >= 0 && clocks.remove(workerId) != null) {
+            //the others might be waiting for this worker
+            notifyAll();
+        }
+    }
+
+    /**
+     * Applies one push, then waits while the pushing worker is too far ahead of the slowest one.
+     */
+    private synchronized void push(final int workerId, final float[] dense, final int[] indices, final int count,
+                                   final float threshold) {
+        if (dense != null) {
+            for (int idx = 0; idx < params.length; ++idx) {
+                params[idx] += deltaScale * dense[idx];
+            }
+        } else {
+            ThresholdEncoding.decode(indices, count, deltaScale * threshold, params);
+        }
+        ++version;
+        clocks.put(workerId, clocks.get(workerId) + 1);
+        notifyAll();
+        if (staleness < 0) { return; }
+        try {
+            while (running && clocks.containsKey(workerId) && clocks.get(workerId) - minClock() > staleness) {
+                wait(WAIT_MILLIS);
+            }
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private long minClock() {
+        long result = Long.MAX_VALUE;
+        for (final long clock : clocks.values()) {
+            result = Math.min(result, clock);
+        }
+        return result;
+    }
+
+    /**
+     * Sends the version and a consistent copy of the master parameters.
+     */
+    private void sendParams(final DataOutputStream out, final float[] reply, final ByteBuffer buffer)
+        throws IOException
+    {
+        final long currentVersion;
+        synchronized (this) {
+            System.arraycopy(params, 0, reply, 0, params.length);
+            currentVersion = version;
+        }
+        out.writeLong(currentVersion);
+        writeFloats(out, reply, buffer);
+        out.flush();
+    }
+
+    /**
+     * Writes the number of floats and the floats in one bulk write.
+     */
+    static void writeFloats(final DataOutputStream out, final float[] values, final ByteBuffer buffer)
+        throws IOException
+    {
+        buffer.clear();
+        buffer.asFloatBuffer().put(values);
+        out.writeInt(values.length);
+        out.write(buffer.array(), 0, 4 * values.length);
+    }
+
+    /**
+     * Reads floats written by {@link #writeFloats(DataOutputStream, float[], ByteBuffer)}, their number must match.
+     */
+    static void readFloats(final DataInputStream in, final float[] target, final ByteBuffer buffer)
+        throws IOException
+    {
+        final int count = in.readInt();
+        if (count != target.length) {
+            throw new IOException("Expected " + target.length + " parameters, got " + count);
+        }
+        in.readFully(buffer.array(), 0, 4 * count);
+        buffer.clear();
+        buffer.asFloatBuffer().get(target, 0, count);
+    }
+
+    /**
+     * Writes the number of ints and the first count ints in one bulk write.
+     */
+    static void writeInts(final DataOutputStream out, final int[] values, final int count, final ByteBuffer buffer)
+        throws IOException
+    {
+        buffer.clear();
+        buffer.asIntBuffer().put(values, 0, count);
+        out.writeInt(count);
+        out.write(buffer.array(), 0, 4 * count);
+    }
+
+    /**
+     * Reads threshold encoded indices written by {@link #writeInts(DataOutputStream, int[], int, ByteBuffer)} and
+     * checks them, so a corrupt push is rejected before any of it is applied.
+     * @param target receives the indices, its length is the number of parameters they index
+     * @return number of ints read
+     */
+    static int readInts(final DataInputStream in, final int[] target, final ByteBuffer buffer) throws IOException {
+        final int count = in.readInt();
+        if (count < 0 || count > target.length) {
+            throw new IOException("Invalid number of encoded values: " + count);
+        }
+        in.readFully(buffer.array(), 0, 4 * count);
+        buffer.clear();
+        buffer.asIntBuffer().get(target, 0, count);
+        for (int idx = 0; idx < count; ++idx) {
+            //signed 1-based indices, Integer.MIN_VALUE has no positive counterpart
+            final int encoded = target[idx];
+            if (encoded == 0 || encoded == Integer.MIN_VALUE || Math.abs(encoded) > target.length) {
+                throw new IOException("Invalid encoded index: " + encoded);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Stops accepting workers and closes all connections.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (final IOException e) {
+            log.warn("Could not close parameter server socket.", e);
+        }
+        for (final Socket socket : connections.keySet()) {
+            try {
+                socket.close();
+            } catch (final IOException e) {
+                //we are shutting down anyway
+            }
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+}
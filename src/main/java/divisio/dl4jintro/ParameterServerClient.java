@@ -0,0 +1,153 @@
+package divisio.dl4jintro;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Worker side of a {@link ParameterServer}: pushes how the local parameters changed since the last exchange and
+ * replaces them with the master parameters it gets back. With a threshold, changes are threshold encoded and what
+ * is not sent yet is kept in a residual for the next push, see {@link ThresholdEncoding}.
+ */
+public class ParameterServerClient implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(ParameterServerClient.class);
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    /** threshold for encoding changes, 0 sends them dense */
+    private final float threshold;
+    /** the master parameters of the last exchange */
+    private final float[] synced;
+    /** change not sent yet, only used with a threshold */
+    private final float[] residual;
+    private final float[] delta;
+    private final int[] indices;
+    private final ByteBuffer buffer;
+    /** master version of the last exchange */
+    private long version;
+    private long bytesSent = 0;
+
+    /**
+     * Connects and fetches the master parameters.
+     * @param host the coordinator's host
+     * @param port the coordinator's port
+     * @param workerId id of this worker, unique among the connected workers
+     * @param threshold threshold for encoding changes, 0 sends them dense
+     */
+    public ParameterServerClient(final String host, final int port, final int workerId, final float threshold) {
+        this.threshold = threshold;
+        try {
+            this.socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            out.writeInt(ParameterServer.MAGIC);
+            out.writeInt(workerId);
+            out.flush();
+            this.version = in.readLong();
+            //the handshake tells us the number of parameters
+            final int count = in.readInt();
+            this.synced = new float[count];
+            this.buffer = ByteBuffer.allocate(4 * count);
+            in.readFully(buffer.array(), 0, 4 * count);
+            buffer.asFloatBuffer().get(synced);
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not connect to parameter server " + host + ":" + port, e);
+        }
+        this.residual = new float[synced.length];
+        this.delta = new float[synced.length];
+        this.indices = new int[synced.length];
+        log.info("Connected to parameter server " + host + ":" + port + " as worker " + workerId +
+                 ", master version " + version);
+    }
+
+    /**
+     * Copies the master parameters of the last exchange into the given network parameters.
+     */
+    public void copyTo(final INDArray params) {
+        if (params.length() != synced.length) {
+            throw new IllegalArgumentException("Network has " + params.length() + " parameters, master has " +
+                                               synced.length);
+        }
+        params.assign(Nd4j.create(synced));
+    }
+
+    /**
+     * Pushes the change of the given parameters since the last exchange and replaces them with the master
+     * parameters.
+     * @param params the network parameters, updated in place
+     * @param samples number of examples fitted since the last push
+     */
+    public void push(final INDArray params, final long samples) {
+        final float[] local = params.dup().data().asFloat();
+        try {
+            out.writeByte(threshold > 0.0f ? ParameterServer.THRESHOLD : ParameterServer.DENSE);
+            out.writeLong(samples);
+            if (threshold > 0.0f) {
+                for (int idx = 0; idx < local.length; ++idx) {
+                    residual[idx] += local[idx] - synced[idx];
+                }
+                final int count = ThresholdEncoding.encode(residual, threshold, indices);
+                out.writeFloat(threshold);
+                ParameterServer.writeInts(out, indices, count, buffer);
+                bytesSent += 4L * count + 17;
+            } else {
+                for (int idx = 0; idx < local.length; ++idx) {
+                    delta[idx] = local[idx] - synced[idx];
+                }
+                ParameterServer.writeFloats(out, delta, buffer);
+                bytesSent += 4L * delta.length + 13;
+            }
+            out.flush();
+            version = in.readLong();
+            ParameterServer.readFloats(in, synced, buffer);
+        } catch (final IOException e) {
+            throw new RuntimeException("Lost connection to parameter server.", e);
+        }
+        copyTo(params);
+    }
+
+    /**
+     * @return master version of the last exchange
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return number of update bytes sent so far
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Says goodbye and closes the connection.
+     */
+    @Override
+    public void close() {
+        try {
+            out.writeByte(ParameterServer.BYE);
+            out.flush();
+        } catch (final IOException e) {
+            //the coordinator is gone already, nothing to say goodbye to
+        }
+        try {
+            socket.close();
+        } catch (final IOException e) {
+            log.warn("Could not close connection to parameter server.", e);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package divisio.dl4jintro;
+
+import org.bytedeco.javacpp.Pointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Calibrates batch size and native thread count on the actual model before training: trains a fresh trainer for a
+ * short, fixed time per candidate setting, measures samples/sec and the peak native memory ND4J allocated, and picks
+ * the fastest setting that stays within the memory ceiling.
+ * <p>
+ * If an effective batch size is given, only batch sizes dividing it are tried and the gradients of
+ * effectiveBatchSize / batchSize minibatches are accumulated per parameter update, so the optimization behaves the
+ * same no matter which batch size is fastest. The native thread count is global, so trials run one after the other.
+ */
+public class PerformanceTuner {
+
+    private static final Logger log = LoggerFactory.getLogger(PerformanceTuner.class);
+
+    /**
+     * Measurements of a single candidate.
+     */
+    private static class Trial {
+        final TunedSettings settings;
+        double samplesPerSecond = 0.0;
+        long peakBytes = 0;
+        /** why the candidate was rejected, null if it is eligible */
+        String rejected;
+
+        Trial(final TunedSettings settings) {
+            this.settings = settings;
+        }
+    }
+
+    private final Function<TunedSettings, Trainer> trainerFactory;
+    private final long trialMillis;
+    private final long maxMemoryBytes;
+
+    /**
+     * @param trainerFactory builds a fresh, uninitialized trainer with the given settings, it must not write to or
+     *                       read from anything training uses, e.g. online sources
+     * @param trialMillis how long to measure each candidate, after a warmup of a quarter of that time
+     * @param maxMemoryBytes maximum native memory a candidate may allocate, 0 for no limit
+     */
+    public PerformanceTuner(final Function<TunedSettings, Trainer> trainerFactory, final long trialMillis,
+                            final long maxMemoryBytes) {
+        this.trainerFactory = trainerFactory;
+        this.trialMillis = trialMillis;
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    /**
+     * Tries all combinations of the given candidates and logs a report.
+     * @param batchSizes candidate batch sizes
+     * @param threadCounts candidate native thread counts
+     * @param effectiveBatchSize examples per parameter update to keep fixed with gradient accumulation, 0 to let the
+     *                           batch size vary freely
+     * @return the fastest setting within the memory ceiling
+     * @throws IllegalArgumentException if no candidate fits the effective batch size or the memory ceiling
+     */
+    public TunedSettings tune(final List<Integer> batchSizes, final List<Integer> threadCounts,
+                              final int effectiveBatchSize) {
+        final List<Trial> trials = new ArrayList<>();
+        for (final int batchSize : batchSizes) {
+            if (effectiveBatchSize > 0 && (batchSize > effectiveBatchSize || effectiveBatchSize % batchSize != 0)) {
+                log.info("Skipping batch size " + batchSize + ", it does not divide effective batch size " +
+                         effectiveBatchSize);
+                continue;
+            }
+            final int accumulation = effectiveBatchSize > 0 ? effectiveBatchSize / batchSize : 1;
+            for (final int threads : threadCounts) {
+                trials.add(new Trial(new TunedSettings(batchSize, accumulation, threads)));
+            }
+        }
+        if (trials.isEmpty()) {
+            throw new IllegalArgumentException("No batch size candidate divides effective batch size " +
+                                               effectiveBatchSize);
+        }
+
+        Trial best = null;
+        for (final Trial trial : trials) {
+            run(trial);
+            if (trial.rejected == null && (best == null || trial.samplesPerSecond > best.samplesPerSecond)) {
+                best = trial;
+            }
+        }
+
+        final StringBuilder report = new StringBuilder("\nbatch size | accumulation | threads | samples/s | peak MB\n");
+        for (final Trial trial : trials) {
+            report.append(String.format("%10d | %12d | %7d | %9.1f | %7.1f%s%n",
+                                        trial.settings.getBatchSize(), trial.settings.getGradientAccumulation(),
+                                        trial.settings.getNativeThreads(), trial.samplesPerSecond,
+                                        trial.peakBytes / (1024.0 * 1024.0),
+                                        trial == best ? " <- chosen" :
+                                        trial.rejected != null ? " (" + trial.rejected + ")" : ""));
+        }
+        log.info("Calibration report:" + report);
+        if (best == null) {
+            throw new IllegalArgumentException("No candidate setting stays within " + maxMemoryBytes +
+                                               " bytes of native memory.");
+        }
+        log.info("Chose " + best.settings);
+        return best.settings;
+    }
+
+    /**
+     * Trains a fresh trainer with the trial's settings and records its throughput & memory.
+     */
+    private void run(final Trial trial) {
+        log.info("Calibrating " + trial.settings + "...");
+        final Trainer trainer = trainerFactory.apply(trial.settings);
+        try {
+            final long baselineBytes = Pointer.totalBytes();
+            trainer.init();
+            trainer.startEpoch();
+            //warm up, so the measurement is not dominated by JIT compilation & first allocations
+            final long warmupEnd = System.currentTimeMillis() + trialMillis / 4;
+            while (System.currentTimeMillis() < warmupEnd) {
+                if (!trainer.train()) {
+                    trainer.startEpoch();
+                }
+            }
+            long peakBytes = Pointer.totalBytes() - baselineBytes;
+            final long startSamples = trainer.getSampleCount();
+            final long start = System.nanoTime();
+            final long end = System.currentTimeMillis() + trialMillis;
+            while (System.currentTimeMillis() < end) {
+                if (!trainer.train()) {
+                    trainer.startEpoch();
+                }
+                peakBytes = Math.max(peakBytes, Pointer.totalBytes() - baselineBytes);
+            }
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            trial.samplesPerSecond = (trainer.getSampleCount() - startSamples) / seconds;
+            trial.peakBytes = peakBytes;
+            if (maxMemoryBytes > 0 && peakBytes > maxMemoryBytes) {
+                trial.rejected = "over memory ceiling";
+            }
+        } catch (final OutOfMemoryError | RuntimeException e) {
+            log.warn("Calibration of " + trial.settings + " failed.", e);
+            trial.rejected = "failed";
+        } finally {
+            trainer.close();
+        }
+    }
+}
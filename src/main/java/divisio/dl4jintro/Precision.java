@@ -0,0 +1,38 @@
+package divisio.dl4jintro;
+
+import org.nd4j.linalg.api.buffer.DataBuffer;
+
+/**
+ * Floating point precision for parameters, data and checkpoints.
+ * <p>
+ * ND4J 1.0.0-beta2 has one data type per JVM: arrays are created in the global default type, so selecting a precision
+ * sets that default, and all trainers of the same JVM share it. On the CPU backend, FP16 is a storage format: it
+ * halves memory & bandwidth, but most operations are not vectorized for it, so it is rarely faster.
+ */
+public enum Precision {
+
+    FP64(DataBuffer.Type.DOUBLE),
+    FP32(DataBuffer.Type.FLOAT),
+    FP16(DataBuffer.Type.HALF);
+
+    private final DataBuffer.Type dataType;
+
+    Precision(final DataBuffer.Type dataType) {
+        this.dataType = dataType;
+    }
+
+    /**
+     * @return the ND4J data type
+     */
+    public DataBuffer.Type dataType() {
+        return dataType;
+    }
+
+    /**
+     * @return the data type for {@link BinaryDataSetFile}s, which stores floats or doubles, FP16 data is stored as
+     * floats and converted when read
+     */
+    public DataBuffer.Type fileDataType() {
+        return this == FP64 ? DataBuffer.Type.DOUBLE : DataBuffer.Type.FLOAT;
+    }
+}
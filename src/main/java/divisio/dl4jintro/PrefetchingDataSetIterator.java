@@ -0,0 +1,287 @@
+package divisio.dl4jintro;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pipeline stage that wraps another DataSetIterator and lets one or more producer threads fill a bounded queue with
+ * ready minibatches while the training thread is busy fitting. Producers take turns fetching from the wrapped
+ * iterator, the pre processor set on this iterator runs in parallel on the producer threads.
+ * The iterator also keeps track of how long the consumer had to wait for data and how full the queue was, so we
+ * can tell if training is limited by input or by compute.
+ */
+public class PrefetchingDataSetIterator implements DataSetIterator {
+
+    /** put into the queue by each producer when it runs out of data */
+    private static final DataSet END_MARKER = new DataSet();
+
+    /** the iterator we prefetch from, only accessed while holding its lock once producers run */
+    private final DataSetIterator source;
+    /** number of ready minibatches we buffer */
+    private final int queueSize;
+    /** number of threads fetching from the source */
+    private final int producerCount;
+
+    /** ready minibatches, null until the producers are started */
+    private BlockingQueue<DataSet> queue;
+    /** the running producer threads */
+    private final List<Thread> producers = new ArrayList<>();
+    /** number of end markers we received since the producers were started */
+    private int finishedProducers;
+    /** the next minibatch, taken from the queue by hasNext() */
+    private DataSet next;
+    /** number of rows of the next minibatch handed out already by {@link #next(int)} */
+    private int nextOffset;
+    /** first error thrown by a producer, rethrown on the consumer thread */
+    private volatile RuntimeException producerError;
+    /** optional pre processor, applied on the producer threads */
+    private volatile DataSetPreProcessor preProcessor;
+
+    //statistics since the last reset
+    private long startNanos;
+    private long stallNanos;
+    private long batchesTaken;
+    private long queueDepthSum;
+
+    /**
+     * @param source the iterator to prefetch from
+     * @param queueSize number of ready minibatches to buffer, at least 1
+     * @param producerCount number of producer threads, at least 1
+     */
+    public PrefetchingDataSetIterator(final DataSetIterator source, final int queueSize, final int producerCount) {
+        if (queueSize < 1 || producerCount < 1) {
+            throw new IllegalArgumentException("Queue size and producer count must be positive, got: " +
+                                               queueSize + ", " + producerCount);
+        }
+        this.source = source;
+        this.queueSize = queueSize;
+        this.producerCount = producerCount;
+    }
+
+    /**
+     * Lazily starts the producers, so a pre processor can be set before the first minibatch is fetched.
+     */
+    private void ensureStarted() {
+        if (queue != null) { return; }
+        queue = new ArrayBlockingQueue<>(queueSize);
+        finishedProducers = 0;
+        startNanos = System.nanoTime();
+        stallNanos = 0;
+        batchesTaken = 0;
+        queueDepthSum = 0;
+        for (int idx = 0; idx < producerCount; ++idx) {
+            final Thread producer = new Thread(this::produce, "prefetch-" + idx);
+            producer.setDaemon(true);
+            producers.add(producer);
+            producer.start();
+        }
+    }
+
+    /**
+     * Main loop of a producer thread: fetch, pre process, enqueue until the source is exhausted.
+     */
+    private void produce() {
+        try {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    final DataSet dataSet;
+                    synchronized (source) {
+                        if (!source.hasNext()) { break; }
+                        dataSet = source.next();
+                    }
+                    final DataSetPreProcessor currentPreProcessor = preProcessor;
+                    if (currentPreProcessor != null) {
+                        currentPreProcessor.preProcess(dataSet);
+                    }
+                    queue.put(dataSet);
+                }
+            } catch (final RuntimeException e) {
+                //remember the error for the consumer, the end marker below makes sure it does not wait for us
+                if (producerError == null) {
+                    producerError = e;
+                }
+            }
+            queue.put(END_MARKER);
+        } catch (final InterruptedException ie) {
+            //we are being stopped, the consumer does not wait for our end marker in that case
+        }
+    }
+
+    /**
+     * Interrupts all producers, waits for them to terminate and discards prefetched data.
+     */
+    private void stopProducers() {
+        for (final Thread producer : producers) {
+            producer.interrupt();
+        }
+        for (final Thread producer : producers) {
+            try {
+                producer.join();
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        producers.clear();
+        queue = null;
+        next = null;
+        nextOffset = 0;
+    }
+
+    /**
+     * Stops the producer threads, the iterator can be restarted with {@link #reset()}.
+     */
+    public void close() {
+        stopProducers();
+    }
+
+    @Override
+    public boolean hasNext() {
+        ensureStarted();
+        while (next == null && finishedProducers < producerCount) {
+            final long waitStart = System.nanoTime();
+            queueDepthSum += queue.size();
+            final DataSet taken;
+            try {
+                taken = queue.take();
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for prefetched data.", ie);
+            }
+            stallNanos += System.nanoTime() - waitStart;
+            if (taken == END_MARKER) {
+                ++finishedProducers;
+            } else {
+                ++batchesTaken;
+                next = taken;
+            }
+        }
+        if (producerError != null) {
+            throw new RuntimeException("Prefetching data failed.", producerError);
+        }
+        return next != null;
+    }
+
+    /**
+     * @return the next prefetched minibatch as the source formed it, or what is left of it after {@link #next(int)}
+     */
+    @Override
+    public DataSet next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final DataSet result = MinibatchRows.slice(next, nextOffset, next.numExamples());
+        next = null;
+        nextOffset = 0;
+        return result;
+    }
+
+    /**
+     * Takes up to num rows from the current position on, across prefetched minibatches if needed.
+     */
+    @Override
+    public DataSet next(final int num) {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final List<DataSet> pieces = new ArrayList<>(1);
+        int rowCount = 0;
+        while (rowCount < num && hasNext()) {
+            final int taken = Math.min(num - rowCount, next.numExamples() - nextOffset);
+            pieces.add(MinibatchRows.slice(next, nextOffset, nextOffset + taken));
+            rowCount += taken;
+            nextOffset += taken;
+            if (nextOffset == next.numExamples()) {
+                next = null;
+                nextOffset = 0;
+            }
+        }
+        return MinibatchRows.concat(pieces);
+    }
+
+    /**
+     * @return fraction of the time since the last reset the consumer spent waiting for data, between 0 and 1
+     */
+    public double getStallFraction() {
+        final long elapsed = System.nanoTime() - startNanos;
+        return elapsed <= 0 ? 0.0 : (double) stallNanos / elapsed;
+    }
+
+    /**
+     * @return time in milliseconds the consumer spent waiting for data since the last reset
+     */
+    public long getStallMillis() {
+        return stallNanos / 1000000L;
+    }
+
+    /**
+     * @return average number of ready minibatches in the queue when the consumer asked for the next one
+     */
+    public double getAverageQueueDepth() {
+        return batchesTaken == 0 ? 0.0 : (double) queueDepthSum / batchesTaken;
+    }
+
+    /**
+     * @return a human readable summary of the statistics since the last reset
+     */
+    public String statistics() {
+        return String.format("prefetched %d batches, consumer stalled %d ms (%.1f%%), avg. queue depth %.2f / %d",
+                             batchesTaken, getStallMillis(), getStallFraction() * 100.0,
+                             getAverageQueueDepth(), queueSize);
+    }
+
+    @Override
+    public int inputColumns() {
+        return source.inputColumns();
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return source.totalOutcomes();
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return source.resetSupported();
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        //we already are asynchronous
+        return false;
+    }
+
+    @Override
+    public void reset() {
+        stopProducers();
+        source.reset();
+        //producers are restarted lazily with the next call to hasNext()
+    }
+
+    @Override
+    public int batch() {
+        return source.batch();
+    }
+
+    @Override
+    public void setPreProcessor(final DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return source.getLabels();
+    }
+}
@@ -0,0 +1,326 @@
+package divisio.dl4jintro;
+
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.api.layers.IOutputLayer;
+import org.deeplearning4j.nn.conf.InputPreProcessor;
+import org.deeplearning4j.nn.gradient.Gradient;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.workspace.LayerWorkspaceMgr;
+import org.deeplearning4j.optimize.api.BaseTrainingListener;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.primitives.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Opt-in profiler for single threaded MultiLayerNetwork training. Splits the wall time of each iteration into
+ * data fetch, forward pass, backward pass and updater step (including the parameter update), using the training
+ * listener callbacks, which costs a few {@link System#nanoTime()} calls per iteration.
+ * <p>
+ * DL4J has no per-layer callbacks, so every n-th iteration the forward & backward pass of the minibatch just fitted
+ * is replayed layer by layer and timed; the measured phase times are split across the layers in the sampled
+ * proportions. The replay runs on a copy of the network with the current parameters, so layers with state, like
+ * dropout masks or stored inputs, are not changed for the next fit. The updater step is split by the layers'
+ * parameter counts. With the default sampling the replay adds about 1% to training time.
+ * <p>
+ * Every couple of iterations, a table of the window's times, slowest first, is logged and the cumulative times are
+ * written as collapsed stacks (one "frame;frame;frame microseconds" line each), which flame graph tools read directly.
+ * <p>
+ * The trainer reports fetch times and fit starts with {@link #recordFetch(long)} and {@link #startFit()}, and hands
+ * fitted minibatches to {@link #afterFit(MultiLayerNetwork, DataSet)}. With gradient accumulation an iteration has
+ * several forward & backward passes, their times add up in the forward & backward phases. Not thread safe.
+ */
+public class ProfilingListener extends BaseTrainingListener {
+
+    private static final Logger log = LoggerFactory.getLogger(ProfilingListener.class);
+
+    //phases, indices into the time arrays
+    private static final int FETCH = 0;
+    private static final int FORWARD = 1;
+    private static final int BACKWARD = 2;
+    private static final int UPDATE = 3;
+    private static final String[] PHASE_NAMES = {"fetch", "forward", "backward", "update"};
+
+    private final int sampleEvery;
+    private final int reportEvery;
+    /** where to write the collapsed stacks, null to only log */
+    private File collapsedStackFile;
+
+    /** nanos per phase in the current window and since the start */
+    private final long[] windowNanos = new long[PHASE_NAMES.length];
+    private final long[] totalNanos = new long[PHASE_NAMES.length];
+    /** sampled nanos per layer, forward & backward, in the current window and since the start */
+    private long[][] windowLayerNanos;
+    private long[][] totalLayerNanos;
+    /** layer names & parameter counts, known after the first sample */
+    private String[] layerNames;
+    private long[] layerParams;
+    /** copy of the network the replay runs on and the network it copies, null until the first sample */
+    private MultiLayerNetwork replica;
+    private MultiLayerNetwork replicated;
+
+    private int phase = -1;
+    private long phaseStartNanos;
+    private long iterations = 0;
+    private long windowIterations = 0;
+    private boolean samplingFailed = false;
+
+    /**
+     * @param sampleEvery replay and time the layers of every n-th iteration
+     * @param reportEvery log the table and write the collapsed stacks every n iterations
+     */
+    public ProfilingListener(final int sampleEvery, final int reportEvery) {
+        if (sampleEvery < 1 || reportEvery < 1) {
+            throw new IllegalArgumentException("Sampling and reporting intervals must be positive, got: " +
+                                               sampleEvery + ", " + reportEvery);
+        }
+        this.sampleEvery = sampleEvery;
+        this.reportEvery = reportEvery;
+    }
+
+    /**
+     * @param collapsedStackFile where to write the cumulative collapsed stacks on each report, null to only log
+     */
+    public void setCollapsedStackFile(final File collapsedStackFile) {
+        this.collapsedStackFile = collapsedStackFile;
+    }
+
+    /**
+     * Records the time it took to get the next minibatch from the iterator.
+     */
+    public void recordFetch(final long nanos) {
+        windowNanos[FETCH] += nanos;
+    }
+
+    /**
+     * Call right before fitting, starts timing the forward pass.
+     */
+    public void startFit() {
+        phase = FORWARD;
+        phaseStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Ends the current phase and starts the given one.
+     */
+    private void nextPhase(final int next) {
+        if (phase < 0) { return; }
+        final long now = System.nanoTime();
+        windowNanos[phase] += now - phaseStartNanos;
+        phase = next;
+        phaseStartNanos = now;
+    }
+
+    /**
+     * Ends a forward pass: with gradient accumulation, an earlier backward pass of the same iteration may be the
+     * current phase, the time since then still belongs to this forward pass, not to the update.
+     */
+    private void forwardPassDone() {
+        if (phase < 0) { return; }
+        phase = FORWARD;
+        nextPhase(BACKWARD);
+    }
+
+    @Override
+    public void onForwardPass(final Model model, final List<INDArray> activations) {
+        forwardPassDone();
+    }
+
+    @Override
+    public void onForwardPass(final Model model, final Map<String, INDArray> activations) {
+        forwardPassDone();
+    }
+
+    @Override
+    public void onBackwardPass(final Model model) {
+        nextPhase(UPDATE);
+    }
+
+    @Override
+    public void iterationDone(final Model model, final int iteration, final int epoch) {
+        if (phase < 0) { return; }
+        nextPhase(-1);
+        ++iterations;
+        ++windowIterations;
+        if (windowIterations >= reportEvery) {
+            report();
+        }
+    }
+
+    /**
+     * Call after fitting the given minibatch, replays it layer by layer on every n-th iteration.
+     */
+    public void afterFit(final MultiLayerNetwork network, final DataSet minibatch) {
+        if (samplingFailed || iterations % sampleEvery != 0) { return; }
+        try {
+            sampleLayers(network, minibatch);
+        } catch (final RuntimeException e) {
+            log.warn("Cannot time the layers of this network, only profiling phases.", e);
+            samplingFailed = true;
+        }
+    }
+
+    private void sampleLayers(final MultiLayerNetwork network, final DataSet minibatch) {
+        //replay on a copy, cloned once per network and then only updated with its parameters
+        if (replicated != network) {
+            replica = network.clone();
+            replicated = network;
+        } else {
+            replica.setParams(network.params());
+        }
+        final Layer[] layers = replica.getLayers();
+        if (layerNames == null || layerNames.length != layers.length) {
+            layerNames = new String[layers.length];
+            layerParams = new long[layers.length];
+            for (int idx = 0; idx < layers.length; ++idx) {
+                layerNames[idx] = "layer" + idx + "_" + layers[idx].conf().getLayer().getClass().getSimpleName();
+                layerParams[idx] = layers[idx].numParams();
+            }
+            windowLayerNanos = new long[layers.length][2];
+            totalLayerNanos = new long[layers.length][2];
+        }
+        final LayerWorkspaceMgr workspaceMgr = LayerWorkspaceMgr.noWorkspaces();
+        final int rows = minibatch.numExamples();
+        INDArray activations = minibatch.getFeatures();
+        for (int idx = 0; idx < layers.length; ++idx) {
+            final long start = System.nanoTime();
+            final InputPreProcessor preProcessor = replica.getLayerWiseConfigurations().getInputPreProcess(idx);
+            if (preProcessor != null) {
+                activations = preProcessor.preProcess(activations, rows, workspaceMgr);
+            }
+            activations = layers[idx].activate(activations, true, workspaceMgr);
+            windowLayerNanos[idx][0] += System.nanoTime() - start;
+        }
+        final Layer outputLayer = layers[layers.length - 1];
+        if (!(outputLayer instanceof IOutputLayer)) {
+            throw new IllegalStateException("Last layer is no output layer: " + outputLayer);
+        }
+        ((IOutputLayer) outputLayer).setLabels(minibatch.getLabels());
+        INDArray epsilon = null;
+        for (int idx = layers.length - 1; idx >= 0; --idx) {
+            final long start = System.nanoTime();
+            final Pair<Gradient, INDArray> result = layers[idx].backpropGradient(epsilon, workspaceMgr);
+            epsilon = result.getSecond();
+            final InputPreProcessor preProcessor = replica.getLayerWiseConfigurations().getInputPreProcess(idx);
+            if (preProcessor != null) {
+                epsilon = preProcessor.backprop(epsilon, rows, workspaceMgr);
+            }
+            windowLayerNanos[idx][1] += System.nanoTime() - start;
+        }
+        //do not keep the minibatch alive until the next sample
+        replica.clear();
+    }
+
+    /**
+     * Logs the table of the current window, writes the cumulative collapsed stacks and starts a new window.
+     */
+    public void report() {
+        if (windowIterations == 0) { return; }
+        final List<Pair<String, Long>> rows = attribute(windowNanos, windowLayerNanos);
+        long windowTotal = 0;
+        for (final Pair<String, Long> row : rows) {
+            windowTotal += row.getSecond();
+        }
+        rows.sort((a, b) -> Long.compare(b.getSecond(), a.getSecond()));
+        final StringBuilder table = new StringBuilder(
+            String.format("%nprofile of %d iterations%n%-44s | %10s | %6s | %12s%n", windowIterations,
+                          "phase;layer", "total ms", "%", "us/iteration"));
+        for (final Pair<String, Long> row : rows) {
+            table.append(String.format("%-44s | %10.1f | %5.1f%% | %12.1f%n", row.getFirst(), row.getSecond() / 1e6,
+                                       windowTotal > 0 ? 100.0 * row.getSecond() / windowTotal : 0.0,
+                                       row.getSecond() / 1e3 / windowIterations));
+        }
+        log.info(table.toString());
+
+        //move the window into the totals
+        for (int idx = 0; idx < windowNanos.length; ++idx) {
+            totalNanos[idx] += windowNanos[idx];
+            windowNanos[idx] = 0;
+        }
+        if (windowLayerNanos != null) {
+            for (int idx = 0; idx < windowLayerNanos.length; ++idx) {
+                for (int pass = 0; pass < 2; ++pass) {
+                    totalLayerNanos[idx][pass] += windowLayerNanos[idx][pass];
+                    windowLayerNanos[idx][pass] = 0;
+                }
+            }
+        }
+        windowIterations = 0;
+        if (collapsedStackFile != null) {
+            writeCollapsedStacks(attribute(totalNanos, totalLayerNanos));
+        }
+    }
+
+    /**
+     * Splits the phase times across the layers.
+     * @return one entry per "phase;layer" stack (or per phase if we have no samples yet) with its nanos
+     */
+    private List<Pair<String, Long>> attribute(final long[] phaseNanos, final long[][] layerNanos) {
+        final List<Pair<String, Long>> result = new ArrayList<>();
+        result.add(Pair.of(PHASE_NAMES[FETCH], phaseNanos[FETCH]));
+        long totalParams = 0;
+        long sampledForward = 0;
+        long sampledBackward = 0;
+        if (layerNanos != null) {
+            for (int idx = 0; idx < layerNanos.length; ++idx) {
+                totalParams += layerParams[idx];
+                sampledForward += layerNanos[idx][0];
+                sampledBackward += layerNanos[idx][1];
+            }
+        }
+        addSplit(result, FORWARD, phaseNanos, layerNanos, 0, sampledForward);
+        addSplit(result, BACKWARD, phaseNanos, layerNanos, 1, sampledBackward);
+        if (layerNanos == null || totalParams == 0) {
+            result.add(Pair.of(PHASE_NAMES[UPDATE], phaseNanos[UPDATE]));
+        } else {
+            for (int idx = 0; idx < layerNanos.length; ++idx) {
+                result.add(Pair.of(PHASE_NAMES[UPDATE] + ";" + layerNames[idx],
+                                   phaseNanos[UPDATE] * layerParams[idx] / totalParams));
+            }
+        }
+        return result;
+    }
+
+    private void addSplit(final List<Pair<String, Long>> result, final int phaseIndex, final long[] phaseNanos,
+                          final long[][] layerNanos, final int pass, final long sampledTotal) {
+        if (layerNanos == null || sampledTotal == 0) {
+            result.add(Pair.of(PHASE_NAMES[phaseIndex], phaseNanos[phaseIndex]));
+            return;
+        }
+        for (int idx = 0; idx < layerNanos.length; ++idx) {
+            result.add(Pair.of(PHASE_NAMES[phaseIndex] + ";" + layerNames[idx],
+                               (long) (phaseNanos[phaseIndex] * ((double) layerNanos[idx][pass] / sampledTotal))));
+        }
+    }
+
+    private void writeCollapsedStacks(final List<Pair<String, Long>> stacks) {
+        final File tempFile = new File(collapsedStackFile.getAbsoluteFile().getParentFile(),
+                                       collapsedStackFile.getName() + ".tmp");
+        try {
+            try (final PrintWriter out = new PrintWriter(tempFile, "UTF-8")) {
+                for (final Pair<String, Long> stack : stacks) {
+                    final long micros = stack.getSecond() / 1000;
+                    if (micros > 0) {
+                        final String frames = stack.getFirst().equals(PHASE_NAMES[FETCH]) ? "train;fetch"
+                                                                                          : "train;fit;" + stack.getFirst();
+                        out.println(frames + " " + micros);
+                    }
+                }
+            }
+            Files.move(tempFile.toPath(), collapsedStackFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (final IOException e) {
+            log.warn("Could not write profile to: " + collapsedStackFile, e);
+        }
+    }
+}
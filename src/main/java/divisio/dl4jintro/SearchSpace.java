@@ -0,0 +1,103 @@
+package divisio.dl4jintro;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Hyperparameters to search over: each dimension has a name and a list of candidate values. Produces either the full
+ * grid or random samples, each point is a map from dimension name to value.
+ */
+public class SearchSpace {
+
+    /**
+     * How random samples of a dimension are drawn.
+     */
+    public enum Sampling {
+        /** pick one of the candidate values */
+        CHOICE,
+        /** draw log-uniformly between the smallest and largest candidate value, e.g. for learning rates */
+        LOG_UNIFORM
+    }
+
+    private static class Dimension {
+        final String name;
+        final List<Double> values;
+        final Sampling sampling;
+
+        Dimension(final String name, final List<Double> values, final Sampling sampling) {
+            this.name = name;
+            this.values = values;
+            this.sampling = sampling;
+        }
+    }
+
+    private final List<Dimension> dimensions = new ArrayList<>();
+
+    /**
+     * Adds a dimension to the space.
+     * @param name name of the hyperparameter
+     * @param values candidate values, at least one
+     * @param sampling how random samples of this dimension are drawn, the grid always uses the candidate values
+     * @return this, for chaining
+     */
+    public SearchSpace add(final String name, final List<Double> values, final Sampling sampling) {
+        if (values.isEmpty()) {
+            throw new IllegalArgumentException("Need at least one value for hyperparameter " + name);
+        }
+        if (sampling == Sampling.LOG_UNIFORM && Collections.min(values) <= 0.0) {
+            throw new IllegalArgumentException("Log-uniform sampling needs positive values for hyperparameter " + name);
+        }
+        dimensions.add(new Dimension(name, new ArrayList<>(values), sampling));
+        return this;
+    }
+
+    /**
+     * @return all combinations of candidate values
+     */
+    public List<Map<String, Double>> grid() {
+        List<Map<String, Double>> result = new ArrayList<>();
+        result.add(new LinkedHashMap<>());
+        for (final Dimension dimension : dimensions) {
+            final List<Map<String, Double>> extended = new ArrayList<>(result.size() * dimension.values.size());
+            for (final Map<String, Double> point : result) {
+                for (final Double value : dimension.values) {
+                    final Map<String, Double> next = new LinkedHashMap<>(point);
+                    next.put(dimension.name, value);
+                    extended.add(next);
+                }
+            }
+            result = extended;
+        }
+        return result;
+    }
+
+    /**
+     * @param count number of points to draw
+     * @param random source of randomness
+     * @return randomly drawn points, may contain duplicates for small spaces
+     */
+    public List<Map<String, Double>> sample(final int count, final Random random) {
+        final List<Map<String, Double>> result = new ArrayList<>(count);
+        for (int idx = 0; idx < count; ++idx) {
+            final Map<String, Double> point = new LinkedHashMap<>();
+            for (final Dimension dimension : dimensions) {
+                point.put(dimension.name, sample(dimension, random));
+            }
+            result.add(point);
+        }
+        return result;
+    }
+
+    private static double sample(final Dimension dimension, final Random random) {
+        if (dimension.sampling == Sampling.CHOICE) {
+            return dimension.values.get(random.nextInt(dimension.values.size()));
+        }
+        final double logMin = Math.log(Collections.min(dimension.values));
+        final double logMax = Math.log(Collections.max(dimension.values));
+        return Math.exp(logMin + random.nextDouble() * (logMax - logMin));
+    }
+}
@@ -0,0 +1,148 @@
+package divisio.dl4jintro;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Iterates over a folder of shards written by {@link SparkPreprocessor}. The rows in the shards are already
+ * normalized and shuffled, so each shard is read front to back with {@link MappedDataSetIterator}, only the order of
+ * the shards changes between epochs. One shard is mapped at a time.
+ */
+public class ShardDataSetIterator implements DataSetIterator {
+
+    private final File[] shards;
+    private final int batchSize;
+    /** used to shuffle the shard order on each reset, null if we do not shuffle */
+    private final Random random;
+    private final int inputColumns;
+    private final int totalOutcomes;
+    /** index into shards of the next shard to open */
+    private int nextShard = 0;
+    /** iterator over the current shard, null before the first shard is opened */
+    private MappedDataSetIterator current;
+    /** optional pre processor */
+    private DataSetPreProcessor preProcessor;
+
+    /**
+     * @param shardFolder folder with shard files written by {@link SparkPreprocessor}
+     * @param batchSize number of rows per minibatch, best the batch size the shards were written with
+     * @param random used to shuffle the shard order on each reset, null to read shards in name order
+     */
+    public ShardDataSetIterator(final File shardFolder, final int batchSize, final Random random) {
+        this.shards = SparkPreprocessor.listShards(shardFolder);
+        if (shards.length == 0) {
+            throw new IllegalArgumentException("No shards found in: " + shardFolder);
+        }
+        this.batchSize = batchSize;
+        this.random = random;
+        final BinaryDataSetFile.Header header = BinaryDataSetFile.readHeader(shards[0]);
+        this.inputColumns = header.getFeatureCount();
+        this.totalOutcomes = header.getLabelCount();
+        shuffle();
+    }
+
+    /**
+     * Fisher-Yates shuffle of the shard order, if we have a random generator.
+     */
+    private void shuffle() {
+        if (random == null) { return; }
+        for (int idx = shards.length - 1; idx > 0; --idx) {
+            final int swapIdx = random.nextInt(idx + 1);
+            final File tmp = shards[idx];
+            shards[idx] = shards[swapIdx];
+            shards[swapIdx] = tmp;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        //skip to the next shard with data, shards may be empty
+        while (current == null || !current.hasNext()) {
+            if (nextShard >= shards.length) { return false; }
+            current = new MappedDataSetIterator(shards[nextShard], batchSize, null);
+            ++nextShard;
+        }
+        return true;
+    }
+
+    @Override
+    public DataSet next() {
+        return next(batchSize);
+    }
+
+    /**
+     * Takes up to num rows from the current position on, across shards if needed.
+     */
+    @Override
+    public DataSet next(final int num) {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final List<DataSet> pieces = new ArrayList<>(1);
+        int rowCount = 0;
+        while (rowCount < num && hasNext()) {
+            final DataSet piece = current.next(num - rowCount);
+            pieces.add(piece);
+            rowCount += piece.numExamples();
+        }
+        final DataSet result = MinibatchRows.concat(pieces);
+        if (preProcessor != null) {
+            preProcessor.preProcess(result);
+        }
+        return result;
+    }
+
+    @Override
+    public int inputColumns() {
+        return inputColumns;
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return totalOutcomes;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        nextShard = 0;
+        current = null;
+        shuffle();
+    }
+
+    @Override
+    public int batch() {
+        return batchSize;
+    }
+
+    @Override
+    public void setPreProcessor(final DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return null;
+    }
+}
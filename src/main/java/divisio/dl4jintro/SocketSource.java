@@ -0,0 +1,111 @@
+package divisio.dl4jintro;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Accepts connections on a local port and feeds each line received to a {@link StreamingDataSetIterator}, one
+ * thread per connection. While the iterator's queue is full, the connection threads stop reading, so senders are
+ * slowed down by TCP flow control.
+ */
+public class SocketSource implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(SocketSource.class);
+
+    private final StreamingDataSetIterator target;
+    private final ServerSocket serverSocket;
+    /** open connections and the threads reading them */
+    private final Map<Socket, Thread> connections = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    /**
+     * Starts listening.
+     * @param port local port to listen on
+     * @param target where to put the parsed examples
+     */
+    public SocketSource(final int port, final StreamingDataSetIterator target) {
+        this.target = target;
+        try {
+            this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not listen for training examples on port " + port, e);
+        }
+        final Thread acceptor = new Thread(this::accept, "socket-source-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        target.addSource(this);
+        log.info("Accepting training examples on localhost:" + port);
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                final Thread reader = new Thread(() -> read(socket), "socket-source-" + socket.getPort());
+                reader.setDaemon(true);
+                connections.put(socket, reader);
+                reader.start();
+            } catch (final IOException e) {
+                if (running) {
+                    log.warn("Could not accept connection.", e);
+                }
+            }
+        }
+    }
+
+    private void read(final Socket socket) {
+        try (final BufferedReader in = new BufferedReader(
+                 new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)))
+        {
+            String line;
+            while (running && (line = in.readLine()) != null) {
+                final String trimmed = line.trim();
+                if (trimmed.isEmpty()) { continue; }
+                try {
+                    target.putLine(trimmed);
+                } catch (final IllegalArgumentException e) {
+                    log.warn("Skipping line from " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+                }
+            }
+        } catch (final IOException e) {
+            if (running) {
+                log.warn("Connection " + socket.getRemoteSocketAddress() + " failed.", e);
+            }
+        } catch (final InterruptedException ie) {
+            //closing
+        } finally {
+            connections.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (final IOException e) {
+            //nothing left to do
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        closeQuietly(serverSocket);
+        for (final Map.Entry<Socket, Thread> connection : connections.entrySet()) {
+            closeQuietly(connection.getKey());
+            //readers might be waiting for space in the queue
+            connection.getValue().interrupt();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package divisio.dl4jintro;
+
+import org.apache.spark.HashPartitioner;
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.datavec.api.records.reader.impl.csv.CSVRecordReader;
+import org.datavec.api.transform.ColumnType;
+import org.datavec.api.transform.TransformProcess;
+import org.datavec.api.transform.analysis.DataAnalysis;
+import org.datavec.api.transform.analysis.columns.DoubleAnalysis;
+import org.datavec.api.transform.schema.Schema;
+import org.datavec.api.transform.transform.normalize.Normalize;
+import org.datavec.api.writable.Writable;
+import org.datavec.spark.transform.AnalyzeSpark;
+import org.datavec.spark.transform.SparkTransformExecutor;
+import org.datavec.spark.transform.misc.StringToWritablesFunction;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.dataset.api.preprocessor.NormalizerStandardize;
+import org.nd4j.linalg.dataset.api.preprocessor.serializer.NormalizerSerializer;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import scala.Tuple2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Offline preprocessing with DataVec on Spark in local mode, using all cores: reads raw CSV records, applies an
+ * optional DataVec transform, standardizes all double feature columns, shuffles the rows across shards and writes
+ * each shard as a {@link BinaryDataSetFile} whose rows are in minibatch order. Training then only reads the shards
+ * sequentially with {@link ShardDataSetIterator}.
+ * <p>
+ * Next to the shards, the standardization is written as an ND4J normalizer ({@value #NORMALIZER_FILE}), so data that
+ * did not go through preprocessing (validation data, inference requests) can be normalized the same way, and as a
+ * DataVec transform ({@value #NORMALIZATION_FILE}). The optional raw transform is written to {@value #TRANSFORM_FILE}.
+ * <p>
+ * Each shard is collected in memory by the thread writing it, so choose the shard count so that a shard fits
+ * comfortably.
+ */
+public class SparkPreprocessor {
+
+    private static final Logger log = LoggerFactory.getLogger(SparkPreprocessor.class);
+
+    static final String SHARD_PREFIX = "shard-";
+    static final String SHARD_SUFFIX = ".bin";
+    static final String NORMALIZER_FILE = "normalizer.bin";
+    static final String TRANSFORM_FILE = "transform.json";
+    static final String NORMALIZATION_FILE = "normalization.json";
+
+    /** schema of the raw CSV records */
+    private final Schema rawSchema;
+    /** transform applied to the raw records before normalization, null to use them as they are */
+    private final TransformProcess transform;
+    /** number of columns at the end of each (transformed) record that are labels */
+    private final int labelCount;
+
+    /**
+     * @param rawSchema schema of the raw CSV records
+     * @param transform transform applied to the raw records before normalization, null to use them as they are
+     * @param labelCount number of columns at the end of each transformed record that are labels, the others are
+     *                   features
+     */
+    public SparkPreprocessor(final Schema rawSchema, final TransformProcess transform, final int labelCount) {
+        this.rawSchema = rawSchema;
+        this.transform = transform;
+        this.labelCount = labelCount;
+    }
+
+    /**
+     * @return the shard files in the given folder, in name order
+     */
+    static File[] listShards(final File shardFolder) {
+        final File[] shards = shardFolder.listFiles((dir, name) -> name.startsWith(SHARD_PREFIX) &&
+                                                                   name.endsWith(SHARD_SUFFIX));
+        if (shards == null) { return new File[0]; }
+        Arrays.sort(shards);
+        return shards;
+    }
+
+    /**
+     * Loads the normalizer written next to the shards.
+     * @param shardFolder folder written by {@link #run(File, File, int, int, long)}
+     * @return the normalizer for features that did not go through preprocessing
+     */
+    public static NormalizerStandardize loadNormalizer(final File shardFolder) {
+        try {
+            return NormalizerSerializer.getDefault().restore(new File(shardFolder, NORMALIZER_FILE));
+        } catch (final Exception e) {
+            throw new RuntimeException("Could not load normalizer from: " + shardFolder, e);
+        }
+    }
+
+    /**
+     * Runs the preprocessing, replaces all shards in the shard folder.
+     * @param inputCsv raw records, one per line
+     * @param shardFolder folder to write the shards to, created if needed
+     * @param shardCount number of shards to write, also the number of parallel writers
+     * @param batchSize minibatch size the shards are laid out for
+     * @param seed seed for assigning rows to shards and shuffling them, the same input and seed give the same shards
+     * @return number of rows written
+     */
+    public long run(final File inputCsv, final File shardFolder, final int shardCount, final int batchSize,
+                    final long seed) {
+        try {
+            Files.createDirectories(shardFolder.toPath());
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not create shard folder: " + shardFolder, e);
+        }
+        for (final File oldShard : listShards(shardFolder)) {
+            if (!oldShard.delete()) {
+                throw new RuntimeException("Could not delete old shard: " + oldShard);
+            }
+        }
+        final long start = System.currentTimeMillis();
+        final SparkConf conf = new SparkConf().setMaster("local[*]").setAppName("dl4jintro-preprocessing");
+        try (final JavaSparkContext sc = new JavaSparkContext(conf)) {
+            final JavaRDD<List<Writable>> raw = sc.textFile(inputCsv.getAbsolutePath())
+                                                  .filter(line -> !line.trim().isEmpty())
+                                                  .map(new StringToWritablesFunction(new CSVRecordReader()));
+            final JavaRDD<List<Writable>> records = transform == null ? raw
+                                                                      : SparkTransformExecutor.execute(raw, transform);
+            final Schema schema = transform == null ? rawSchema : transform.getFinalSchema();
+            //analysis and normalization both read the records, do not parse them twice
+            records.cache();
+            final DataAnalysis analysis = AnalyzeSpark.analyze(schema, records);
+            final TransformProcess normalization = buildNormalization(schema, analysis);
+            writeNormalizer(schema, analysis, shardFolder);
+            Files.write(new File(shardFolder, NORMALIZATION_FILE).toPath(),
+                        normalization.toJson().getBytes(StandardCharsets.UTF_8));
+            if (transform != null) {
+                Files.write(new File(shardFolder, TRANSFORM_FILE).toPath(),
+                            transform.toJson().getBytes(StandardCharsets.UTF_8));
+            }
+
+            //shuffle: send each row to a random shard, each shard shuffles its rows once more and writes them
+            final String folder = shardFolder.getAbsolutePath();
+            final int labels = labelCount;
+            final List<Long> rowsPerShard = SparkTransformExecutor.execute(records, normalization)
+                .mapPartitionsWithIndex((partition, partitionRecords) ->
+                    assignShards(partition, partitionRecords, shardCount, seed), true)
+                .mapToPair(assigned -> assigned)
+                .partitionBy(new HashPartitioner(shardCount))
+                .values()
+                .mapPartitionsWithIndex((index, shardRecords) ->
+                    writeShard(index, shardRecords, folder, labels, batchSize, seed), false)
+                .collect();
+            final long rows = rowsPerShard.stream().mapToLong(Long::longValue).sum();
+            log.info("Preprocessed " + rows + " rows into " + shardCount + " shards in " +
+                     (System.currentTimeMillis() - start) + "ms: " + shardFolder);
+            return rows;
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not write preprocessing results to: " + shardFolder, e);
+        }
+    }
+
+    /**
+     * @return true if the given column is a feature we standardize
+     */
+    private boolean isNormalizedFeature(final Schema schema, final int column, final DataAnalysis analysis) {
+        if (column >= schema.numColumns() - labelCount || schema.getType(column) != ColumnType.Double) {
+            return false;
+        }
+        //a constant column cannot be standardized
+        final DoubleAnalysis columnAnalysis = (DoubleAnalysis) analysis.getColumnAnalysis(schema.getName(column));
+        return columnAnalysis.getSampleStdev() > 0.0;
+    }
+
+    /**
+     * @return a transform standardizing all double feature columns
+     */
+    private TransformProcess buildNormalization(final Schema schema, final DataAnalysis analysis) {
+        final TransformProcess.Builder builder = new TransformProcess.Builder(schema);
+        for (int column = 0; column < schema.numColumns(); ++column) {
+            if (isNormalizedFeature(schema, column, analysis)) {
+                builder.normalize(schema.getName(column), Normalize.Standardize, analysis);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Writes the same standardization as an ND4J normalizer, columns that are not standardized get mean 0 and
+     * standard deviation 1.
+     */
+    private void writeNormalizer(final Schema schema, final DataAnalysis analysis, final File shardFolder)
+        throws IOException {
+        final int featureCount = schema.numColumns() - labelCount;
+        final double[] means = new double[featureCount];
+        final double[] stdevs = new double[featureCount];
+        for (int column = 0; column < featureCount; ++column) {
+            if (isNormalizedFeature(schema, column, analysis)) {
+                final DoubleAnalysis columnAnalysis = (DoubleAnalysis) analysis.getColumnAnalysis(schema.getName(column));
+                means[column] = columnAnalysis.getMean();
+                stdevs[column] = columnAnalysis.getSampleStdev();
+            } else {
+                stdevs[column] = 1.0;
+            }
+        }
+        final NormalizerStandardize normalizer = new NormalizerStandardize(Nd4j.create(means), Nd4j.create(stdevs));
+        NormalizerSerializer.getDefault().write(normalizer, new File(shardFolder, NORMALIZER_FILE));
+    }
+
+    /**
+     * Runs on a Spark task: assigns each record of one input partition to a random shard. The random generator only
+     * depends on the seed and the partition, so a retried task assigns the records to the same shards again.
+     * @return per record its shard and its position in the input, partition in the upper 32 bits
+     */
+    private static Iterator<Tuple2<Integer, Tuple2<Long, List<Writable>>>> assignShards(
+        final int partition, final Iterator<List<Writable>> records, final int shardCount, final long seed)
+    {
+        final Random random = new Random(seed ^ partition);
+        return new Iterator<Tuple2<Integer, Tuple2<Long, List<Writable>>>>() {
+            private long position = (long) partition << 32;
+
+            @Override
+            public boolean hasNext() {
+                return records.hasNext();
+            }
+
+            @Override
+            public Tuple2<Integer, Tuple2<Long, List<Writable>>> next() {
+                return new Tuple2<>(random.nextInt(shardCount), new Tuple2<>(position++, records.next()));
+            }
+        };
+    }
+
+    /**
+     * Runs on a Spark task: shuffles the rows of one shard and writes them.
+     * @param records the shard's records with their position in the input
+     * @return the number of rows written
+     */
+    private static Iterator<Long> writeShard(final int index, final Iterator<Tuple2<Long, List<Writable>>> records,
+                                             final String folder, final int labelCount, final int batchSize,
+                                             final long seed) {
+        final List<Tuple2<Long, List<Writable>>> positioned = new ArrayList<>();
+        records.forEachRemaining(positioned::add);
+        if (positioned.isEmpty()) {
+            return Collections.singletonList(0L).iterator();
+        }
+        //records arrive in the order the shuffle fetched them, restore the input order before our seeded shuffle
+        positioned.sort((first, second) -> Long.compare(first._1(), second._1()));
+        final List<List<Writable>> rows = new ArrayList<>(positioned.size());
+        for (final Tuple2<Long, List<Writable>> record : positioned) {
+            rows.add(record._2());
+        }
+        Collections.shuffle(rows, new Random(seed + index));
+        final int columns = rows.get(0).size();
+        final int featureCount = columns - labelCount;
+        final double[] features = new double[rows.size() * featureCount];
+        final double[] labels = new double[rows.size() * labelCount];
+        for (int row = 0; row < rows.size(); ++row) {
+            final List<Writable> record = rows.get(row);
+            for (int column = 0; column < columns; ++column) {
+                if (column < featureCount) {
+                    features[row * featureCount + column] = record.get(column).toDouble();
+                } else {
+                    labels[row * labelCount + column - featureCount] = record.get(column).toDouble();
+                }
+            }
+        }
+        final File shard = new File(folder, String.format(SHARD_PREFIX + "%05d" + SHARD_SUFFIX, index));
+        BinaryDataSetFile.write(ContiguousDataSet.fromRowMajor(features, featureCount, labels, labelCount)
+                                                 .iterator(batchSize, null),
+                                shard, DataBuffer.Type.FLOAT);
+        return Collections.singletonList((long) rows.size()).iterator();
+    }
+}
@@ -0,0 +1,290 @@
+package divisio.dl4jintro;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Iterator over an unbounded stream of examples, e.g. from a {@link TailFileSource} or a {@link SocketSource}.
+ * Sources put single examples into a bounded queue, the iterator forms minibatches from it: a minibatch is complete
+ * when it has batchSize examples or maxWait passed since its first example arrived. If training falls behind, the
+ * queue fills up and putting blocks, so sources stop reading and the backpressure reaches the producers.
+ * <p>
+ * {@link #hasNext()} blocks until data arrives and only returns false once the iterator is closed, an epoch never
+ * ends. Each example carries the time it was ingested as example meta data ({@link Long}, {@link System#nanoTime()}),
+ * so the trainer can measure the lag from ingestion to model update.
+ */
+public class StreamingDataSetIterator implements DataSetIterator {
+
+    private static final Logger log = LoggerFactory.getLogger(StreamingDataSetIterator.class);
+
+    /** how long hasNext waits for data at once before checking if we are closed */
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * A single example waiting to be batched.
+     */
+    private static class Example {
+        final double[] features;
+        final double[] labels;
+        final long ingestNanos;
+
+        Example(final double[] features, final double[] labels, final long ingestNanos) {
+            this.features = features;
+            this.labels = labels;
+            this.ingestNanos = ingestNanos;
+        }
+    }
+
+    private final int featureCount;
+    private final int labelCount;
+    private final int batchSize;
+    private final long maxWaitNanos;
+    private final BlockingQueue<Example> queue;
+    /** sources feeding us, closed along with us */
+    private final List<Closeable> sources = new CopyOnWriteArrayList<>();
+
+    /** the first example of the next minibatch, taken from the queue by hasNext() */
+    private Example first;
+    private volatile boolean closed = false;
+    /** optional pre processor */
+    private DataSetPreProcessor preProcessor;
+
+    /**
+     * @param featureCount number of features per example
+     * @param labelCount number of labels per example
+     * @param batchSize maximum number of examples per minibatch
+     * @param maxWaitMillis maximum time a minibatch waits for more examples after its first one
+     * @param queueCapacity number of examples buffered before sources block
+     */
+    public StreamingDataSetIterator(final int featureCount, final int labelCount, final int batchSize,
+                                    final long maxWaitMillis, final int queueCapacity) {
+        if (batchSize < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Batch size and queue capacity must be positive, got: " +
+                                               batchSize + ", " + queueCapacity);
+        }
+        this.featureCount = featureCount;
+        this.labelCount = labelCount;
+        this.batchSize = batchSize;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    /**
+     * Registers a source, so it is closed when this iterator is closed.
+     */
+    public void addSource(final Closeable source) {
+        sources.add(source);
+    }
+
+    /**
+     * Adds one example, blocks while the queue is full.
+     * @throws InterruptedException if interrupted while waiting for space
+     */
+    public void put(final double[] features, final double[] labels) throws InterruptedException {
+        if (features.length != featureCount || labels.length != labelCount) {
+            throw new IllegalArgumentException("Expected " + featureCount + " features and " + labelCount +
+                                               " labels, got " + features.length + " and " + labels.length);
+        }
+        queue.put(new Example(features, labels, System.nanoTime()));
+    }
+
+    /**
+     * Parses one line with features followed by labels, separated by commas, and adds it, blocks while the queue
+     * is full.
+     * @throws IllegalArgumentException if the line cannot be parsed
+     * @throws InterruptedException if interrupted while waiting for space
+     */
+    public void putLine(final String line) throws InterruptedException {
+        final String[] values = line.split(",");
+        if (values.length != featureCount + labelCount) {
+            throw new IllegalArgumentException("Expected " + (featureCount + labelCount) + " values, got: " + line);
+        }
+        final double[] features = new double[featureCount];
+        final double[] labels = new double[labelCount];
+        for (int idx = 0; idx < values.length; ++idx) {
+            final double value;
+            try {
+                value = Double.parseDouble(values[idx].trim());
+            } catch (final NumberFormatException nfe) {
+                throw new IllegalArgumentException("Not a number: " + values[idx]);
+            }
+            if (idx < featureCount) {
+                features[idx] = value;
+            } else {
+                labels[idx - featureCount] = value;
+            }
+        }
+        put(features, labels);
+    }
+
+    /**
+     * @return number of examples waiting to be batched
+     */
+    public int getQueuedExamples() {
+        return queue.size();
+    }
+
+    /**
+     * Stops iterating and closes all sources. Examples still queued are dropped.
+     */
+    public void close() {
+        closed = true;
+        for (final Closeable source : sources) {
+            try {
+                source.close();
+            } catch (final IOException e) {
+                log.warn("Could not close streaming source " + source, e);
+            }
+        }
+        if (!queue.isEmpty()) {
+            log.info("Dropping " + queue.size() + " queued examples.");
+        }
+    }
+
+    /**
+     * Blocks until at least one example arrived.
+     */
+    @Override
+    public boolean hasNext() {
+        try {
+            while (first == null) {
+                if (closed) { return false; }
+                first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            return true;
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private DataSet toDataSet(final List<Example> batch) {
+        final int rows = batch.size();
+        final double[] features = new double[rows * featureCount];
+        final double[] labels = new double[rows * labelCount];
+        final List<Serializable> ingestTimes = new ArrayList<>(rows);
+        for (int row = 0; row < rows; ++row) {
+            final Example example = batch.get(row);
+            System.arraycopy(example.features, 0, features, row * featureCount, featureCount);
+            System.arraycopy(example.labels, 0, labels, row * labelCount, labelCount);
+            ingestTimes.add(example.ingestNanos);
+        }
+        final DataSet result = new DataSet(Nd4j.create(features, new int[]{rows, featureCount}),
+                                           Nd4j.create(labels, new int[]{rows, labelCount}));
+        result.setExampleMetaData(ingestTimes);
+        return result;
+    }
+
+    /**
+     * @return the earliest ingest time of the examples in the given minibatch, or -1 if it carries none
+     */
+    public static long earliestIngestNanos(final DataSet minibatch) {
+        final List<? extends Serializable> metaData = minibatch.getExampleMetaData();
+        if (metaData == null) { return -1; }
+        long result = -1;
+        for (final Serializable entry : metaData) {
+            if (entry instanceof Long && (result < 0 || (Long) entry < result)) {
+                result = (Long) entry;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public DataSet next() {
+        return next(batchSize);
+    }
+
+    /**
+     * Waits for the first example, then collects examples until the minibatch has num examples or maxWait passed.
+     */
+    @Override
+    public DataSet next(final int num) {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final List<Example> batch = new ArrayList<>(num);
+        batch.add(first);
+        first = null;
+        final long deadline = System.nanoTime() + maxWaitNanos;
+        try {
+            while (batch.size() < num) {
+                //take what is already there without waiting, only wait if the queue is empty
+                if (queue.drainTo(batch, num - batch.size()) > 0) { continue; }
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) { break; }
+                final Example example = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (example == null) { break; }
+                batch.add(example);
+            }
+        } catch (final InterruptedException ie) {
+            //train on what we have, the caller sees the interrupt flag
+            Thread.currentThread().interrupt();
+        }
+        final DataSet result = toDataSet(batch);
+        if (preProcessor != null) {
+            preProcessor.preProcess(result);
+        }
+        return result;
+    }
+
+    @Override
+    public int inputColumns() {
+        return featureCount;
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return labelCount;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return false;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        return false;
+    }
+
+    @Override
+    public void reset() {
+        throw new UnsupportedOperationException("A stream cannot be reset.");
+    }
+
+    @Override
+    public int batch() {
+        return batchSize;
+    }
+
+    @Override
+    public void setPreProcessor(final DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return null;
+    }
+}
@@ -0,0 +1,144 @@
+package divisio.dl4jintro;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Follows an append-only file like tail -f and feeds each complete line to a {@link StreamingDataSetIterator}.
+ * Reading happens on a background thread, which blocks while the iterator's queue is full. If the file is
+ * truncated, reading starts over at its beginning. If it is replaced, e.g. by log rotation, the rest of the old file
+ * is read first, then the new file from its beginning; a replacement is noticed by a changed file key (or creation
+ * time where there is none) whenever the reader reaches the end of the file.
+ */
+public class TailFileSource implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(TailFileSource.class);
+
+    /** how long to wait for new data at the end of the file */
+    private static final long POLL_MILLIS = 50;
+
+    private final File file;
+    private final StreamingDataSetIterator target;
+    private final Thread reader;
+    private volatile boolean running = true;
+    /** position of the next unread byte */
+    private long position;
+    private long skippedLines = 0;
+
+    /**
+     * Starts following the file.
+     * @param file the file to follow, does not need to exist yet
+     * @param target where to put the parsed examples
+     * @param fromStart true: read the existing content first, false: only read lines appended from now on
+     */
+    public TailFileSource(final File file, final StreamingDataSetIterator target, final boolean fromStart) {
+        this.file = file;
+        this.target = target;
+        this.position = fromStart ? 0 : file.length();
+        this.reader = new Thread(this::run, "tail-" + file.getName());
+        this.reader.setDaemon(true);
+        this.reader.start();
+        target.addSource(this);
+        log.info("Following " + file + " from position " + position);
+    }
+
+    private void run() {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1 << 16];
+        while (running) {
+            try (final RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                final Object opened = identity();
+                while (running) {
+                    if (in.length() < position) {
+                        log.info(file + " was truncated, reading from the start.");
+                        position = 0;
+                        line.reset();
+                    }
+                    in.seek(position);
+                    final int read = in.read(buffer);
+                    if (read <= 0) {
+                        if (isReplaced(opened)) {
+                            log.info(file + " was replaced, reading the new file from the start.");
+                            position = 0;
+                            line.reset();
+                            break;
+                        }
+                        Thread.sleep(POLL_MILLIS);
+                        continue;
+                    }
+                    position += read;
+                    for (int idx = 0; idx < read; ++idx) {
+                        if (buffer[idx] == '\n') {
+                            accept(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                            line.reset();
+                        } else {
+                            line.write(buffer[idx]);
+                        }
+                    }
+                }
+            } catch (final IOException e) {
+                //the file might not exist yet or might be replaced right now, try again
+                sleepQuietly();
+            } catch (final InterruptedException ie) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return what identifies the file currently at our path: its file key, or its creation time where there is none
+     */
+    private Object identity() throws IOException {
+        final BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        return attributes.fileKey() != null ? attributes.fileKey() : attributes.creationTime();
+    }
+
+    /**
+     * @return true if another file than the opened one is at our path now, false if it is the same one or if there is
+     * none yet, e.g. while the old file was moved away and the new one is not created yet
+     */
+    private boolean isReplaced(final Object opened) {
+        try {
+            return !identity().equals(opened);
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parses the line and hands it to the iterator, blocks if the iterator's queue is full.
+     */
+    private void accept(final String line) throws InterruptedException {
+        final String trimmed = line.trim();
+        if (trimmed.isEmpty()) { return; }
+        try {
+            target.putLine(trimmed);
+        } catch (final IllegalArgumentException e) {
+            ++skippedLines;
+            log.warn("Skipping line " + skippedLines + " that cannot be parsed in " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void sleepQuietly() {
+        try {
+            Thread.sleep(POLL_MILLIS);
+        } catch (final InterruptedException ie) {
+            running = false;
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        reader.interrupt();
+    }
+}
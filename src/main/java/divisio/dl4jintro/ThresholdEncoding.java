@@ -0,0 +1,54 @@
+package divisio.dl4jintro;
+
+/**
+ * Threshold encoding of parameter updates (Strom, "Scalable distributed DNN training using commodity GPU cloud
+ * computing"): only values whose magnitude reached the threshold are sent, each as a signed index meaning "plus or
+ * minus one threshold". The rest stays in a residual on the sender and is added to the next update, so nothing is
+ * lost, only delayed. For sparse updates this sends 4 bytes per changed value instead of 4 bytes per parameter.
+ */
+final class ThresholdEncoding {
+
+    private ThresholdEncoding() {
+    }
+
+    /**
+     * Encodes the residual in place: each value that reached the threshold is moved by one threshold towards zero
+     * and written to the target as 1-based index, negative for negative values.
+     * @param residual the update plus the residual of earlier updates, keeps what is not sent
+     * @param threshold magnitude each sent value stands for, positive
+     * @param target receives the signed indices, at least as long as the residual
+     * @return number of indices written
+     */
+    static int encode(final float[] residual, final float threshold, final int[] target) {
+        int count = 0;
+        for (int idx = 0; idx < residual.length; ++idx) {
+            final float value = residual[idx];
+            if (value >= threshold) {
+                target[count++] = idx + 1;
+                residual[idx] = value - threshold;
+            } else if (value <= -threshold) {
+                target[count++] = -(idx + 1);
+                residual[idx] = value + threshold;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Adds encoded values to the target.
+     * @param indices signed 1-based indices written by {@link #encode(float[], float, int[])}
+     * @param count number of valid indices
+     * @param value what each index stands for, the threshold times any scaling to apply
+     * @param target where to add the values
+     */
+    static void decode(final int[] indices, final int count, final float value, final float[] target) {
+        for (int idx = 0; idx < count; ++idx) {
+            final int encoded = indices[idx];
+            if (encoded > 0) {
+                target[encoded - 1] += value;
+            } else {
+                target[-encoded - 1] -= value;
+            }
+        }
+    }
+}
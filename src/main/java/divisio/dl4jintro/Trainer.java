@@ -1,6 +1,10 @@
 package divisio.dl4jintro;
 
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
 import java.io.File;
+import java.util.Properties;
 
 /**
  * Interface to hide different models / frameworks behind.
@@ -16,6 +20,26 @@ public interface Trainer {
      */
     File findLastSaveState(final File workingFolder);
 
+    /**
+     * Let the training look for the save state with the best validation score, e.g. to serve or validate the best
+     * model instead of the newest one.
+     * @param workingFolder the folder to save results in
+     * @return if found, the best save state, otherwise the last one, see {@link #findLastSaveState(File)}
+     */
+    File findBestSaveState(final File workingFolder);
+
+    /**
+     * @param workingFolder the folder to save results in
+     * @return the validation score of the best save state, NaN if there is none
+     */
+    double getBestScore(final File workingFolder);
+
+    /**
+     * @param saveState a save state found by {@link #findLastSaveState(File)} or {@link #findBestSaveState(File)}
+     * @return the trainer settings stored with the save state, empty if it has none
+     */
+    Properties loadSaveMetadata(final File saveState);
+
     /**
      * Initializes a brand new trainer.
      */
@@ -28,12 +52,36 @@ public interface Trainer {
     void load(final File saveState);
 
     /**
-     * Tell the trainer to save its state to the given folder.
+     * Tell the trainer to save its state to the given folder. The trainer may finish writing the save state in the
+     * background, call {@link #close()} to make sure all save states are written.
      * @param workingFolder the folder to save results in
-     * @return the file or folder created with the new save state.
+     * @return the file or folder created (or being created) with the new save state.
      */
     File save(final File workingFolder);
 
+    /**
+     * Like {@link #save(File)}, but may leave out state that is only needed to continue training, like the
+     * optimizer state, to make frequent saves cheaper. Trainers that cannot do this save everything.
+     * @param workingFolder the folder to save results in
+     * @return the file or folder created (or being created) with the new save state.
+     */
+    File saveParameters(final File workingFolder);
+
+    /**
+     * Saves the current model as the new best save state, tracked separately from the other save states and never
+     * deleted by retention of old saves. Like {@link #saveParameters(File)}, may leave out the optimizer state, loading
+     * such a save state then takes the optimizer state from the latest full save state.
+     * @param workingFolder the folder to save results in
+     * @param score the validation score of the current model, lower is better
+     * @return the file or folder created (or being created) with the new save state.
+     */
+    File saveBest(final File workingFolder, final double score);
+
+    /**
+     * Releases background resources of the trainer and waits for pending work, like saves, to finish.
+     */
+    void close();
+
     /**
      * Starts a new epoch, performs no training yet.
      * @return the number of the new epoch
@@ -48,7 +96,96 @@ public interface Trainer {
     boolean train();
 
     /**
-     * Trigger validation of the model.
+     * @return the number of training examples processed since the trainer was initialized or loaded
+     */
+    long getSampleCount();
+
+    /**
+     * Runs inference with the current model.
+     * @param input one example per row
+     * @return one prediction per row
+     */
+    INDArray output(final INDArray input);
+
+    /**
+     * @return number of features per example the current model expects
+     */
+    int inputSize();
+
+    /**
+     * @return number of labels per example the current model predicts
+     */
+    int outputSize();
+
+    /**
+     * Lets training read from the given iterator instead of its own data, e.g. an unbounded
+     * {@link StreamingDataSetIterator} for online training. The trainer applies the preprocessing its own data went
+     * through, e.g. normalization.
+     * @param trainingSource the iterator to train from, null to train on the trainer's own data
+     */
+    void setTrainingSource(final DataSetIterator trainingSource);
+
+    /**
+     * @return the flattened parameters of the current model, a view: changes apply to the model
+     */
+    INDArray params();
+
+    /**
+     * Trigger validation of the model, returns when validation is done.
+     * @param full true: validate on all validation data, false: a periodic validation that may be limited to a
+     *             subsample to keep its cost fixed
+     * @return the validation score, lower is better
      */
-    void validate();
+    double validate(final boolean full);
+
+    /**
+     * Trigger a validation of the model without blocking training: validation runs in the background on a copy of
+     * the model as it is now. If the previous background validation is still running, the trigger is skipped.
+     * @param full true: validate on all validation data, false: a periodic validation that may be limited to a
+     *             subsample, see {@link #validate(boolean)}
+     * @return true if the validation started, false if it was skipped
+     */
+    boolean validateConcurrently(final boolean full);
+
+    /**
+     * Hands out the result of the last background validation that finished since the last call, so the caller can
+     * use its score on the training thread.
+     * @return the result, null if no background validation finished since the last call
+     */
+    BackgroundValidation takeBackgroundValidation();
+
+    /**
+     * Result of a background validation, see {@link #validateConcurrently(boolean)}.
+     */
+    abstract class BackgroundValidation {
+        private final double score;
+        private final boolean full;
+
+        protected BackgroundValidation(final double score, final boolean full) {
+            this.score = score;
+            this.full = full;
+        }
+
+        /**
+         * @return the validation score, lower is better
+         */
+        public double getScore() {
+            return score;
+        }
+
+        /**
+         * @return true if the score is on all validation data
+         */
+        public boolean isFull() {
+            return full;
+        }
+
+        /**
+         * Saves the validated copy of the model, not the current one, as the new best save state, see
+         * {@link #saveBest(File, double)}.
+         * @param workingFolder the folder to save results in
+         * @return the file or folder created (or being created) with the new save state.
+         */
+        public abstract File saveBest(final File workingFolder);
+    }
 }
@@ -13,6 +13,14 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Main method to run Training with DL4J, handles command line parsing, logging,
@@ -32,13 +40,65 @@ public class TrainingApp {
     private Integer epochs = 100;
 
     @Parameter(names = {"-v", "--validate-only"},
-            description = "Only run validation on the most current model, cannot be combined with -e or -r")
+            description = "Only run validation on the best model, or the most current one if there is no best, cannot be combined with -e or -r")
     private boolean validateOnly = false;
 
     @Parameter(names = {"-r", "--resume"},
             description = "Resume training from last save, cannot be comined with -v")
     private boolean resume = false;
 
+    @Parameter(names = {"--serve"},
+               description = "serve predictions of the last saved model over HTTP instead of training")
+    private boolean serve = false;
+
+    @Parameter(names = {"--serve-port"},
+               description = "local port for --serve")
+    private int servePort = 8080;
+
+    @Parameter(names = {"--serve-max-batch"},
+               description = "maximum number of examples per forward pass for --serve")
+    private int serveMaxBatch = 64;
+
+    @Parameter(names = {"--serve-max-wait-ms"},
+               description = "maximum milliseconds a request waits for others to batch with for --serve")
+    private int serveMaxWaitMs = 2;
+
+    @Parameter(names = {"--serve-reload-every-s"},
+               description = "number of seconds between checks for a newer save state for --serve")
+    private int serveReloadEveryS = 10;
+
+    @Parameter(names = {"--online"},
+               description = "train online from an unbounded source (--online-tail and/or --online-port) instead of epochs")
+    private boolean online = false;
+
+    @Parameter(names = {"--online-tail"},
+               description = "append-only CSV file to follow for --online, one example per line: as many features and labels as the network has")
+    private File onlineTail = null;
+
+    @Parameter(names = {"--online-from-start"},
+               description = "read the existing content of --online-tail first instead of only new lines")
+    private boolean onlineFromStart = false;
+
+    @Parameter(names = {"--online-port"},
+               description = "local port accepting CSV examples for --online, 0 disables it")
+    private int onlinePort = 0;
+
+    @Parameter(names = {"--online-max-wait-ms"},
+               description = "maximum milliseconds a minibatch waits for more examples for --online")
+    private int onlineMaxWaitMs = 50;
+
+    @Parameter(names = {"--online-queue"},
+               description = "number of examples buffered for --online before sources are slowed down")
+    private int onlineQueue = 10000;
+
+    @Parameter(names = {"--online-save-every-samples"},
+               description = "number of examples between saves for --online")
+    private long onlineSaveEverySamples = 100000;
+
+    @Parameter(names = {"--online-validate-every-samples"},
+               description = "number of examples between validations for --online")
+    private long onlineValidateEverySamples = 10000;
+
     @Parameter(names = {"--save-every-s"},
                description = "number of seconds between saves")
     private int saveEveryS = 5 * 60;
@@ -47,6 +107,303 @@ public class TrainingApp {
                description = "number of seconds betwwen validations ")
     private int validateEveryS = 60;
 
+    @Parameter(names = {"--early-stopping-patience"},
+               description = "stop training after this many validations without improvement, 0 disables it; " +
+                             "validates at least once per epoch when enabled")
+    private int earlyStoppingPatience = 0;
+
+    @Parameter(names = {"--early-stopping-min-delta"},
+               description = "minimum decrease of the validation score that counts as improvement for --early-stopping-patience")
+    private double earlyStoppingMinDelta = 0.0;
+
+    @Parameter(names = {"--max-training-s"},
+               description = "stop training after this many seconds, 0 for no limit")
+    private int maxTrainingS = 0;
+
+    @Parameter(names = {"--max-iterations"},
+               description = "stop training after this many iterations, 0 for no limit")
+    private long maxIterations = 0;
+
+    @Parameter(names = {"-b", "--batch-size"},
+               description = "number of examples per minibatch")
+    private int batchSize = 1;
+
+    @Parameter(names = {"--gradient-accumulation"},
+               description = "number of minibatches whose gradients are accumulated per parameter update")
+    private int gradientAccumulation = 1;
+
+    @Parameter(names = {"--native-threads"},
+               description = "number of threads for ND4J's native code (OpenMP & BLAS), 0 keeps the environment's default")
+    private int nativeThreads = 0;
+
+    @Parameter(names = {"--tune"},
+               description = "before training, calibrate batch size & native threads with short timed trials and train " +
+                             "with the fastest setting; resuming a tuned training reuses its settings")
+    private boolean tune = false;
+
+    @Parameter(names = {"--tune-batch-sizes"},
+               description = "comma separated candidate batch sizes for --tune")
+    private String tuneBatchSizes = "1,2,4,8,16,32,64";
+
+    @Parameter(names = {"--tune-threads"},
+               description = "comma separated candidate native thread counts for --tune, default: powers of two up to the number of cores")
+    private String tuneThreads = null;
+
+    @Parameter(names = {"--tune-trial-s"},
+               description = "number of seconds to measure each candidate for --tune")
+    private int tuneTrialS = 5;
+
+    @Parameter(names = {"--tune-max-memory-mb"},
+               description = "maximum native memory a candidate may allocate for --tune, 0 for no limit")
+    private int tuneMaxMemoryMb = 0;
+
+    @Parameter(names = {"--effective-batch-size"},
+               description = "examples per parameter update to keep fixed for --tune by accumulating gradients, " +
+                             "0 lets the batch size vary freely")
+    private int effectiveBatchSize = 0;
+
+    @Parameter(names = {"--learning-rate"},
+               description = "learning rate of the updater")
+    private double learningRate = 0.01;
+
+    @Parameter(names = {"--training-data"},
+               description = "binary data set file to train from, memory mapped, created if it does not exist")
+    private File trainingData = null;
+
+    @Parameter(names = {"--bits"},
+               description = "learn --operation on two numbers of this many bits from generated examples, " +
+                             "0 to learn AND on the four combinations of two bits")
+    private int bits = 0;
+
+    @Parameter(names = {"--operation"},
+               description = "bitwise operation to learn with --bits: AND, OR or XOR")
+    private BitwiseDataGenerator.Operation operation = BitwiseDataGenerator.Operation.AND;
+
+    @Parameter(names = {"--examples-per-epoch"},
+               description = "number of generated training examples per epoch, used with --bits")
+    private long examplesPerEpoch = 1_000_000;
+
+    @Parameter(names = {"--validation-examples"},
+               description = "number of generated validation examples, used with --bits")
+    private int validationExamples = 100_000;
+
+    @Parameter(names = {"--data-seed"},
+               description = "seed of the generated examples and of the shard assignment of --preprocess, " +
+                             "the same seed generates the same examples and shards")
+    private long dataSeed = 42;
+
+    @Parameter(names = {"--generator-threads"},
+               description = "number of threads generating examples, used with --bits")
+    private int generatorThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = {"--generator-chunk"},
+               description = "number of examples each generator thread generates at once, used with --bits")
+    private int generatorChunk = 4096;
+
+    @Parameter(names = {"--shards"},
+               description = "folder with preprocessed shards to train from, written by --preprocess")
+    private File shards = null;
+
+    @Parameter(names = {"--preprocess"},
+               description = "instead of training, preprocess --raw-data with Spark in local mode into --shards")
+    private boolean preprocess = false;
+
+    @Parameter(names = {"--raw-data"},
+               description = "CSV file with raw records for --preprocess, created if it does not exist")
+    private File rawData = new File("raw-data.csv");
+
+    @Parameter(names = {"--raw-repetitions"},
+               description = "how often all AND combinations are written when --raw-data is created")
+    private int rawRepetitions = 1000;
+
+    @Parameter(names = {"--shard-count"},
+               description = "number of shards written by --preprocess")
+    private int shardCount = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = {"--validation-batch-size"},
+               description = "number of examples per forward pass during validation")
+    private int validationBatchSize = 1024;
+
+    @Parameter(names = {"--validation-max-samples"},
+               description = "maximum number of examples for periodic validations, 0 for no limit, final validation uses all")
+    private long validationMaxSamples = 0;
+
+    @Parameter(names = {"--validation-max-s"},
+               description = "maximum number of seconds for periodic validations, 0 for no limit, final validation uses all")
+    private int validationMaxS = 0;
+
+    @Parameter(names = {"--validate-in-background"},
+               description = "run periodic validations on a background thread with a copy of the model")
+    private boolean validateInBackground = false;
+
+    @Parameter(names = {"--async-save"},
+               description = "write save states on a background thread instead of pausing training")
+    private boolean asyncSave = false;
+
+    @Parameter(names = {"--max-pending-saves"},
+               description = "number of background saves that may be in flight before training waits, used with --async-save")
+    private int maxPendingSaves = 2;
+
+    @Parameter(names = {"--keep-last-saves"},
+               description = "number of save states to keep in the working folder, 0 keeps all")
+    private int keepLastSaves = 0;
+
+    @Parameter(names = {"--full-save-every"},
+               description = "every n-th periodic save includes the updater state, the others only save parameters; " +
+                             "the final save is always full")
+    private int fullSaveEvery = 1;
+
+    @Parameter(names = {"--prefetch-queue"},
+               description = "number of minibatches prepared in the background while training, 0 disables prefetching")
+    private int prefetchQueue = 0;
+
+    @Parameter(names = {"--prefetch-threads"},
+               description = "number of threads preparing minibatches, used with --prefetch-queue")
+    private int prefetchThreads = 1;
+
+    @Parameter(names = {"--workers"},
+               description = "number of network replicas trained in parallel on separate threads")
+    private int workers = 1;
+
+    @Parameter(names = {"--averaging-frequency"},
+               description = "number of parallel steps between averaging the replicas, used with --workers")
+    private int averagingFrequency = 1;
+
+    @Parameter(names = {"--precision"},
+               description = "precision of parameters, data & checkpoints: FP64, FP32 or FP16 (storage only on CPU)")
+    private Precision precision = Precision.FP32;
+
+    @Parameter(names = {"--memory-policy"},
+               description = "ND4J memory allocation: NONE or WORKSPACES (DL4J's training & inference workspaces)")
+    private MemoryPolicy memoryPolicy = MemoryPolicy.NONE;
+
+    @Parameter(names = {"--track-allocations"},
+               description = "every n iterations, log the average heap bytes allocated and off-heap net growth per " +
+                             "iteration and the workspaces' spilled & pinned bytes, 0 disables it")
+    private int trackAllocations = 0;
+
+    @Parameter(names = {"--metrics"},
+               description = "record training metrics, write them to metrics.csv in the working folder")
+    private boolean metricsEnabled = false;
+
+    @Parameter(names = {"--metrics-port"},
+               description = "local port serving metrics in Prometheus format at /metrics, 0 disables it, used with --metrics")
+    private int metricsPort = 9400;
+
+    @Parameter(names = {"--metrics-every-s"},
+               description = "number of seconds between lines in metrics.csv, used with --metrics")
+    private int metricsEveryS = 10;
+
+    @Parameter(names = {"--event-log"},
+               description = "record iterations, epochs, saves & validations as NDJSON in events.ndjson in the working folder " +
+                             "instead of logging every score, summarize with EventLogReader")
+    private boolean eventLogEnabled = false;
+
+    @Parameter(names = {"--event-log-queue"},
+               description = "number of events buffered for the event log writer before events are dropped")
+    private int eventLogQueue = 8192;
+
+    @Parameter(names = {"--event-log-sample-every"},
+               description = "only record every n-th iteration in the event log")
+    private int eventLogSampleEvery = 1;
+
+    @Parameter(names = {"--profile"},
+               description = "profile data fetch, forward pass, backward pass & updater step per layer, logs a table and " +
+                             "writes profile.collapsed for flame graphs to the working folder, single threaded training only")
+    private boolean profile = false;
+
+    @Parameter(names = {"--profile-sample-every"},
+               description = "replay & time the layers of every n-th iteration, used with --profile")
+    private int profileSampleEvery = 100;
+
+    @Parameter(names = {"--profile-report-every"},
+               description = "number of iterations between profile tables & profile.collapsed updates, used with --profile")
+    private int profileReportEvery = 1000;
+
+    @Parameter(names = {"--scaling-report"},
+               description = "instead of training, measure samples/sec for 1 up to --workers workers")
+    private boolean scalingReport = false;
+
+    @Parameter(names = {"--scaling-report-s"},
+               description = "number of seconds to train per worker count for --scaling-report")
+    private int scalingReportS = 20;
+
+    @Parameter(names = {"--ps-workers"},
+               description = "distributed training: run a parameter server as coordinator that saves & validates, " +
+                             "and start this many worker JVMs on localhost that train, each on its own share of the " +
+                             "--bits data; parameters are exchanged as floats, so FP64 is not supported")
+    private int psWorkers = 0;
+
+    @Parameter(names = {"--ps-port"},
+               description = "port of the parameter server for --ps-workers")
+    private int psPort = 7400;
+
+    @Parameter(names = {"--ps-connect"},
+               description = "train as a worker of the parameter server at host:port, started by --ps-workers")
+    private String psConnect = null;
+
+    @Parameter(names = {"--ps-worker-id"},
+               description = "id of this worker with --ps-connect, also selects its data shard")
+    private int psWorkerId = 0;
+
+    @Parameter(names = {"--ps-push-every"},
+               description = "number of local iterations between pushes to the parameter server")
+    private int psPushEvery = 1;
+
+    @Parameter(names = {"--ps-threshold"},
+               description = "threshold encode parameter changes with this threshold, 0 pushes them dense")
+    private double psThreshold = 0.0;
+
+    @Parameter(names = {"--ps-staleness"},
+               description = "maximum number of pushes a worker may be ahead of the slowest one, -1 for fully asynchronous")
+    private int psStaleness = -1;
+
+    @Parameter(names = {"--ps-timeout-s"},
+               description = "number of seconds a worker may send nothing before the parameter server drops it, " +
+                             "0 waits forever; keep it above the time between two pushes, including epoch starts")
+    private int psTimeoutS = 60;
+
+    @Parameter(names = {"--shutdown-grace-s"},
+               description = "number of seconds to wait on shutdown for training to stop before the final save, " +
+                             "keep it below the grace period of the process' orchestrator")
+    private int shutdownGraceS = 20;
+
+    @Parameter(names = {"--ps-scaling-report"},
+               description = "instead of training, measure samples/sec of the parameter server for 1 up to --ps-workers workers")
+    private boolean psScalingReport = false;
+
+    @Parameter(names = {"--sweep"},
+               description = "instead of training one model, run a hyperparameter sweep with successive halving")
+    private boolean sweep = false;
+
+    @Parameter(names = {"--sweep-learning-rates"},
+               description = "comma separated learning rates for --sweep, random samples are drawn log-uniformly between min and max")
+    private String sweepLearningRates = "0.001,0.01,0.1";
+
+    @Parameter(names = {"--sweep-batch-sizes"},
+               description = "comma separated batch sizes for --sweep")
+    private String sweepBatchSizes = "1,2,4";
+
+    @Parameter(names = {"--sweep-random"},
+               description = "number of random points to try for --sweep, 0 tries the full grid")
+    private int sweepRandom = 0;
+
+    @Parameter(names = {"--sweep-seed"},
+               description = "seed for the random points of --sweep-random, the same seed tries the same points")
+    private long sweepSeed = 42;
+
+    @Parameter(names = {"--sweep-parallel"},
+               description = "number of runs training at the same time for --sweep")
+    private int sweepParallel = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = {"--sweep-min-epochs"},
+               description = "epochs every run trains before the first cut for --sweep")
+    private int sweepMinEpochs = 10;
+
+    @Parameter(names = {"--sweep-eta"},
+               description = "only the best 1/eta of the runs survive each cut for --sweep")
+    private int sweepEta = 3;
+
     /**
      * the trainer we are training
      */
@@ -58,26 +415,146 @@ public class TrainingApp {
     private File workingFolder;
 
     /**
-     * flag indicating if the application is still running
+     * the save state the trainer was loaded from, null if we started fresh
+     */
+    private File loadedSaveState;
+
+    /**
+     * serves predictions in --serve mode
+     */
+    private InferenceServer inferenceServer;
+
+    /**
+     * training metrics, null if disabled
+     */
+    private TrainingMetrics metrics;
+
+    /**
+     * publishes the metrics, null if disabled
      */
-    private volatile boolean running = true;
+    private MetricsReporter metricsReporter;
 
     /**
-     * flag indicating if the application is still training
+     * structured training events, null if disabled
      */
-    private volatile boolean training = true;
+    private EventLog eventLog;
+
+    /**
+     * per layer training profile, null if disabled
+     */
+    private ProfilingListener profiler;
+
+    /**
+     * generates N bit examples, null to train on the four combinations of two bits
+     */
+    private BitwiseDataGenerator generator;
+
+    /**
+     * holds the master parameters in distributed training, null otherwise
+     */
+    private ParameterServer parameterServer;
+
+    /**
+     * worker JVMs started by the coordinator, by worker id
+     */
+    private final Map<Integer, Process> workerProcesses = new TreeMap<>();
+
+    /**
+     * the unbounded training data in --online mode, null otherwise
+     */
+    private StreamingDataSetIterator onlineIterator;
+
+    /**
+     * the calibrated settings we train with, null if they were not calibrated
+     */
+    private TunedSettings tunedSettings;
+
+    /**
+     * decides when to stop training early and tracks the best periodic validation score, null when not training
+     */
+    private EarlyStopping earlyStopping;
+
+    /**
+     * score of the best save state, always from a validation on all data, NaN if there is none
+     */
+    private double bestFullScore = Double.NaN;
+
+    /**
+     * true if a new best subsample score waits for a full validation in the background to confirm it
+     */
+    private boolean confirmationPending = false;
+
+    /**
+     * number of periodic saves so far
+     */
+    private int periodicSaves = 0;
+
+    /**
+     * runs saves & validations between iterations and stops training on shutdown
+     */
+    private final TrainingController controller = new TrainingController();
+
+    /**
+     * time of the last validation during training, in millis
+     */
+    private long lastValidation;
 
     /**
      * initializes working folder, logging & trainer
      */
     private void init() {
+        if (metricsEnabled) {
+            metrics = new TrainingMetrics();
+        }
+        if (eventLogEnabled) {
+            eventLog = new EventLog(eventLogQueue, eventLogSampleEvery);
+        }
+        if (profile) {
+            profiler = new ProfilingListener(profileSampleEvery, profileReportEvery);
+        }
+        if (bits > 0) {
+            if (shards != null || online) {
+                throw new ParameterException("--bits generates its own data, it cannot be combined with --shards or --online.");
+            }
+            //each distributed worker trains on its own shard of the data
+            final long seed = psConnect == null ? dataSeed : dataSeed + 1 + psWorkerId;
+            generator = new BitwiseDataGenerator(operation, bits, seed, generatorChunk, generatorThreads);
+        }
+        if (online && onlineTail == null && onlinePort <= 0) {
+            throw new ParameterException("--online needs a source, set --online-tail and/or --online-port.");
+        }
+        if (psConnect != null && workers > 1) {
+            throw new ParameterException("Workers of --ps-connect train single threaded, scale with --ps-workers instead of --workers.");
+        }
+        //only generated data is split between distributed workers, any other source would be trained on by all of them
+        if ((psWorkers > 0 || psConnect != null) && bits <= 0) {
+            throw new ParameterException("--ps-workers and --ps-connect need generated data, set --bits.");
+        }
+        if ((psWorkers > 0 || psConnect != null) && precision == Precision.FP64) {
+            throw new ParameterException("The parameter server exchanges floats, --precision FP64 cannot be combined with --ps-workers or --ps-connect.");
+        }
+        //the parallel workers fit each minibatch on their own, they cannot accumulate gradients
+        if (workers > 1 && (gradientAccumulation > 1 || effectiveBatchSize > 0)) {
+            throw new ParameterException("--gradient-accumulation and --effective-batch-size need single threaded training, they cannot be combined with --workers.");
+        }
+        //serving and validation need a trained model, just like resuming
+        final boolean loadSaveState = resume || serve || validateOnly;
+
+        //calibrate before anything depends on the batch size, resuming reuses the settings of the save state instead
+        if (tune && !loadSaveState) {
+            applyTunedSettings(runTuner());
+        }
         //build the trainer we currently want to work with
-        trainer = buildTrainer();
+        trainer = buildTrainer(workers);
         //create a working folder with the trainer's class name
         workingFolder = new File(trainer.getClass().getSimpleName());
+        //distributed workers keep their logs apart from the coordinator's save states
+        if (psConnect != null) {
+            workingFolder = new File(workingFolder, "worker-" + psWorkerId);
+        }
 
         //if we are not resuming the training, delete the old folder (if it exists)
-        if (!resume && workingFolder.exists()) {
+        if (!loadSaveState && workingFolder.exists()) {
             try {
                 log.info("Starting fresh training, deleting old working folder: " + workingFolder);
                 FileUtils.deleteDirectory(workingFolder);
@@ -96,99 +573,827 @@ public class TrainingApp {
         //init logging so our log output lands in the working dir
         initLogFile();
 
+        if (eventLog != null) {
+            eventLog.start(new File(workingFolder, "events.ndjson"));
+        }
+        if (profiler != null) {
+            if (workers > 1) {
+                log.warn("Profiling only covers single threaded training, ignoring --profile with " + workers + " workers.");
+            }
+            profiler.setCollapsedStackFile(new File(workingFolder, "profile.collapsed"));
+        }
+        if (metrics != null) {
+            metricsReporter = new MetricsReporter(metrics, metricsPort,
+                                                  new File(workingFolder, "metrics.csv"), metricsEveryS);
+        }
+
         log.info("Created trainer: " + trainer);
         //now either start or resume training
-        if (resume) {
-            final File lastSave = trainer.findLastSaveState(workingFolder);
+        if (loadSaveState) {
+            //serving and validation use the best model, resuming continues where we left off
+            final File lastSave = resume ? trainer.findLastSaveState(workingFolder)
+                                         : trainer.findBestSaveState(workingFolder);
             if (lastSave == null) {
-                throw new RuntimeException("Cannot resume training, last save file not found.");
+                throw new RuntimeException("Cannot load model, save file not found.");
+            }
+            log.info("Found previous save: " + lastSave + ", loading it.");
+            final TunedSettings savedSettings = TunedSettings.fromMetadata(trainer.loadSaveMetadata(lastSave));
+            if (savedSettings != null) {
+                log.info("Save state was trained with tuned settings, skipping calibration: " + savedSettings);
+                applyTunedSettings(savedSettings);
+                trainer.close();
+                trainer = buildTrainer(workers);
             }
-            log.info("Found previous save: " + lastSave + ", resuming training.");
             trainer.load(lastSave);
+            loadedSaveState = lastSave;
         } else {
+            if (tunedSettings != null) {
+                log.info("Training with tuned settings: " + tunedSettings);
+            }
             trainer.init();
         }
+        //online examples must fit the network, so sources start once it exists, they block until training consumes data
+        if (online) {
+            startOnlineSources();
+        }
+    }
+
+    /**
+     * Runs short timed trials to find the fastest batch size & native thread count.
+     * @return the chosen settings
+     */
+    private TunedSettings runTuner() {
+        final List<Integer> batchSizes = toInts(parseValues(tuneBatchSizes));
+        final List<Integer> threadCounts = new ArrayList<>();
+        if (tuneThreads != null) {
+            threadCounts.addAll(toInts(parseValues(tuneThreads)));
+        } else {
+            final int cores = Runtime.getRuntime().availableProcessors();
+            for (int threads = 1; threads < cores; threads *= 2) {
+                threadCounts.add(threads);
+            }
+            threadCounts.add(cores);
+        }
+        final PerformanceTuner tuner = new PerformanceTuner(settings -> {
+            final AbstractDL4JMultilayerTrainer result = buildTrainer(workers, settings.getBatchSize(), learningRate);
+            result.setGradientAccumulation(settings.getGradientAccumulation());
+            result.setNativeThreads(settings.getNativeThreads());
+            //trials must not take examples from online training or show up in its metrics
+            result.setTrainingSource(null);
+            result.setMetrics(null);
+            result.setEventLog(null);
+            result.setProfiler(null);
+            return result;
+        }, tuneTrialS * 1000L, tuneMaxMemoryMb * 1024L * 1024L);
+        try {
+            return tuner.tune(batchSizes, threadCounts, effectiveBatchSize);
+        } catch (final IllegalArgumentException e) {
+            throw new ParameterException("Calibration failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Makes the given settings the ones trainers are built with.
+     */
+    private void applyTunedSettings(final TunedSettings settings) {
+        if (workers > 1 && settings.getGradientAccumulation() > 1) {
+            throw new ParameterException("The save state was tuned to accumulate gradients, it cannot be resumed with --workers.");
+        }
+        tunedSettings = settings;
+        batchSize = settings.getBatchSize();
+        gradientAccumulation = settings.getGradientAccumulation();
+        nativeThreads = settings.getNativeThreads();
     }
 
     /**
      * Builds the trainer we want to train, just replace with a different trainer for comparison
+     * @param workerCount number of threads training in parallel
+     */
+    private Trainer buildTrainer(final int workerCount) {
+        return buildTrainer(workerCount, batchSize, learningRate);
+    }
+
+    /**
+     * Builds the trainer we want to train with the given hyperparameters
+     * @param workerCount number of threads training in parallel
+     * @param batchSize number of examples per minibatch
+     * @param learningRate learning rate of the updater
      */
-    private Trainer buildTrainer() {
-        return new BinaryAndTrainer();
+    private AbstractDL4JMultilayerTrainer buildTrainer(final int workerCount, final int batchSize,
+                                                       final double learningRate) {
+        final BinaryAndTrainer result = new BinaryAndTrainer(batchSize);
+        result.setLearningRate(learningRate);
+        result.setPrecision(precision);
+        result.setGradientAccumulation(gradientAccumulation);
+        result.setNativeThreads(nativeThreads);
+        result.setTunedSettings(tunedSettings);
+        result.setWorkers(workerCount, averagingFrequency);
+        result.setTrainingDataFile(trainingData);
+        result.setGenerator(generator, examplesPerEpoch, validationExamples);
+        if (!preprocess) {
+            result.setTrainingShards(shards);
+        }
+        result.setMetrics(metrics);
+        result.setEventLog(eventLog);
+        result.setProfiler(profiler);
+        result.setMemoryPolicy(memoryPolicy);
+        result.setTrackAllocations(trackAllocations);
+        result.setValidationBatchSize(validationBatchSize);
+        result.setValidationBudget(validationMaxSamples, validationMaxS * 1000L);
+        if (asyncSave) {
+            result.setAsyncSave(maxPendingSaves);
+        }
+        result.setKeepLastSaves(keepLastSaves);
+        result.setPrefetching(prefetchQueue, prefetchThreads);
+        return result;
+    }
+
+    /**
+     * In distributed training, copies the master parameters into the trainer's network, so saves & validations
+     * see them.
+     */
+    private void exportMasterParams() {
+        if (parameterServer != null) {
+            parameterServer.exportParams(trainer.params());
+        }
     }
 
     /**
      * save the current training state
      */
     private void save() {
-        log.info("Saving...");
-        final File saveFile = trainer.save(workingFolder);
+        save(true);
+    }
+
+    /**
+     * save the current training state
+     * @param full true: save everything needed to continue training, false: parameters may be enough
+     */
+    private void save(final boolean full) {
+        log.info(full ? "Saving..." : "Saving parameters...");
+        final long start = System.nanoTime();
+        exportMasterParams();
+        final File saveFile = full ? trainer.save(workingFolder) : trainer.saveParameters(workingFolder);
+        if (metrics != null) {
+            metrics.recordSave(System.nanoTime() - start);
+        }
+        if (eventLog != null) {
+            eventLog.save(saveFile, System.nanoTime() - start);
+        }
         log.info("Saved state to: " + saveFile);
     }
 
+    /**
+     * saves during training, only every --full-save-every save is a full one
+     */
+    private void periodicSave() {
+        ++periodicSaves;
+        save(fullSaveEvery <= 1 || periodicSaves % fullSaveEvery == 0);
+    }
+
+    /**
+     * triggers validation
+     * @return the validation score
+     */
+    private double validate() {
+        return validate(false);
+    }
+
     /**
      * triggers validation
+     * @param periodic true: a periodic validation during training, may run in the background and on a subsample,
+     *                 false: validate on all data and wait for the result
+     * @return the validation score, NaN if validation runs in the background
      */
-    private void validate() {
+    private double validate(final boolean periodic) {
         log.info("Validating...");
-        trainer.validate();
+        final long start = System.nanoTime();
+        exportMasterParams();
+        //early stopping needs the score right away
+        final boolean needScore = earlyStopping != null && earlyStopping.usesScores();
+        double score = Double.NaN;
+        if (periodic && validateInBackground && !needScore) {
+            //the score is picked up by the next periodic validation
+            trainer.validateConcurrently(false);
+        } else {
+            score = trainer.validate(!periodic);
+        }
+        if (metrics != null) {
+            metrics.recordValidate(System.nanoTime() - start);
+        }
+        if (eventLog != null) {
+            eventLog.validation(score, System.nanoTime() - start);
+        }
+        return score;
+    }
+
+    /**
+     * @return true if periodic validations only look at a subsample, so their scores cannot be compared with
+     * scores on all validation data
+     */
+    private boolean periodicValidationsLimited() {
+        return validationMaxSamples > 0 || validationMaxS > 0;
+    }
+
+    /**
+     * Passes a periodic validation score to early stopping and saves the model as the best one if the score is a new
+     * best. Best save states are always scored on all validation data: if periodic validations only look at a
+     * subsample, a new best subsample score is confirmed by a full validation first, see {@link #confirmBest()}.
+     * @param validated the background validation the score is from, null if it is from the current model
+     */
+    private void trackScore(final double score, final Trainer.BackgroundValidation validated) {
+        if (!earlyStopping.onValidation(score)) { return; }
+        if (periodicValidationsLimited()) {
+            confirmationPending = true;
+        } else {
+            trackBest(score, validated);
+        }
+    }
+
+    /**
+     * Starts the full validation that confirms a new best subsample score, if one is pending. It runs in the
+     * background, one at a time, so it neither stalls training nor adds up when almost every score is a new best.
+     * @return true if the confirmation started
+     */
+    private boolean confirmBest() {
+        if (!confirmationPending || !trainer.validateConcurrently(true)) { return false; }
+        confirmationPending = false;
+        return true;
+    }
+
+    /**
+     * Uses the score of the background validation that finished since the last call, if any.
+     */
+    private void takeBackgroundValidation() {
+        final Trainer.BackgroundValidation validated = trainer.takeBackgroundValidation();
+        if (validated == null) { return; }
+        if (validated.isFull()) {
+            trackBest(validated.getScore(), validated);
+        } else {
+            trackScore(validated.getScore(), validated);
+        }
+    }
+
+    /**
+     * Saves the model as the best one if the score is better than the one of the best save state.
+     * @param fullScore validation score on all validation data
+     * @param validated the background validation the score is from, its copy of the model is saved, null to save the
+     *                  current model
+     */
+    private void trackBest(final double fullScore, final Trainer.BackgroundValidation validated) {
+        if (Double.isNaN(fullScore) || !(Double.isNaN(bestFullScore) || fullScore < bestFullScore)) { return; }
+        log.info("New best validation score: " + fullScore);
+        bestFullScore = fullScore;
+        if (validated != null) {
+            validated.saveBest(workingFolder);
+        } else {
+            trainer.saveBest(workingFolder, fullScore);
+        }
+    }
+
+    /**
+     * Loads the best model if it is better than the current one. The best save state only holds parameters, so the
+     * restored model keeps the updater state of the latest full save, which belongs to a later point in training.
+     * That does not matter for using the model, but training continued from it starts with that later momentum.
+     * @param currentScore validation score of the current model on all validation data
+     */
+    private void restoreBest(final double currentScore) {
+        if (Double.isNaN(bestFullScore) || !(bestFullScore < currentScore)) { return; }
+        final File best = trainer.findBestSaveState(workingFolder);
+        log.info("Final score " + currentScore + " is worse than best score " + bestFullScore + ", restoring: " + best);
+        trainer.load(best);
     }
 
     /**
      * Runs training for the number of epochs defined as console argument
      */
     private void train() {
-        //last timestamp in millis when state was saved
-        long lastSave = System.currentTimeMillis();
-        // last timestamp in millis when validation was performed
-        long lastValidation = System.currentTimeMillis();
-        for (int epochCount = 0; epochCount < epochs; ++epochCount) {
-            final int currentEpoch = trainer.startEpoch();
-            log.info("Starting epoch " + currentEpoch);
-            while (trainer.train() && running) {
+        //when resuming, a new best model has to beat the best one of the earlier runs, which was scored on all
+        //validation data, so early stopping can only start from it if periodic validations use all data, too
+        bestFullScore = trainer.getBestScore(workingFolder);
+        earlyStopping = new EarlyStopping(earlyStoppingPatience, earlyStoppingMinDelta, maxIterations,
+                                          periodicValidationsLimited() ? Double.NaN : bestFullScore);
+        //saves & validations run between iterations, the loop itself only trains
+        controller.schedule("save", TrainingController.Trigger.everySeconds(Math.max(1, saveEveryS)),
+                            this::periodicSave);
+        controller.schedule("validation", TrainingController.Trigger.everySeconds(Math.max(1, validateEveryS)),
+                            this::periodicValidation);
+        //the controller times the budget, so the loop does not read the clock after every iteration
+        if (maxTrainingS > 0) {
+            controller.schedule("time budget", TrainingController.Trigger.everySeconds(maxTrainingS),
+                                () -> earlyStopping.timeBudgetUsedUp(maxTrainingS * 1000L));
+        }
+        lastValidation = System.currentTimeMillis();
+        controller.start(trainer.getSampleCount());
+        earlyStopping.start();
+        try {
+            for (int epochCount = 0; epochCount < epochs; ++epochCount) {
+                final int currentEpoch = trainer.startEpoch();
+                final long epochStart = System.currentTimeMillis();
+                log.info("Starting epoch " + currentEpoch);
+                while (earlyStopping.onIteration() && trainer.train() &&
+                       controller.afterIteration(trainer.getSampleCount()))
+                {
+                    //just train
+                }
+                //stop training if the shutdown hook was called
+                if (controller.isCancelled()) { break; }
+                //patience counts validations, so validate at least once per epoch
+                if (earlyStopping.usesScores() && !earlyStopping.shouldStop() && lastValidation < epochStart) {
+                    periodicValidation();
+                }
+                if (earlyStopping.shouldStop()) {
+                    log.info("Stopping early after " + earlyStopping.getIterations() + " iterations: " +
+                             earlyStopping.getStopReason());
+                    break;
+                }
+            }
+            //if we finish training normally, validate once more and make sure we end up with the best model
+            if (!controller.isCancelled()) {
+                log.info("Training finished, running final validation.");
+                final double score = validate();
+                //validating waited for background validations, their scores may still hold a better model
+                takeBackgroundValidation();
+                trackBest(score, null);
+                restoreBest(score);
+            } else {
+                //otherwise log that we were interrupted
+                log.info("Training interrupted.");
+            }
+        } finally {
+            //signal that we are done training
+            controller.finished();
+        }
+    }
+
+    /**
+     * validates during training and passes the score to early stopping
+     */
+    private void periodicValidation() {
+        takeBackgroundValidation();
+        //a confirmation takes the place of this validation, the two would only wait for each other
+        if (!confirmBest()) {
+            trackScore(validate(true), null);
+            confirmBest();
+        }
+        lastValidation = System.currentTimeMillis();
+    }
+
+    /**
+     * Creates the iterator for --online mode with the trainer's input & output sizes, starts its sources and lets
+     * the trainer train from it.
+     */
+    private void startOnlineSources() {
+        onlineIterator = new StreamingDataSetIterator(trainer.inputSize(), trainer.outputSize(), batchSize,
+                                                      onlineMaxWaitMs, onlineQueue);
+        trainer.setTrainingSource(onlineIterator);
+        if (onlineTail != null) {
+            new TailFileSource(onlineTail, onlineIterator, onlineFromStart);
+        }
+        if (onlinePort > 0) {
+            new SocketSource(onlinePort, onlineIterator);
+        }
+    }
+
+    /**
+     * Trains on the unbounded data of --online mode until shutdown, saves and validates by number of examples.
+     */
+    private void trainOnline() {
+        controller.schedule("save", TrainingController.Trigger.everySamples(onlineSaveEverySamples),
+                            this::periodicSave);
+        controller.schedule("validation", TrainingController.Trigger.everySamples(onlineValidateEverySamples),
+                            () -> validate(true));
+        controller.start(trainer.getSampleCount());
+        try {
+            //a single epoch that never ends
+            trainer.startEpoch();
+            log.info("Training online.");
+            while (trainer.train() && controller.afterIteration(trainer.getSampleCount())) {
+                //just train
+            }
+            log.info("Online training stopped after " + trainer.getSampleCount() + " examples.");
+        } finally {
+            //signal that we are done training
+            controller.finished();
+        }
+    }
+
+    /**
+     * Trains fresh trainers for a fixed time with an increasing number of workers and logs the throughput, so we
+     * can see how well data parallel training scales on this machine.
+     */
+    private void runScalingReport() {
+        final StringBuilder report = new StringBuilder("\nworkers | samples/s | speedup | efficiency\n");
+        double baseline = 0.0;
+        for (int workerCount = 1; workerCount <= workers; workerCount = nextWorkerCount(workerCount, workers)) {
+            final Trainer scalingTrainer = buildTrainer(workerCount);
+            scalingTrainer.init();
+            final long start = System.currentTimeMillis();
+            final long end = start + scalingReportS * 1000L;
+            while (System.currentTimeMillis() < end) {
+                scalingTrainer.startEpoch();
+                while (scalingTrainer.train() && System.currentTimeMillis() < end) {
+                    //just train
+                }
+            }
+            final double seconds = (System.currentTimeMillis() - start) / 1000.0;
+            final double samplesPerSecond = scalingTrainer.getSampleCount() / seconds;
+            scalingTrainer.close();
+            if (workerCount == 1) {
+                baseline = samplesPerSecond;
+            }
+            final double speedup = baseline > 0.0 ? samplesPerSecond / baseline : 0.0;
+            report.append(String.format("%7d | %9.1f | %7.2f | %9.1f%%%n",
+                                        workerCount, samplesPerSecond, speedup, speedup / workerCount * 100.0));
+            log.info("Measured " + workerCount + " worker(s): " + samplesPerSecond + " samples/s");
+        }
+        log.info("Scaling report:" + report);
+    }
+
+    /**
+     * @return the next worker count to measure for a scaling report: powers of two, ending with the maximum
+     */
+    private static int nextWorkerCount(final int workerCount, final int maxWorkers) {
+        final int next = workerCount * 2;
+        return next > maxWorkers && workerCount < maxWorkers ? maxWorkers : next;
+    }
+
+    /**
+     * Coordinates distributed training: holds the master parameters in a parameter server, starts the worker JVMs
+     * and saves & validates the master parameters until all workers are done. Workers that crash are logged, the
+     * others keep training and the save states keep being written.
+     */
+    private void runCoordinator() {
+        parameterServer = new ParameterServer(psPort, trainer.params(), psStaleness, 1.0 / psWorkers,
+                                              psTimeoutS * 1000);
+        startWorkers(psWorkers, parameterServer.getPort(), epochs);
+        controller.schedule("save", TrainingController.Trigger.everySeconds(Math.max(1, saveEveryS)),
+                            this::periodicSave);
+        //validations also report the throughput since the previous one
+        final Runnable validation = new Runnable() {
+            private long lastReport = System.currentTimeMillis();
+            private long lastSamples = 0;
+            private long lastBytes = 0;
+
+            @Override
+            public void run() {
                 final long now = System.currentTimeMillis();
-                final long deltaSave = (now - lastSave) / 1000;
-                final long deltaValidation = (now - lastValidation) / 1000;
-                if (deltaSave > saveEveryS) {
-                    save();
-                    lastSave = System.currentTimeMillis();
+                final double seconds = (now - lastReport) / 1000.0;
+                final long samples = parameterServer.getSampleCount();
+                final long bytes = parameterServer.getBytesReceived();
+                log.info(String.format("Parameter server: version %d, %d workers, %.1f samples/s, %.2f MB/s received",
+                                       parameterServer.getVersion(), parameterServer.getWorkerCount(),
+                                       (samples - lastSamples) / seconds, (bytes - lastBytes) / seconds / 1e6));
+                lastReport = now;
+                lastSamples = samples;
+                lastBytes = bytes;
+                validate(true);
+            }
+        };
+        controller.schedule("validation", TrainingController.Trigger.everySeconds(Math.max(1, validateEveryS)),
+                            validation);
+        controller.start(0);
+        try {
+            //the workers train, we only wake up for saves, validations, crashed workers and shutdown
+            while (checkWorkers() > 0 && controller.await(1000, parameterServer.getSampleCount())) {
+                //just wait
+            }
+            if (!controller.isCancelled()) {
+                log.info("All workers finished, running final validation.");
+                validate();
+            }
+        } finally {
+            //signal that we are done training
+            controller.finished();
+        }
+    }
+
+    /**
+     * Starts worker JVMs for distributed training on localhost, each writes its output to the working folder.
+     * @param count number of workers
+     * @param port the parameter server's port
+     * @param workerEpochs number of epochs each worker trains
+     */
+    private void startWorkers(final int count, final int port, final int workerEpochs) {
+        final String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        for (int id = 0; id < count; ++id) {
+            final List<String> command = new ArrayList<>(Arrays.asList(
+                java, "-cp", System.getProperty("java.class.path"), TrainingApp.class.getName(),
+                "--ps-connect", "localhost:" + port, "--ps-worker-id", Integer.toString(id),
+                "--ps-push-every", Integer.toString(psPushEvery), "--ps-threshold", Double.toString(psThreshold),
+                "-e", Integer.toString(workerEpochs), "-b", Integer.toString(batchSize),
+                "--learning-rate", Double.toString(learningRate), "--precision", precision.name(),
+                "--native-threads", Integer.toString(nativeThreads)));
+            //the workers split an epoch between them
+            command.addAll(Arrays.asList(
+                "--bits", Integer.toString(bits), "--operation", operation.name(),
+                "--examples-per-epoch", Long.toString(Math.max(1, examplesPerEpoch / count)),
+                "--data-seed", Long.toString(dataSeed),
+                "--generator-threads", Integer.toString(Math.max(1, generatorThreads / count))));
+            final File output = new File(workingFolder, "worker-" + id + ".out");
+            try {
+                workerProcesses.put(id, new ProcessBuilder(command).redirectErrorStream(true)
+                                                                  .redirectOutput(output).start());
+            } catch (final IOException e) {
+                throw new RuntimeException("Could not start worker " + id, e);
+            }
+        }
+        log.info("Started " + count + " workers, their output goes to " + workingFolder + "/worker-*.out");
+    }
+
+    /**
+     * Forgets workers that exited, logs the ones that crashed.
+     * @return number of workers still running
+     */
+    private int checkWorkers() {
+        final Iterator<Map.Entry<Integer, Process>> iterator = workerProcesses.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Integer, Process> worker = iterator.next();
+            if (worker.getValue().isAlive()) { continue; }
+            final int exitCode = worker.getValue().exitValue();
+            if (exitCode != 0) {
+                log.warn("Worker " + worker.getKey() + " crashed with exit code " + exitCode +
+                         ", continuing with the others, see worker-" + worker.getKey() + ".out");
+            }
+            iterator.remove();
+        }
+        return workerProcesses.size();
+    }
+
+    /**
+     * Stops all worker JVMs that are still running.
+     */
+    private void stopWorkers() {
+        for (final Process process : workerProcesses.values()) {
+            process.destroy();
+        }
+        for (final Process process : workerProcesses.values()) {
+            try {
+                process.waitFor(10, TimeUnit.SECONDS);
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        workerProcesses.clear();
+    }
+
+    /**
+     * Trains as a worker of a parameter server: trains the local network on this worker's data and exchanges its
+     * changes for the master parameters every --ps-push-every iterations. Neither saves nor validates, the
+     * coordinator does.
+     */
+    private void trainWorker() {
+        final int separator = psConnect.lastIndexOf(':');
+        final int port;
+        try {
+            port = Integer.parseInt(psConnect.substring(separator + 1));
+        } catch (final NumberFormatException e) {
+            throw new ParameterException("--ps-connect needs host:port, got: " + psConnect);
+        }
+        final String host = separator > 0 ? psConnect.substring(0, separator) : "localhost";
+        try (final ParameterServerClient client = new ParameterServerClient(host, port, psWorkerId, (float) psThreshold)) {
+            client.copyTo(trainer.params());
+            final long[] pushedSamples = {0};
+            final Runnable push = () -> {
+                final long samples = trainer.getSampleCount();
+                client.push(trainer.params(), samples - pushedSamples[0]);
+                pushedSamples[0] = samples;
+            };
+            controller.schedule("push", TrainingController.Trigger.everyIterations(psPushEvery), push);
+            controller.start(0);
+            for (int epochCount = 0; epochCount < epochs && !controller.isCancelled(); ++epochCount) {
+                trainer.startEpoch();
+                while (trainer.train() && controller.afterIteration(trainer.getSampleCount())) {
+                    //just train
+                }
+                //the last iteration of the epoch is not pushed by the hook
+                push.run();
+            }
+            log.info(String.format("Worker %d done after %d examples, sent %.2f MB, master version %d",
+                                   psWorkerId, trainer.getSampleCount(), client.getBytesSent() / 1e6,
+                                   client.getVersion()));
+        } finally {
+            //signal that we are done training
+            controller.finished();
+        }
+    }
+
+    /**
+     * Called when a worker VM exits, stops training without saving, the coordinator holds the model.
+     */
+    private void stopWorker() {
+        controller.cancel();
+        if (controller.awaitFinished(shutdownGraceS * 1000L)) {
+            trainer.close();
+        }
+    }
+
+    /**
+     * Trains fresh models with a parameter server for a fixed time with an increasing number of worker JVMs and logs
+     * the throughput, so we can see how well distributed training scales on this machine. Worker startup is not
+     * part of the measurement.
+     */
+    private void runParameterServerScalingReport() {
+        final StringBuilder report = new StringBuilder("\nworkers | samples/s | speedup | efficiency | MB/s received\n");
+        double baseline = 0.0;
+        for (int workerCount = 1; workerCount <= psWorkers; workerCount = nextWorkerCount(workerCount, psWorkers)) {
+            final Trainer scalingTrainer = buildTrainer(1);
+            scalingTrainer.init();
+            final double samplesPerSecond;
+            final double megabytesPerSecond;
+            try (final ParameterServer server = new ParameterServer(0, scalingTrainer.params(), psStaleness,
+                                                                    1.0 / workerCount, psTimeoutS * 1000))
+            {
+                //workers train until we stop them
+                startWorkers(workerCount, server.getPort(), Integer.MAX_VALUE);
+                final long connectDeadline = System.currentTimeMillis() + 60_000;
+                while (server.getWorkerCount() < workerCount && checkWorkers() == workerCount &&
+                       System.currentTimeMillis() < connectDeadline)
+                {
+                    sleepQuietly(100);
                 }
-                if (deltaValidation > validateEveryS) {
-                    validate();
-                    lastValidation = System.currentTimeMillis();
+                if (server.getWorkerCount() < workerCount) {
+                    throw new RuntimeException("Only " + server.getWorkerCount() + " of " + workerCount +
+                                               " workers connected, see the worker-*.out files in " + workingFolder);
                 }
+                final long startSamples = server.getSampleCount();
+                final long startBytes = server.getBytesReceived();
+                final long start = System.currentTimeMillis();
+                sleepQuietly(scalingReportS * 1000L);
+                final double seconds = (System.currentTimeMillis() - start) / 1000.0;
+                samplesPerSecond = (server.getSampleCount() - startSamples) / seconds;
+                megabytesPerSecond = (server.getBytesReceived() - startBytes) / seconds / 1e6;
+            } finally {
+                stopWorkers();
+                scalingTrainer.close();
+            }
+            if (workerCount == 1) {
+                baseline = samplesPerSecond;
             }
-            //stop training if the shutdown hook was called
-            if (!running) { break; }
+            final double speedup = baseline > 0.0 ? samplesPerSecond / baseline : 0.0;
+            report.append(String.format("%7d | %9.1f | %7.2f | %9.1f%% | %13.2f%n", workerCount, samplesPerSecond,
+                                        speedup, speedup / workerCount * 100.0, megabytesPerSecond));
+            log.info("Measured " + workerCount + " worker JVM(s): " + samplesPerSecond + " samples/s");
         }
-        //if we finish training normally, validate once more
-        if (running) {
-            log.info("Training finished, running final validation.");
-            validate();
-        } else {
-            //otherwise log that we were interrupted
-            log.info("Training interrupted.");
+        log.info("Parameter server scaling report:" + report);
+    }
+
+    private static void sleepQuietly(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Preprocesses the raw data into shards for training.
+     */
+    private void runPreprocessing() {
+        if (shards == null) {
+            throw new ParameterException("--preprocess needs a target folder, set --shards.");
+        }
+        final BinaryAndTrainer binaryAndTrainer = new BinaryAndTrainer(batchSize);
+        if (!rawData.exists()) {
+            log.info("Writing raw data to: " + rawData);
+            binaryAndTrainer.writeRawData(rawData, rawRepetitions);
+        }
+        new SparkPreprocessor(binaryAndTrainer.buildRawSchema(), null, 1)
+            .run(rawData, shards, shardCount, batchSize, dataSeed);
+    }
+
+    /**
+     * Runs a hyperparameter sweep over learning rate & batch size in the sweep subfolder of the working folder.
+     */
+    private void runSweep() {
+        final SearchSpace space = new SearchSpace()
+            .add("learningRate", parseValues(sweepLearningRates), SearchSpace.Sampling.LOG_UNIFORM)
+            .add("batchSize", parseValues(sweepBatchSizes), SearchSpace.Sampling.CHOICE);
+        final List<Map<String, Double>> points = sweepRandom > 0 ? space.sample(sweepRandom, new Random(sweepSeed))
+                                                                 : space.grid();
+        //every run trains single threaded, the core budget is spent on running several of them
+        final HyperparameterSweep hyperparameterSweep = new HyperparameterSweep(
+            point -> buildTrainer(1, point.get("batchSize").intValue(), point.get("learningRate")),
+            new File(workingFolder, "sweep"), sweepParallel, sweepMinEpochs, epochs, sweepEta);
+        //stopping validates & saves every run, but must not take longer than we are given before we get killed
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (!hyperparameterSweep.stop(shutdownGraceS * 1000L)) {
+                log.warn("Sweep did not stop within " + shutdownGraceS + " s, exiting anyway, " +
+                         "runs not saved by now keep the save state of their last cut and the summary may be missing.");
+            }
+        }));
+        hyperparameterSweep.run(points);
+    }
+
+    /**
+     * @return the given numbers as integers
+     */
+    private static List<Integer> toInts(final List<Double> values) {
+        final List<Integer> result = new ArrayList<>(values.size());
+        for (final double value : values) {
+            result.add((int) value);
+        }
+        return result;
+    }
+
+    /**
+     * @return the comma separated numbers in the given string
+     */
+    private static List<Double> parseValues(final String values) {
+        final List<Double> result = new ArrayList<>();
+        for (final String value : values.split(",")) {
+            try {
+                result.add(Double.parseDouble(value.trim()));
+            } catch (final NumberFormatException nfe) {
+                throw new ParameterException("Not a number: " + value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Starts serving predictions, the server keeps the VM alive until it is stopped with {@link #stopServing()}.
+     */
+    private void serve() {
+        inferenceServer = new InferenceServer(trainer, loadedSaveState, workingFolder, servePort,
+                                              serveMaxBatch, serveMaxWaitMs, serveReloadEveryS);
+    }
+
+    /**
+     * Second part of {@link #shutdown()}: writes the final save, stops distributed workers and waits for saves still
+     * being written in the background.
+     * @param stopped true if training stopped, false if it still uses the trainer, so we neither save nor close it
+     */
+    private void finishTraining(final boolean stopped) {
+        if (stopped) {
+            //training stopped properly, save state so our work isn't lost
+            save();
+        }
+        //the save above took the master parameters, now the workers can go
+        stopWorkers();
+        if (parameterServer != null) {
+            parameterServer.close();
+        }
+        //wait for saves that are still being written in the background, unless training still uses the trainer
+        if (stopped) {
+            trainer.close();
+        }
+    }
+
+    /**
+     * Called when the VM exits in --serve mode.
+     */
+    private void stopServing() {
+        if (inferenceServer != null) {
+            inferenceServer.close();
         }
-        //signal that we are done training
-        training = false;
+        trainer.close();
     }
 
     /**
      * Called when the VM exits, tries to save result. By moving the final saving of results here, we always save our
      * work. This way, we can interrupt a long running training and not loose all the work.
+     * <p>
+     * Everything we wait for, training to stop, the final save and saves still written in the background, shares
+     * the --shutdown-grace-s budget. Once it is used up we stop waiting, checkpoints are moved into place atomically,
+     * so a save cut short by the VM exiting leaves the previous checkpoint as the latest one.
      */
     private void shutdown() {
-        //signal that we are not running anymore
-        running = false;
-        //wait for training to finish gracefully
-        while (training)  {
-            try {
-                Thread.sleep(100);
-            } catch (final InterruptedException ie) { /* we cannot wait anymore */ }
+        final long deadline = System.currentTimeMillis() + shutdownGraceS * 1000L;
+        //ask training to stop after the current iteration
+        controller.cancel();
+        //online training waits for data, stop waiting
+        if (onlineIterator != null) {
+            onlineIterator.close();
         }
-        //if training had time to shutdown properly, save state so our work isn't lost
-        if (!training) {
-            save();
+        //wait for training to stop, but not longer than we are given before we get killed
+        final boolean stopped = controller.awaitFinished(deadline - System.currentTimeMillis());
+        if (!stopped) {
+            log.warn("Training did not stop within " + shutdownGraceS + " s, skipping the final save, " +
+                     "the last periodic save is the latest checkpoint.");
+        }
+        //saving and waiting for background saves cannot be interrupted, so they run on their own thread we wait for
+        final Thread finisher = new Thread(() -> finishTraining(stopped), "shutdown-save");
+        finisher.setDaemon(true);
+        finisher.start();
+        try {
+            finisher.join(Math.max(1, deadline - System.currentTimeMillis()));
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        if (finisher.isAlive()) {
+            log.warn("Saving did not finish within " + shutdownGraceS + " s, exiting anyway, " +
+                     "the last completely written save is the latest checkpoint.");
+        }
+        if (metricsReporter != null) {
+            metricsReporter.close();
+        }
+        if (eventLog != null) {
+            eventLog.close();
+        }
+        if (profiler != null) {
+            //the last, partial window
+            profiler.report();
         }
     }
 
@@ -246,12 +1451,39 @@ public class TrainingApp {
             return;
         }
 
+        //preprocessing runs on its own, before a trainer exists
+        if (app.preprocess) {
+            app.runPreprocessing();
+            return;
+        }
+
         //init application
         app.init();
 
         //either train or validate, depending on command line args
-        if (app.validateOnly) {
+        if (app.scalingReport) {
+            app.runScalingReport();
+        } else if (app.psScalingReport) {
+            app.runParameterServerScalingReport();
+        } else if (app.psConnect != null) {
+            //workers do not save, the coordinator holds the model
+            Runtime.getRuntime().addShutdownHook(new Thread(app::stopWorker));
+            app.trainWorker();
+        } else if (app.psWorkers > 0) {
+            //save on shutdown, just like regular training
+            Runtime.getRuntime().addShutdownHook(new Thread(app::shutdown));
+            app.runCoordinator();
+        } else if (app.sweep) {
+            app.runSweep();
+        } else if (app.validateOnly) {
             app.validate();
+        } else if (app.serve) {
+            Runtime.getRuntime().addShutdownHook(new Thread(app::stopServing));
+            app.serve();
+        } else if (app.online) {
+            //make sure to save on shutdown, just like regular training
+            Runtime.getRuntime().addShutdownHook(new Thread(app::shutdown));
+            app.trainOnline();
         } else { //training
             //make sure to save on shutdown when we train
             Runtime.getRuntime().addShutdownHook(new Thread(app::shutdown));
@@ -0,0 +1,261 @@
+package divisio.dl4jintro;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs periodic tasks like saves & validations between training iterations and coordinates stopping training.
+ * <p>
+ * Tasks are hooks with a trigger: every n milliseconds, iterations or examples. They always run on the training
+ * thread, between iterations, so they see a consistent model. Time triggers are fired by a scheduler thread that
+ * only marks them as due, so after each iteration the training loop pays for one volatile read and two comparisons
+ * in {@link #afterIteration(long)} instead of reading the clock and checking deadlines itself.
+ * <p>
+ * Stopping is cooperative: {@link #cancel()} may be called from any thread, e.g. a shutdown hook, the training loop
+ * sees it after the current iteration (or hook) and calls {@link #finished()} once it stopped, which releases
+ * {@link #awaitFinished(long)}. That way the caller can write a final save of a model that is not being trained
+ * anymore, and knows when to give up waiting.
+ */
+public class TrainingController {
+
+    private static final Logger log = LoggerFactory.getLogger(TrainingController.class);
+
+    /**
+     * What a trigger counts.
+     */
+    public enum Unit { MILLIS, ITERATIONS, SAMPLES }
+
+    /**
+     * When a hook runs: every n milliseconds, iterations or examples.
+     */
+    public static final class Trigger {
+        private final long every;
+        private final Unit unit;
+
+        private Trigger(final long every, final Unit unit) {
+            if (every < 1) {
+                throw new IllegalArgumentException("Trigger interval must be positive, got: " + every + " " + unit);
+            }
+            this.every = every;
+            this.unit = unit;
+        }
+
+        public static Trigger everyMillis(final long millis) {
+            return new Trigger(millis, Unit.MILLIS);
+        }
+
+        public static Trigger everySeconds(final long seconds) {
+            return new Trigger(TimeUnit.SECONDS.toMillis(seconds), Unit.MILLIS);
+        }
+
+        public static Trigger everyIterations(final long iterations) {
+            return new Trigger(iterations, Unit.ITERATIONS);
+        }
+
+        public static Trigger everySamples(final long samples) {
+            return new Trigger(samples, Unit.SAMPLES);
+        }
+
+        @Override
+        public String toString() {
+            return "every " + every + " " + unit.name().toLowerCase();
+        }
+    }
+
+    /**
+     * A registered hook and its trigger state.
+     */
+    private static final class Task {
+        final String name;
+        final Trigger trigger;
+        final Runnable hook;
+        /** iteration or sample count at which a counting trigger fires next */
+        long next;
+        /** set by the scheduler thread when a time trigger fires */
+        volatile boolean due;
+
+        Task(final String name, final Trigger trigger, final Runnable hook) {
+            this.name = name;
+            this.trigger = trigger;
+            this.hook = hook;
+        }
+    }
+
+    private final List<Task> tasks = new ArrayList<>();
+    /** released by {@link #cancel()} */
+    private final CountDownLatch cancelled = new CountDownLatch(1);
+    /** released by {@link #finished()} */
+    private final CountDownLatch finished = new CountDownLatch(1);
+    /** marks time triggers as due, null until started or if there are none */
+    private ScheduledExecutorService scheduler;
+    /** true once the triggers were started */
+    private boolean started = false;
+    /** true if any time trigger is due */
+    private volatile boolean timeDue = false;
+    private volatile boolean cancelRequested = false;
+    private long iterations = 0;
+    private long samples = 0;
+    /** lowest iteration & sample count at which a counting trigger fires */
+    private long nextIterationDue = Long.MAX_VALUE;
+    private long nextSampleDue = Long.MAX_VALUE;
+
+    /**
+     * Registers a hook, call before {@link #start(long)}.
+     * @param name shows up in the debug log when the hook runs
+     * @param trigger when to run the hook
+     * @param hook the task, runs on the training thread
+     */
+    public synchronized void schedule(final String name, final Trigger trigger, final Runnable hook) {
+        if (started) {
+            throw new IllegalStateException("Cannot schedule " + name + ", controller already started.");
+        }
+        tasks.add(new Task(name, trigger, hook));
+    }
+
+    /**
+     * Starts the triggers, counting triggers count from the given number of examples.
+     * @param startSamples number of examples trained so far, e.g. when resuming
+     */
+    public synchronized void start(final long startSamples) {
+        if (started) {
+            throw new IllegalStateException("Controller already started.");
+        }
+        started = true;
+        samples = startSamples;
+        for (final Task task : tasks) {
+            if (task.trigger.unit == Unit.MILLIS) {
+                if (scheduler == null) {
+                    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                        final Thread thread = new Thread(runnable, "training-controller");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+                scheduler.scheduleAtFixedRate(() -> {
+                    task.due = true;
+                    timeDue = true;
+                }, task.trigger.every, task.trigger.every, TimeUnit.MILLISECONDS);
+            } else {
+                task.next = (task.trigger.unit == Unit.ITERATIONS ? iterations : samples) + task.trigger.every;
+            }
+        }
+        updateNextDue();
+    }
+
+    /**
+     * Call on the training thread after each iteration, runs the hooks that are due.
+     * @param sampleCount number of examples trained so far
+     * @return false if training should stop
+     */
+    public boolean afterIteration(final long sampleCount) {
+        ++iterations;
+        samples = sampleCount;
+        if (timeDue || iterations >= nextIterationDue || samples >= nextSampleDue) {
+            runDue();
+        }
+        return !cancelRequested;
+    }
+
+    /**
+     * For loops that do not iterate themselves: waits until cancelled or the given time passed, then runs the
+     * hooks that are due.
+     * @param sampleCount number of examples trained so far
+     * @return false if training should stop
+     */
+    public boolean await(final long millis, final long sampleCount) {
+        try {
+            cancelled.await(millis, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            cancel();
+        }
+        samples = sampleCount;
+        if (!cancelRequested && (timeDue || samples >= nextSampleDue)) {
+            runDue();
+        }
+        return !cancelRequested;
+    }
+
+    private void runDue() {
+        timeDue = false;
+        for (final Task task : tasks) {
+            //stop as quickly as we can once cancelled
+            if (cancelRequested) { break; }
+            final boolean fire;
+            switch (task.trigger.unit) {
+                case MILLIS:
+                    fire = task.due;
+                    break;
+                case ITERATIONS:
+                    fire = iterations >= task.next;
+                    break;
+                default:
+                    fire = samples >= task.next;
+            }
+            if (!fire) { continue; }
+            task.due = false;
+            task.next = (task.trigger.unit == Unit.ITERATIONS ? iterations : samples) + task.trigger.every;
+            log.debug("Running " + task.name + ", " + task.trigger);
+            task.hook.run();
+        }
+        updateNextDue();
+    }
+
+    private void updateNextDue() {
+        nextIterationDue = Long.MAX_VALUE;
+        nextSampleDue = Long.MAX_VALUE;
+        for (final Task task : tasks) {
+            if (task.trigger.unit == Unit.ITERATIONS) {
+                nextIterationDue = Math.min(nextIterationDue, task.next);
+            } else if (task.trigger.unit == Unit.SAMPLES) {
+                nextSampleDue = Math.min(nextSampleDue, task.next);
+            }
+        }
+    }
+
+    /**
+     * Asks training to stop after the current iteration, may be called from any thread.
+     */
+    public void cancel() {
+        cancelRequested = true;
+        cancelled.countDown();
+    }
+
+    /**
+     * @return true if training should stop
+     */
+    public boolean isCancelled() {
+        return cancelRequested;
+    }
+
+    /**
+     * Call on the training thread when it stopped training, no matter why.
+     */
+    public synchronized void finished() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        finished.countDown();
+    }
+
+    /**
+     * Waits until training stopped.
+     * @param millis maximum time to wait
+     * @return true if training stopped, false if it is still running
+     */
+    public boolean awaitFinished(final long millis) {
+        try {
+            return finished.await(millis, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return finished.getCount() == 0;
+        }
+    }
+}
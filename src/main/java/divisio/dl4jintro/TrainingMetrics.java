@@ -0,0 +1,194 @@
+package divisio.dl4jintro;
+
+import org.bytedeco.javacpp.Pointer;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects operational metrics of a training run: fit latency, throughput, epoch wall time, time spent saving and
+ * validating, plus JVM and ND4J memory. Recording is lock free, so the training thread never waits for a reader.
+ * Trainers only record if they were given an instance, so disabled metrics cost a null check.
+ */
+public class TrainingMetrics {
+
+    /** latency of single fit calls */
+    private final LatencyHistogram fitLatency = new LatencyHistogram();
+    /** time the training thread spent in save */
+    private final LatencyHistogram saveLatency = new LatencyHistogram();
+    /** time the training thread spent in validate */
+    private final LatencyHistogram validateLatency = new LatencyHistogram();
+    /** time from ingestion of the oldest example of a minibatch until the model was updated with it, online only */
+    private final LatencyHistogram ingestLag = new LatencyHistogram();
+
+    private final AtomicLong samples = new AtomicLong();
+    private final long startNanos = System.nanoTime();
+
+    private volatile int epoch = 0;
+    private volatile long epochStartNanos = System.nanoTime();
+    private volatile long lastEpochNanos = 0;
+    private volatile int iteration = 0;
+    private volatile double score = Double.NaN;
+
+    /**
+     * Records one fit call.
+     * @param nanos duration of the call
+     * @param sampleCount number of examples in the fitted minibatch(es)
+     */
+    public void recordFit(final long nanos, final int sampleCount) {
+        fitLatency.record(nanos);
+        samples.addAndGet(sampleCount);
+    }
+
+    /**
+     * Records the start of a new epoch, which also ends the previous one.
+     */
+    public void recordEpochStart(final int newEpoch) {
+        final long now = System.nanoTime();
+        if (epoch > 0) {
+            lastEpochNanos = now - epochStartNanos;
+        }
+        epochStartNanos = now;
+        epoch = newEpoch;
+    }
+
+    public void recordSave(final long nanos) {
+        saveLatency.record(nanos);
+    }
+
+    public void recordValidate(final long nanos) {
+        validateLatency.record(nanos);
+    }
+
+    /**
+     * Records the lag from ingestion of a minibatch's oldest example until the model was updated with it.
+     */
+    public void recordIngestLag(final long nanos) {
+        ingestLag.record(nanos);
+    }
+
+    /**
+     * Records the latest iteration and its score.
+     */
+    public void recordIteration(final int newIteration, final double newScore) {
+        iteration = newIteration;
+        score = newScore;
+    }
+
+    public LatencyHistogram getFitLatency() {
+        return fitLatency;
+    }
+
+    public long getSamples() {
+        return samples.get();
+    }
+
+    /**
+     * @return average number of samples per second since the metrics were created
+     */
+    public double getSamplesPerSecond() {
+        final double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return seconds <= 0.0 ? 0.0 : samples.get() / seconds;
+    }
+
+    /**
+     * @return sum of the time all garbage collectors spent collecting, in milliseconds
+     */
+    private static long gcMillis() {
+        long result = 0;
+        for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            result += Math.max(0, gc.getCollectionTime());
+        }
+        return result;
+    }
+
+    /**
+     * @return sum of the number of collections of all garbage collectors
+     */
+    private static long gcCount() {
+        long result = 0;
+        for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            result += Math.max(0, gc.getCollectionCount());
+        }
+        return result;
+    }
+
+    private static void appendGauge(final StringBuilder out, final String name, final String help, final double value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(format(value)).append('\n');
+    }
+
+    private static void appendCounter(final StringBuilder out, final String name, final String help, final double value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(format(value)).append('\n');
+    }
+
+    private static void appendSummary(final StringBuilder out, final String name, final String help,
+                                      final LatencyHistogram histogram) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" summary\n");
+        out.append(name).append("{quantile=\"0.5\"} ").append(format(histogram.getPercentile(0.5) / 1e9)).append('\n');
+        out.append(name).append("{quantile=\"0.99\"} ").append(format(histogram.getPercentile(0.99) / 1e9)).append('\n');
+        out.append(name).append("_sum ").append(format(histogram.getSum() / 1e9)).append('\n');
+        out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+        appendGauge(out, name + "_max", "maximum of " + name, histogram.getMax() / 1e9);
+    }
+
+    private static String format(final double value) {
+        return String.format(Locale.ROOT, "%.9g", value);
+    }
+
+    /**
+     * @return all metrics in the Prometheus text exposition format
+     */
+    public String toPrometheus() {
+        final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        final StringBuilder out = new StringBuilder(4096);
+        appendSummary(out, "dl4j_fit_seconds", "duration of single fit calls", fitLatency);
+        appendSummary(out, "dl4j_save_seconds", "time the training thread spent saving", saveLatency);
+        appendSummary(out, "dl4j_validate_seconds", "time the training thread spent validating", validateLatency);
+        appendSummary(out, "dl4j_ingest_lag_seconds", "time from ingestion of an example to the model update",
+                      ingestLag);
+        appendCounter(out, "dl4j_samples_total", "number of fitted examples", samples.get());
+        appendGauge(out, "dl4j_samples_per_second", "average fitted examples per second", getSamplesPerSecond());
+        appendGauge(out, "dl4j_epoch", "current epoch", epoch);
+        appendGauge(out, "dl4j_epoch_last_seconds", "wall time of the last finished epoch", lastEpochNanos / 1e9);
+        appendGauge(out, "dl4j_iteration", "current iteration", iteration);
+        appendGauge(out, "dl4j_score", "score of the last iteration", score);
+        appendGauge(out, "jvm_heap_used_bytes", "used JVM heap", heap.getUsed());
+        appendGauge(out, "jvm_heap_committed_bytes", "committed JVM heap", heap.getCommitted());
+        appendCounter(out, "jvm_gc_collection_seconds_total", "time spent in garbage collection", gcMillis() / 1e3);
+        appendCounter(out, "jvm_gc_collections_total", "number of garbage collections", gcCount());
+        appendGauge(out, "nd4j_offheap_bytes", "off-heap memory allocated through JavaCPP", Pointer.totalBytes());
+        appendGauge(out, "nd4j_physical_bytes", "physical memory used by the process", Pointer.physicalBytes());
+        return out.toString();
+    }
+
+    /**
+     * @return the column names for {@link #toCsvRow()}
+     */
+    public static String csvHeader() {
+        return "timestamp_ms,epoch,iteration,score,samples,samples_per_second,epoch_last_s," +
+               "fit_p50_ms,fit_p99_ms,fit_max_ms,save_total_ms,validate_total_ms," +
+               "heap_used_bytes,gc_total_ms,gc_count,offheap_bytes,lag_p50_ms,lag_p99_ms";
+    }
+
+    /**
+     * @return the current values as one CSV line, without line break
+     */
+    public String toCsvRow() {
+        final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        return String.format(Locale.ROOT, "%d,%d,%d,%f,%d,%.2f,%.3f,%.3f,%.3f,%.3f,%.1f,%.1f,%d,%d,%d,%d,%.3f,%.3f",
+                             System.currentTimeMillis(), epoch, iteration, score, samples.get(),
+                             getSamplesPerSecond(), lastEpochNanos / 1e9,
+                             fitLatency.getPercentile(0.5) / 1e6, fitLatency.getPercentile(0.99) / 1e6,
+                             fitLatency.getMax() / 1e6, saveLatency.getSum() / 1e6, validateLatency.getSum() / 1e6,
+                             heap.getUsed(), gcMillis(), gcCount(), Pointer.totalBytes(),
+                             ingestLag.getPercentile(0.5) / 1e6, ingestLag.getPercentile(0.99) / 1e6);
+    }
+}
@@ -0,0 +1,71 @@
+package divisio.dl4jintro;
+
+import java.util.Properties;
+
+/**
+ * Training settings chosen by the {@link PerformanceTuner}: minibatch size, number of minibatches whose gradients
+ * are accumulated per parameter update and number of native (OpenMP/BLAS) threads. Trainers store them with every
+ * save state, so a resumed training continues with them instead of calibrating again.
+ */
+public class TunedSettings {
+
+    private final int batchSize;
+    private final int gradientAccumulation;
+    private final int nativeThreads;
+
+    /**
+     * @param batchSize number of examples per minibatch
+     * @param gradientAccumulation number of minibatches per parameter update, at least 1
+     * @param nativeThreads number of native threads, 0 keeps the environment's default
+     */
+    public TunedSettings(final int batchSize, final int gradientAccumulation, final int nativeThreads) {
+        this.batchSize = batchSize;
+        this.gradientAccumulation = gradientAccumulation;
+        this.nativeThreads = nativeThreads;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getGradientAccumulation() {
+        return gradientAccumulation;
+    }
+
+    public int getNativeThreads() {
+        return nativeThreads;
+    }
+
+    /**
+     * @return number of examples per parameter update
+     */
+    public int getEffectiveBatchSize() {
+        return batchSize * gradientAccumulation;
+    }
+
+    /**
+     * Reads tuned settings from save state metadata.
+     * @param metadata metadata as returned by {@link Trainer#loadSaveMetadata(java.io.File)}
+     * @return the settings, null if the save state was not trained with tuned settings
+     */
+    public static TunedSettings fromMetadata(final Properties metadata) {
+        if (!Boolean.parseBoolean(metadata.getProperty(AbstractDL4JMultilayerTrainer.METADATA_TUNED))) {
+            return null;
+        }
+        try {
+            return new TunedSettings(
+                Integer.parseInt(metadata.getProperty(AbstractDL4JMultilayerTrainer.METADATA_BATCH_SIZE)),
+                Integer.parseInt(metadata.getProperty(AbstractDL4JMultilayerTrainer.METADATA_GRADIENT_ACCUMULATION)),
+                Integer.parseInt(metadata.getProperty(AbstractDL4JMultilayerTrainer.METADATA_NATIVE_THREADS)));
+        } catch (final NumberFormatException nfe) {
+            //missing or broken entries, better to calibrate again
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "batch size " + batchSize + " x " + gradientAccumulation + " accumulated, " +
+               (nativeThreads > 0 ? nativeThreads + " native threads" : "default native threads");
+    }
+}
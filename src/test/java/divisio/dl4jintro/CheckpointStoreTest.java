@@ -0,0 +1,145 @@
+package divisio.dl4jintro;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.io.FileUtils;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.learning.config.Adam;
+import org.nd4j.linalg.lossfunctions.LossFunctions.LossFunction;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Properties;
+
+/**
+ * Checks the manifest of {@link CheckpointStore}: latest checkpoints, registered copies, retention and the best
+ * checkpoint.
+ */
+public class CheckpointStoreTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private MultiLayerNetwork network;
+    private CheckpointStore store;
+
+    @Before
+    public void setUp() {
+        final MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+            .seed(42)
+            .weightInit(WeightInit.XAVIER)
+            .updater(Adam.builder().learningRate(0.01).build())
+            .list(
+                new DenseLayer.Builder().nIn(2).nOut(4).activation(Activation.TANH).build(),
+                new OutputLayer.Builder(LossFunction.XENT).nIn(4).nOut(1).activation(Activation.SIGMOID).build()
+            )
+            .build();
+        network = new MultiLayerNetwork(conf);
+        network.init();
+        store = new CheckpointStore(folder.getRoot());
+    }
+
+    private File write(final String name, final boolean full) {
+        final INDArray updaterState = full ? network.getUpdater().getStateViewArray() : null;
+        return store.write(name, network.getLayerWiseConfigurations(), network.params(), updaterState,
+                           new Properties());
+    }
+
+    @Test
+    public void emptyFolderHasNoCheckpoints() {
+        assertNull(store.latest());
+        assertNull(store.latestFull());
+        assertNull(store.best());
+        assertTrue(Double.isNaN(store.bestScore()));
+    }
+
+    @Test
+    public void writeUpdatesLatestAndLatestFull() {
+        final File first = write("save-1", true);
+        assertTrue(CheckpointStore.isCheckpoint(first));
+        assertTrue(CheckpointStore.isFull(first));
+        assertEquals(first, store.latest());
+        assertEquals(first, store.latestFull());
+
+        //a parameter-only checkpoint becomes the latest, but not the latest full one
+        final File second = write("save-2", false);
+        assertFalse(CheckpointStore.isFull(second));
+        assertEquals(second, store.latest());
+        assertEquals(first, store.latestFull());
+    }
+
+    @Test
+    public void readRestoresParameters() {
+        final File checkpoint = write("save-1", true);
+        final MultiLayerNetwork restored = store.read(checkpoint);
+        assertEquals(network.params(), restored.params());
+        assertEquals(network.getUpdater().getStateViewArray(), restored.getUpdater().getStateViewArray());
+    }
+
+    @Test
+    public void registeredCopiesAreOldest() throws IOException {
+        final File original = write("save-1", true);
+        final File latest = write("save-2", true);
+        FileUtils.copyDirectory(original, new File(folder.getRoot(), "copy-1"));
+        store.register(Collections.singletonList("copy-1"));
+        assertEquals(latest, store.latest());
+
+        //retention deletes the registered copy first
+        store.deleteOld(2);
+        assertFalse(new File(folder.getRoot(), "copy-1").exists());
+        assertTrue(original.exists());
+        assertTrue(latest.exists());
+    }
+
+    @Test
+    public void deleteOldKeepsLatestFullAndBest() {
+        final File best = write("save-1", false);
+        final File full = write("save-2", true);
+        final File old = write("save-3", false);
+        final File last = write("save-4", false);
+        store.markBest(best.getName(), 0.25);
+
+        store.deleteOld(1);
+        assertTrue(best.exists());
+        assertTrue(full.exists());
+        assertFalse(old.exists());
+        assertTrue(last.exists());
+        assertEquals(last, store.latest());
+        assertEquals(full, store.latestFull());
+        assertEquals(best, store.best());
+        assertEquals(0.25, store.bestScore(), 0.0);
+    }
+
+    @Test
+    public void deleteOldZeroKeepsAll() {
+        final File first = write("save-1", false);
+        write("save-2", false);
+        store.deleteOld(0);
+        assertTrue(first.exists());
+    }
+
+    @Test
+    public void bestScoreIsNaNWhenBestIsGone() throws IOException {
+        final File best = write("save-1", true);
+        store.markBest(best.getName(), 0.5);
+        assertEquals(0.5, store.bestScore(), 0.0);
+        FileUtils.deleteDirectory(best);
+        assertNull(store.best());
+        assertTrue(Double.isNaN(store.bestScore()));
+    }
+}
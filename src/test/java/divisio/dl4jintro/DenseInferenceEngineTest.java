@@ -0,0 +1,107 @@
+package divisio.dl4jintro;
+
+import static org.junit.Assert.assertEquals;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.junit.Test;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.lossfunctions.LossFunctions.LossFunction;
+
+/**
+ * Compares {@link DenseInferenceEngine} against {@link MultiLayerNetwork#output(INDArray)}.
+ */
+public class DenseInferenceEngineTest {
+
+    private static final int ROWS = 32;
+
+    /**
+     * A network with every supported activation.
+     */
+    private static MultiLayerNetwork buildNetwork() {
+        final MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+            .seed(42)
+            .weightInit(WeightInit.XAVIER)
+            .list(
+                new DenseLayer.Builder().nIn(5).nOut(16).activation(Activation.RELU).build(),
+                new DenseLayer.Builder().nIn(16).nOut(8).activation(Activation.TANH).build(),
+                new DenseLayer.Builder().nIn(8).nOut(8).activation(Activation.SIGMOID).build(),
+                new DenseLayer.Builder().nIn(8).nOut(6).activation(Activation.IDENTITY).build(),
+                new OutputLayer.Builder(LossFunction.MCXENT).nIn(6).nOut(3).activation(Activation.SOFTMAX).build()
+            )
+            .build();
+        final MultiLayerNetwork network = new MultiLayerNetwork(conf);
+        network.init();
+        //non-zero biases, so we notice if they are missing
+        network.params().addi(Nd4j.rand(network.params().shape()).subi(0.5).muli(0.1));
+        return network;
+    }
+
+    private static void assertMatches(final MultiLayerNetwork network, final boolean quantize,
+                                      final double tolerance) {
+        final INDArray input = Nd4j.rand(ROWS, 5).subi(0.5).muli(4.0);
+        final INDArray expected = network.output(input, false);
+
+        final DenseInferenceEngine engine = DenseInferenceEngine.of(network, quantize);
+        assertEquals(5, engine.inputSize());
+        assertEquals(3, engine.outputSize());
+        final float[] inputs = input.dup('c').data().asFloat();
+        final float[] outputs = new float[ROWS * engine.outputSize()];
+        final DenseInferenceEngine.Buffers buffers = engine.newBuffers(ROWS);
+
+        //batch API
+        engine.output(inputs, outputs, ROWS, buffers);
+        for (int row = 0; row < ROWS; ++row) {
+            for (int col = 0; col < engine.outputSize(); ++col) {
+                assertEquals("row " + row + ", column " + col, expected.getDouble(row, col),
+                             outputs[row * engine.outputSize() + col], tolerance);
+            }
+        }
+
+        //single example API, reusing the buffers
+        final float[] single = new float[engine.outputSize()];
+        final float[] singleInput = new float[engine.inputSize()];
+        System.arraycopy(inputs, 0, singleInput, 0, singleInput.length);
+        engine.output(singleInput, single, buffers);
+        for (int col = 0; col < engine.outputSize(); ++col) {
+            assertEquals(expected.getDouble(0, col), single[col], tolerance);
+        }
+    }
+
+    @Test
+    public void floatWeightsMatchNetwork() {
+        assertMatches(buildNetwork(), false, 1e-5);
+    }
+
+    @Test
+    public void quantizedWeightsStayClose() {
+        assertMatches(buildNetwork(), true, 2e-2);
+    }
+
+    @Test
+    public void exportedBinaryAndTrainerMatchesOutput() {
+        final BinaryAndTrainer trainer = new BinaryAndTrainer(4);
+        trainer.init();
+        for (int epoch = 0; epoch < 10; ++epoch) {
+            trainer.startEpoch();
+            while (trainer.train()) {
+                //just train
+            }
+        }
+        final DenseInferenceEngine engine = trainer.exportInferenceEngine(false);
+        final INDArray input = trainer.buildData().getFeatures();
+        final INDArray expected = trainer.output(input);
+        final float[] outputs = new float[input.rows()];
+        engine.output(input.dup('c').data().asFloat(), outputs, input.rows(), engine.newBuffers(input.rows()));
+        for (int row = 0; row < input.rows(); ++row) {
+            assertEquals(expected.getDouble(row, 0), outputs[row], 1e-5);
+        }
+        trainer.close();
+    }
+}
@@ -0,0 +1,60 @@
+package divisio.dl4jintro;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Reads hand written event logs with {@link EventLogReader}.
+ */
+public class EventLogReaderTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private String summarize(final String... lines) throws IOException {
+        final File file = folder.newFile("events.jsonl");
+        Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+        final EventLogReader reader = new EventLogReader();
+        reader.read(file);
+        return reader.summary();
+    }
+
+    @Test
+    public void summarizesEvents() throws IOException {
+        final String summary = summarize(
+            "{\"t\":1000,\"type\":\"iteration\",\"iteration\":1,\"epoch\":0,\"score\":0.9,\"ms\":2.000}",
+            "{\"t\":1500,\"type\":\"iteration\",\"iteration\":2,\"epoch\":0,\"score\":0.5,\"ms\":4.000}",
+            "{\"t\":2000,\"type\":\"validation\",\"iteration\":2,\"score\":0.4,\"ms\":10.000}",
+            "{\"t\":2500,\"type\":\"dropped\",\"samples\":3}",
+            "{\"t\":3000,\"type\":\"save\",\"ms\":20.000,\"file\":\"save-1\"}");
+        assertTrue(summary, summary.contains("span:        2.0 s"));
+        assertTrue(summary, summary.contains("dropped:     3"));
+        assertTrue(summary, summary.contains("iterations:  1 - 2"));
+        assertTrue(summary, summary.contains("first 0.900000, last 0.500000, min 0.500000"));
+        assertTrue(summary, summary.contains("best score 0.400000"));
+        assertFalse(summary, summary.contains("malformed"));
+    }
+
+    @Test
+    public void countsMalformedLines() throws IOException {
+        final String summary = summarize(
+            "{\"t\":1000,\"type\":\"iteration\",\"iteration\":1,\"score\":0.9}",
+            "{\"t\":1100,\"type\":\"iteration\",\"score\":0.8}",
+            "{\"t\":1200,\"type\":\"iteration\",\"iteration\":x}",
+            "{\"type\":\"save\"}",
+            "not json at all",
+            "");
+        assertTrue(summary, summary.contains("malformed:   4 lines"));
+        assertTrue(summary, summary.contains("iterations:  1 - 1"));
+    }
+}
@@ -0,0 +1,52 @@
+package divisio.dl4jintro;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the percentiles of {@link LatencyHistogram} against exact values.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogramIsZero() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0.5));
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void percentilesAreUpperBoundsWithinBucketError() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        long sum = 0;
+        for (long value = 1; value <= 10000; ++value) {
+            histogram.record(value * 1000);
+            sum += value * 1000;
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(sum, histogram.getSum());
+        assertEquals(10000000, histogram.getMax());
+        for (final double quantile : new double[] {0.01, 0.5, 0.9, 0.99}) {
+            final long exact = (long) Math.ceil(quantile * 10000) * 1000;
+            final long estimate = histogram.getPercentile(quantile);
+            assertTrue(quantile + ": " + estimate + " < " + exact, estimate >= exact);
+            assertTrue(quantile + ": " + estimate + " too far above " + exact, estimate <= exact * 1.25);
+        }
+        assertEquals(histogram.getMax(), histogram.getPercentile(1.0));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(0);
+        histogram.record(1);
+        histogram.record(2);
+        histogram.record(3);
+        assertEquals(0, histogram.getPercentile(0.25));
+        assertEquals(1, histogram.getPercentile(0.5));
+        assertEquals(3, histogram.getPercentile(1.0));
+    }
+}
@@ -0,0 +1,60 @@
+package divisio.dl4jintro;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks grid and random points of {@link SearchSpace}.
+ */
+public class SearchSpaceTest {
+
+    private static SearchSpace space() {
+        return new SearchSpace()
+            .add("learningRate", Arrays.asList(0.001, 0.1), SearchSpace.Sampling.LOG_UNIFORM)
+            .add("hiddenSize", Arrays.asList(4.0, 8.0, 16.0), SearchSpace.Sampling.CHOICE);
+    }
+
+    @Test
+    public void gridHasAllCombinations() {
+        final List<Map<String, Double>> grid = space().grid();
+        assertEquals(6, grid.size());
+        assertEquals(6, new HashSet<>(grid).size());
+        for (final Map<String, Double> point : grid) {
+            assertEquals(Arrays.asList("learningRate", "hiddenSize"), Arrays.asList(point.keySet().toArray()));
+        }
+    }
+
+    @Test
+    public void samplesStayInRange() {
+        final List<Map<String, Double>> points = space().sample(200, new Random(42));
+        assertEquals(200, points.size());
+        for (final Map<String, Double> point : points) {
+            final double learningRate = point.get("learningRate");
+            assertTrue(learningRate >= 0.001 && learningRate <= 0.1);
+            assertTrue(Arrays.asList(4.0, 8.0, 16.0).contains(point.get("hiddenSize")));
+        }
+    }
+
+    @Test
+    public void sameSeedSamePoints() {
+        assertEquals(space().sample(10, new Random(7)), space().sample(10, new Random(7)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void logUniformNeedsPositiveValues() {
+        new SearchSpace().add("learningRate", Arrays.asList(0.0, 0.1), SearchSpace.Sampling.LOG_UNIFORM);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void dimensionNeedsValues() {
+        new SearchSpace().add("hiddenSize", Arrays.<Double>asList(), SearchSpace.Sampling.CHOICE);
+    }
+}
@@ -0,0 +1,96 @@
+package divisio.dl4jintro;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Round trips of {@link ThresholdEncoding} and the index checks of the {@link ParameterServer} wire format.
+ */
+public class ThresholdEncodingTest {
+
+    private static final int SIZE = 1000;
+    private static final float THRESHOLD = 0.01f;
+
+    @Test
+    public void decodedPlusResidualIsOriginal() {
+        final Random random = new Random(42);
+        final float[] original = new float[SIZE];
+        for (int idx = 0; idx < SIZE; ++idx) {
+            original[idx] = (float) random.nextGaussian() * 0.02f;
+        }
+        final float[] residual = original.clone();
+        final int[] indices = new int[SIZE];
+        final int count = ThresholdEncoding.encode(residual, THRESHOLD, indices);
+        assertTrue(count > 0 && count < SIZE);
+
+        final float[] decoded = new float[SIZE];
+        ThresholdEncoding.decode(indices, count, THRESHOLD, decoded);
+        for (int idx = 0; idx < SIZE; ++idx) {
+            assertEquals("index " + idx, original[idx], decoded[idx] + residual[idx], 1e-6f);
+            //one threshold at most per round, the rest waits for the next one
+            assertTrue(Math.abs(decoded[idx]) <= THRESHOLD);
+        }
+    }
+
+    @Test
+    public void repeatedRoundsSendEverything() {
+        final float[] residual = {0.035f, -0.021f, 0.004f, 0f};
+        final float[] decoded = new float[residual.length];
+        final int[] indices = new int[residual.length];
+        int count;
+        while ((count = ThresholdEncoding.encode(residual, THRESHOLD, indices)) > 0) {
+            ThresholdEncoding.decode(indices, count, THRESHOLD, decoded);
+        }
+        assertEquals(0.03f, decoded[0], 1e-6f);
+        assertEquals(-0.02f, decoded[1], 1e-6f);
+        assertEquals(0f, decoded[2], 0f);
+        for (final float value : residual) {
+            assertTrue(Math.abs(value) < THRESHOLD);
+        }
+    }
+
+    @Test
+    public void indicesSurviveTheWire() throws IOException {
+        final int[] written = {1, -2, SIZE, -SIZE};
+        final int[] read = new int[SIZE];
+        assertEquals(written.length, ParameterServer.readInts(wire(written), read, buffer()));
+        for (int idx = 0; idx < written.length; ++idx) {
+            assertEquals(written[idx], read[idx]);
+        }
+    }
+
+    @Test
+    public void invalidIndicesAreRejected() {
+        for (final int invalid : new int[] {0, SIZE + 1, -(SIZE + 1), Integer.MIN_VALUE, Integer.MAX_VALUE}) {
+            try {
+                ParameterServer.readInts(wire(new int[] {1, invalid}), new int[SIZE], buffer());
+                fail("accepted index " + invalid);
+            } catch (final IOException e) {
+                //expected
+            }
+        }
+    }
+
+    private static ByteBuffer buffer() {
+        return ByteBuffer.allocate(4 * SIZE);
+    }
+
+    private static DataInputStream wire(final int[] values) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        ParameterServer.writeInts(out, values, values.length, buffer());
+        out.flush();
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+}